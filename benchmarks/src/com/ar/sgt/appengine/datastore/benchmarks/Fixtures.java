@@ -0,0 +1,116 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.benchmarks;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.Date;
+
+import com.ar.sgt.appengine.datastore.benchmarks.model.Child;
+import com.ar.sgt.appengine.datastore.benchmarks.model.Converted;
+import com.ar.sgt.appengine.datastore.benchmarks.model.Flat;
+import com.ar.sgt.appengine.datastore.benchmarks.model.Timed;
+import com.ar.sgt.appengine.datastore.benchmarks.model.Wide;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * Sample entities shared by the benchmarks.
+ */
+final class Fixtures {
+
+	private Fixtures() {
+	}
+
+	/**
+	 * In memory datastore stand-in, set up for the calling thread. JMH runs thread scoped setups on the
+	 * benchmark thread, so states using it must be {@link org.openjdk.jmh.annotations.Scope#Thread}.
+	 */
+	static LocalServiceTestHelper localDatastore() {
+		LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().setNoStorage(true));
+		helper.setUp();
+		return helper;
+	}
+
+	static Flat flat(long id) {
+		Flat flat = new Flat();
+		flat.setId(id);
+		flat.setName("name " + id);
+		flat.setCount(id * 31);
+		flat.setRank((int) (id % 10));
+		flat.setActive(id % 2 == 0);
+		flat.setScore(id / 3.0);
+		flat.setCreated(new Date(1500000000000L + id));
+		flat.setDescription("a longer description that is not indexed " + id);
+		return flat;
+	}
+
+	static Wide wide(long id) {
+		Wide wide = new Wide();
+		wide.setId(id);
+		wide.setField00("value 0"); wide.setField01(1L); wide.setField02(2.0); wide.setField03(true); wide.setField04(new Date(4));
+		wide.setField05("value 5"); wide.setField06(6L); wide.setField07(7.0); wide.setField08(false); wide.setField09(new Date(9));
+		wide.setField10("value 10"); wide.setField11(11L); wide.setField12(12.0); wide.setField13(true); wide.setField14(new Date(14));
+		wide.setField15("value 15"); wide.setField16(16L); wide.setField17(17.0); wide.setField18(false); wide.setField19(new Date(19));
+		wide.setField20("value 20"); wide.setField21(21L); wide.setField22(22.0); wide.setField23(true); wide.setField24(new Date(24));
+		wide.setField25("value 25"); wide.setField26(26L); wide.setField27(27.0); wide.setField28(false); wide.setField29(new Date(29));
+		wide.setField30("value 30"); wide.setField31(31L); wide.setField32(32.0); wide.setField33(true); wide.setField34(new Date(34));
+		wide.setField35("value 35"); wide.setField36(36L); wide.setField37(37.0); wide.setField38(false); wide.setField39(new Date(39));
+		wide.setField40("value 40"); wide.setField41(41L); wide.setField42(42.0); wide.setField43(true); wide.setField44(new Date(44));
+		wide.setField45("value 45"); wide.setField46(46L); wide.setField47(47.0); wide.setField48(false); wide.setField49(new Date(49));
+		return wide;
+	}
+
+	static Converted converted(long id) {
+		Converted converted = new Converted();
+		converted.setId(id);
+		converted.setName("name " + id);
+		converted.setCode("code " + id);
+		converted.setCategory("category");
+		return converted;
+	}
+
+	static Timed timed(long id) {
+		Timed timed = new Timed();
+		timed.setId(id);
+		timed.setName("name " + id);
+		timed.setDay(LocalDate.of(2018, 5, 10));
+		timed.setTimestamp(LocalDateTime.of(2018, 5, 10, 13, 45, 30));
+		timed.setTime(LocalTime.of(13, 45, 30));
+		return timed;
+	}
+
+	static Child child(long id) {
+		Child child = new Child();
+		child.setId(id);
+		child.setName("child " + id);
+		child.setValue(id);
+		return child;
+	}
+
+}
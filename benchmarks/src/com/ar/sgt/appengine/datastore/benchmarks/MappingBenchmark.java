@@ -0,0 +1,195 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ar.sgt.appengine.datastore.EntityMapper;
+import com.ar.sgt.appengine.datastore.benchmarks.model.Child;
+import com.ar.sgt.appengine.datastore.benchmarks.model.Converted;
+import com.ar.sgt.appengine.datastore.benchmarks.model.Flat;
+import com.ar.sgt.appengine.datastore.benchmarks.model.LazyParent;
+import com.ar.sgt.appengine.datastore.benchmarks.model.Parent;
+import com.ar.sgt.appengine.datastore.benchmarks.model.Timed;
+import com.ar.sgt.appengine.datastore.benchmarks.model.Wide;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * Cost of mapping single objects to and from entities. Relations are read from the local datastore: the eager
+ * benchmark includes the get of the related entity, the lazy one only creates the proxy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MappingBenchmark {
+
+	private LocalServiceTestHelper helper;
+
+	private DatastoreService datastoreService;
+
+	private EntityMapper mapper;
+
+	private Flat flat;
+
+	private Entity flatEntity;
+
+	private Wide wide;
+
+	private Entity wideEntity;
+
+	private Converted converted;
+
+	private Entity convertedEntity;
+
+	private Timed timed;
+
+	private Entity timedEntity;
+
+	private Entity parentEntity;
+
+	private Entity lazyParentEntity;
+
+	private Child loadedProxy;
+
+	@Setup
+	public void setUp() throws Exception {
+		helper = Fixtures.localDatastore();
+		datastoreService = DatastoreServiceFactory.getDatastoreService();
+		mapper = new EntityMapper();
+		flat = Fixtures.flat(1);
+		flatEntity = mapper.toDatastoreEntity(flat, Flat.class);
+		wide = Fixtures.wide(1);
+		wideEntity = mapper.toDatastoreEntity(wide, Wide.class);
+		converted = Fixtures.converted(1);
+		convertedEntity = mapper.toDatastoreEntity(converted, Converted.class);
+		timed = Fixtures.timed(1);
+		timedEntity = mapper.toDatastoreEntity(timed, Timed.class);
+
+		Child child = Fixtures.child(1);
+		datastoreService.put(mapper.toDatastoreEntity(child, Child.class));
+		Parent parent = new Parent();
+		parent.setId(1L);
+		parent.setName("parent");
+		parent.setChild(child);
+		parentEntity = mapper.toDatastoreEntity(parent, Parent.class);
+		LazyParent lazyParent = new LazyParent();
+		lazyParent.setId(1L);
+		lazyParent.setName("lazy parent");
+		lazyParent.setChild(child);
+		lazyParentEntity = mapper.toDatastoreEntity(lazyParent, LazyParent.class);
+
+		loadedProxy = mapper.fromDatastoreEntity(lazyParentEntity, LazyParent.class, datastoreService).getChild();
+		loadedProxy.getName();
+	}
+
+	@TearDown
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Benchmark
+	public Entity flatToEntity() throws Exception {
+		return mapper.toDatastoreEntity(flat, Flat.class);
+	}
+
+	@Benchmark
+	public Flat flatFromEntity() throws Exception {
+		return mapper.fromDatastoreEntity(flatEntity, Flat.class, datastoreService);
+	}
+
+	@Benchmark
+	public Entity wideToEntity() throws Exception {
+		return mapper.toDatastoreEntity(wide, Wide.class);
+	}
+
+	@Benchmark
+	public Wide wideFromEntity() throws Exception {
+		return mapper.fromDatastoreEntity(wideEntity, Wide.class, datastoreService);
+	}
+
+	@Benchmark
+	public Entity converterToEntity() throws Exception {
+		return mapper.toDatastoreEntity(converted, Converted.class);
+	}
+
+	@Benchmark
+	public Converted converterFromEntity() throws Exception {
+		return mapper.fromDatastoreEntity(convertedEntity, Converted.class, datastoreService);
+	}
+
+	@Benchmark
+	public Entity temporalToEntity() throws Exception {
+		return mapper.toDatastoreEntity(timed, Timed.class);
+	}
+
+	@Benchmark
+	public Timed temporalFromEntity() throws Exception {
+		return mapper.fromDatastoreEntity(timedEntity, Timed.class, datastoreService);
+	}
+
+	@Benchmark
+	public Parent eagerRelationFromEntity() throws Exception {
+		return mapper.fromDatastoreEntity(parentEntity, Parent.class, datastoreService);
+	}
+
+	@Benchmark
+	public LazyParent lazyRelationFromEntity() throws Exception {
+		return mapper.fromDatastoreEntity(lazyParentEntity, LazyParent.class, datastoreService);
+	}
+
+	/**
+	 * Call through an already loaded lazy proxy.
+	 */
+	@Benchmark
+	public String lazyProxyDispatch() {
+		return loadedProxy.getName();
+	}
+
+	@Benchmark
+	public Long lazyProxyId() {
+		return loadedProxy.getId();
+	}
+
+}
@@ -0,0 +1,151 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ar.sgt.appengine.datastore.EntityMapper;
+import com.ar.sgt.appengine.datastore.benchmarks.model.Child;
+import com.ar.sgt.appengine.datastore.benchmarks.model.Flat;
+import com.ar.sgt.appengine.datastore.benchmarks.model.FlatRepository;
+import com.ar.sgt.appengine.datastore.benchmarks.model.Parent;
+import com.ar.sgt.appengine.datastore.benchmarks.model.ParentRepository;
+import com.ar.sgt.appengine.datastore.query.PageRequest;
+import com.ar.sgt.appengine.datastore.query.PageResult;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * Repository calls against the in memory local datastore. Absolute numbers are dominated by the datastore
+ * stub, they are meant to compare revisions of the mapping and loading code on the same machine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepositoryBenchmark {
+
+	private static final int PAGE_SIZE = 20;
+
+	private LocalServiceTestHelper helper;
+
+	private FlatRepository flatRepository;
+
+	private ParentRepository parentRepository;
+
+	private Flat flat;
+
+	private Long parentId;
+
+	private List<Flat> batch;
+
+	@Setup
+	public void setUp() throws Exception {
+		helper = Fixtures.localDatastore();
+		flatRepository = new FlatRepository();
+		parentRepository = new ParentRepository();
+		EntityMapper mapper = new EntityMapper();
+		List<Flat> flats = new ArrayList<Flat>();
+		for (long id = 1; id <= 200; id++) {
+			flats.add(Fixtures.flat(id));
+		}
+		flatRepository.save(flats);
+		flat = flats.get(0);
+		List<Entity> children = new ArrayList<Entity>();
+		for (long id = 1; id <= PAGE_SIZE; id++) {
+			children.add(mapper.toDatastoreEntity(Fixtures.child(id), Child.class));
+		}
+		DatastoreServiceFactory.getDatastoreService().put(children);
+		for (long id = 1; id <= PAGE_SIZE; id++) {
+			Parent parent = new Parent();
+			parent.setName("parent " + id);
+			parent.setChild(Fixtures.child(id));
+			parentRepository.save(parent);
+			parentId = parent.getId();
+		}
+		batch = new ArrayList<Flat>();
+		for (long id = 1001; id <= 1000 + PAGE_SIZE; id++) {
+			batch.add(Fixtures.flat(id));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Benchmark
+	public Optional<Flat> get() {
+		return flatRepository.get(flat.getId());
+	}
+
+	@Benchmark
+	public Optional<Parent> getWithEagerRelation() {
+		return parentRepository.get(parentId);
+	}
+
+	@Benchmark
+	public Flat save() {
+		flatRepository.save(flat);
+		return flat;
+	}
+
+	@Benchmark
+	public List<Flat> saveBatch() {
+		flatRepository.save(batch);
+		return batch;
+	}
+
+	@Benchmark
+	public PageResult<Flat> findPage() {
+		return flatRepository.findAll(PageRequest.of(null, PAGE_SIZE));
+	}
+
+	@Benchmark
+	public PageResult<Parent> findPageWithEagerRelations() {
+		return parentRepository.findAll(PageRequest.of(null, PAGE_SIZE));
+	}
+
+}
@@ -0,0 +1,535 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.benchmarks.model;
+
+import java.util.Date;
+
+import com.ar.sgt.appengine.datastore.AbstractEntity;
+
+public class Wide extends AbstractEntity {
+
+	private String field00;
+
+	private Long field01;
+
+	private Double field02;
+
+	private Boolean field03;
+
+	private Date field04;
+
+	private String field05;
+
+	private Long field06;
+
+	private Double field07;
+
+	private Boolean field08;
+
+	private Date field09;
+
+	private String field10;
+
+	private Long field11;
+
+	private Double field12;
+
+	private Boolean field13;
+
+	private Date field14;
+
+	private String field15;
+
+	private Long field16;
+
+	private Double field17;
+
+	private Boolean field18;
+
+	private Date field19;
+
+	private String field20;
+
+	private Long field21;
+
+	private Double field22;
+
+	private Boolean field23;
+
+	private Date field24;
+
+	private String field25;
+
+	private Long field26;
+
+	private Double field27;
+
+	private Boolean field28;
+
+	private Date field29;
+
+	private String field30;
+
+	private Long field31;
+
+	private Double field32;
+
+	private Boolean field33;
+
+	private Date field34;
+
+	private String field35;
+
+	private Long field36;
+
+	private Double field37;
+
+	private Boolean field38;
+
+	private Date field39;
+
+	private String field40;
+
+	private Long field41;
+
+	private Double field42;
+
+	private Boolean field43;
+
+	private Date field44;
+
+	private String field45;
+
+	private Long field46;
+
+	private Double field47;
+
+	private Boolean field48;
+
+	private Date field49;
+
+	public String getField00() {
+		return field00;
+	}
+
+	public void setField00(String field00) {
+		this.field00 = field00;
+	}
+
+	public Long getField01() {
+		return field01;
+	}
+
+	public void setField01(Long field01) {
+		this.field01 = field01;
+	}
+
+	public Double getField02() {
+		return field02;
+	}
+
+	public void setField02(Double field02) {
+		this.field02 = field02;
+	}
+
+	public Boolean getField03() {
+		return field03;
+	}
+
+	public void setField03(Boolean field03) {
+		this.field03 = field03;
+	}
+
+	public Date getField04() {
+		return field04;
+	}
+
+	public void setField04(Date field04) {
+		this.field04 = field04;
+	}
+
+	public String getField05() {
+		return field05;
+	}
+
+	public void setField05(String field05) {
+		this.field05 = field05;
+	}
+
+	public Long getField06() {
+		return field06;
+	}
+
+	public void setField06(Long field06) {
+		this.field06 = field06;
+	}
+
+	public Double getField07() {
+		return field07;
+	}
+
+	public void setField07(Double field07) {
+		this.field07 = field07;
+	}
+
+	public Boolean getField08() {
+		return field08;
+	}
+
+	public void setField08(Boolean field08) {
+		this.field08 = field08;
+	}
+
+	public Date getField09() {
+		return field09;
+	}
+
+	public void setField09(Date field09) {
+		this.field09 = field09;
+	}
+
+	public String getField10() {
+		return field10;
+	}
+
+	public void setField10(String field10) {
+		this.field10 = field10;
+	}
+
+	public Long getField11() {
+		return field11;
+	}
+
+	public void setField11(Long field11) {
+		this.field11 = field11;
+	}
+
+	public Double getField12() {
+		return field12;
+	}
+
+	public void setField12(Double field12) {
+		this.field12 = field12;
+	}
+
+	public Boolean getField13() {
+		return field13;
+	}
+
+	public void setField13(Boolean field13) {
+		this.field13 = field13;
+	}
+
+	public Date getField14() {
+		return field14;
+	}
+
+	public void setField14(Date field14) {
+		this.field14 = field14;
+	}
+
+	public String getField15() {
+		return field15;
+	}
+
+	public void setField15(String field15) {
+		this.field15 = field15;
+	}
+
+	public Long getField16() {
+		return field16;
+	}
+
+	public void setField16(Long field16) {
+		this.field16 = field16;
+	}
+
+	public Double getField17() {
+		return field17;
+	}
+
+	public void setField17(Double field17) {
+		this.field17 = field17;
+	}
+
+	public Boolean getField18() {
+		return field18;
+	}
+
+	public void setField18(Boolean field18) {
+		this.field18 = field18;
+	}
+
+	public Date getField19() {
+		return field19;
+	}
+
+	public void setField19(Date field19) {
+		this.field19 = field19;
+	}
+
+	public String getField20() {
+		return field20;
+	}
+
+	public void setField20(String field20) {
+		this.field20 = field20;
+	}
+
+	public Long getField21() {
+		return field21;
+	}
+
+	public void setField21(Long field21) {
+		this.field21 = field21;
+	}
+
+	public Double getField22() {
+		return field22;
+	}
+
+	public void setField22(Double field22) {
+		this.field22 = field22;
+	}
+
+	public Boolean getField23() {
+		return field23;
+	}
+
+	public void setField23(Boolean field23) {
+		this.field23 = field23;
+	}
+
+	public Date getField24() {
+		return field24;
+	}
+
+	public void setField24(Date field24) {
+		this.field24 = field24;
+	}
+
+	public String getField25() {
+		return field25;
+	}
+
+	public void setField25(String field25) {
+		this.field25 = field25;
+	}
+
+	public Long getField26() {
+		return field26;
+	}
+
+	public void setField26(Long field26) {
+		this.field26 = field26;
+	}
+
+	public Double getField27() {
+		return field27;
+	}
+
+	public void setField27(Double field27) {
+		this.field27 = field27;
+	}
+
+	public Boolean getField28() {
+		return field28;
+	}
+
+	public void setField28(Boolean field28) {
+		this.field28 = field28;
+	}
+
+	public Date getField29() {
+		return field29;
+	}
+
+	public void setField29(Date field29) {
+		this.field29 = field29;
+	}
+
+	public String getField30() {
+		return field30;
+	}
+
+	public void setField30(String field30) {
+		this.field30 = field30;
+	}
+
+	public Long getField31() {
+		return field31;
+	}
+
+	public void setField31(Long field31) {
+		this.field31 = field31;
+	}
+
+	public Double getField32() {
+		return field32;
+	}
+
+	public void setField32(Double field32) {
+		this.field32 = field32;
+	}
+
+	public Boolean getField33() {
+		return field33;
+	}
+
+	public void setField33(Boolean field33) {
+		this.field33 = field33;
+	}
+
+	public Date getField34() {
+		return field34;
+	}
+
+	public void setField34(Date field34) {
+		this.field34 = field34;
+	}
+
+	public String getField35() {
+		return field35;
+	}
+
+	public void setField35(String field35) {
+		this.field35 = field35;
+	}
+
+	public Long getField36() {
+		return field36;
+	}
+
+	public void setField36(Long field36) {
+		this.field36 = field36;
+	}
+
+	public Double getField37() {
+		return field37;
+	}
+
+	public void setField37(Double field37) {
+		this.field37 = field37;
+	}
+
+	public Boolean getField38() {
+		return field38;
+	}
+
+	public void setField38(Boolean field38) {
+		this.field38 = field38;
+	}
+
+	public Date getField39() {
+		return field39;
+	}
+
+	public void setField39(Date field39) {
+		this.field39 = field39;
+	}
+
+	public String getField40() {
+		return field40;
+	}
+
+	public void setField40(String field40) {
+		this.field40 = field40;
+	}
+
+	public Long getField41() {
+		return field41;
+	}
+
+	public void setField41(Long field41) {
+		this.field41 = field41;
+	}
+
+	public Double getField42() {
+		return field42;
+	}
+
+	public void setField42(Double field42) {
+		this.field42 = field42;
+	}
+
+	public Boolean getField43() {
+		return field43;
+	}
+
+	public void setField43(Boolean field43) {
+		this.field43 = field43;
+	}
+
+	public Date getField44() {
+		return field44;
+	}
+
+	public void setField44(Date field44) {
+		this.field44 = field44;
+	}
+
+	public String getField45() {
+		return field45;
+	}
+
+	public void setField45(String field45) {
+		this.field45 = field45;
+	}
+
+	public Long getField46() {
+		return field46;
+	}
+
+	public void setField46(Long field46) {
+		this.field46 = field46;
+	}
+
+	public Double getField47() {
+		return field47;
+	}
+
+	public void setField47(Double field47) {
+		this.field47 = field47;
+	}
+
+	public Boolean getField48() {
+		return field48;
+	}
+
+	public void setField48(Boolean field48) {
+		this.field48 = field48;
+	}
+
+	public Date getField49() {
+		return field49;
+	}
+
+	public void setField49(Date field49) {
+		this.field49 = field49;
+	}
+
+}
@@ -0,0 +1,428 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a <code>GeneratedMapper</code> for every concrete <code>AbstractEntity</code> subclass being compiled,
+ * so entities are mapped with plain getter and setter calls instead of reflection. Classes that can't be mapped
+ * that way (missing accessors, no public no-arg constructor, generic classes, embedded fields) are skipped and keep using the
+ * reflective mapper.
+ */
+@SupportedAnnotationTypes("*")
+public class EntityMapperProcessor extends AbstractProcessor {
+
+	private static final String PACKAGE = "com.ar.sgt.appengine.datastore";
+	private static final String ABSTRACT_ENTITY = PACKAGE + ".AbstractEntity";
+	private static final String ENTITY_NAME = PACKAGE + ".annotation.EntityName";
+	private static final String FIELD_NAME = PACKAGE + ".annotation.FieldName";
+	private static final String ID = PACKAGE + ".annotation.Id";
+	private static final String UNINDEXED = PACKAGE + ".annotation.Unindexed";
+	private static final String CONVERTER = PACKAGE + ".annotation.Converter";
+	private static final String LAZY = PACKAGE + ".annotation.Lazy";
+	private static final String EMBEDDED = PACKAGE + ".annotation.Embedded";
+	private static final String GENERATED_MAPPER = PACKAGE + ".mapping.GeneratedMapper";
+	private static final String RELATION_RESOLVER = PACKAGE + ".mapping.RelationResolver";
+	private static final String CODECS = PACKAGE + ".mapping.Codecs";
+	private static final String PROPERTY_CODEC = PACKAGE + ".mapping.PropertyCodec";
+	private static final String ENTITY = "com.google.appengine.api.datastore.Entity";
+	private static final String SUFFIX = "_Mapper";
+
+	private final Set<String> generated = new HashSet<>();
+
+	private Elements elements;
+
+	private Types types;
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		elements = processingEnv.getElementUtils();
+		types = processingEnv.getTypeUtils();
+		TypeElement base = elements.getTypeElement(ABSTRACT_ENTITY);
+		if (base == null) {
+			return false;
+		}
+		for (Element element : roundEnv.getRootElements()) {
+			scan(element, base);
+		}
+		return false;
+	}
+
+	private void scan(final Element element, final TypeElement base) {
+		if (element.getKind() != ElementKind.CLASS) {
+			return;
+		}
+		TypeElement type = (TypeElement) element;
+		if (isEntity(type, base)) {
+			String mapperName = elements.getBinaryName(type).toString().replace('$', '_') + SUFFIX;
+			if (generated.add(mapperName)) {
+				generate(type, mapperName);
+			}
+		}
+		for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements())) {
+			scan(nested, base);
+		}
+	}
+
+	private boolean isEntity(final TypeElement type, final TypeElement base) {
+		if (type.equals(base) || type.getModifiers().contains(Modifier.ABSTRACT) || !type.getTypeParameters().isEmpty()) {
+			return false;
+		}
+		if (!types.isSubtype(types.erasure(type.asType()), types.erasure(base.asType()))) {
+			return false;
+		}
+		Element current = type;
+		while (current instanceof TypeElement) {
+			TypeElement enclosing = (TypeElement) current;
+			if (!enclosing.getModifiers().contains(Modifier.PUBLIC)) return false;
+			if (enclosing.getNestingKind() == NestingKind.MEMBER && !enclosing.getModifiers().contains(Modifier.STATIC)) return false;
+			current = enclosing.getEnclosingElement();
+		}
+		for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+			if (constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PUBLIC)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void generate(final TypeElement type, final String mapperName) {
+		List<Property> properties = new ArrayList<>();
+		Set<String> constants = new HashSet<>();
+		Property id = null;
+		for (VariableElement field : getFields(type)) {
+			if (getAnnotation(field, EMBEDDED) != null) {
+				note(type, "embedded field " + field.getSimpleName() + ", reflection will be used");
+				return;
+			}
+			Property property = new Property(field);
+			property.getter = findGetter(type, field);
+			property.setter = findSetter(type, field);
+			if (property.setter == null || (!property.id && property.getter == null)) {
+				note(type, "no public accessors for " + field.getSimpleName() + ", reflection will be used");
+				return;
+			}
+			if (property.id) {
+				id = property;
+			} else {
+				property.constant = constantName(property, constants);
+				properties.add(property);
+			}
+		}
+
+		String packageName = elements.getPackageOf(type).getQualifiedName().toString();
+		String simpleName = packageName.isEmpty() ? mapperName : mapperName.substring(packageName.length() + 1);
+		String typeName = type.getQualifiedName().toString();
+
+		try {
+			JavaFileObject file = processingEnv.getFiler().createSourceFile(mapperName, type);
+			try (PrintWriter out = new PrintWriter(file.openWriter())) {
+				if (!packageName.isEmpty()) {
+					out.println("package " + packageName + ";");
+					out.println();
+				}
+				out.println("/**");
+				out.println(" * Generated by " + getClass().getName() + ", do not edit.");
+				out.println(" */");
+				out.println("@SuppressWarnings({\"unchecked\", \"rawtypes\"})");
+				out.println("public final class " + simpleName + " implements " + GENERATED_MAPPER + "<" + typeName + "> {");
+				out.println();
+				for (Property property : properties) {
+					if (property.converter != null) {
+						out.println("\tprivate static final " + property.converter + " " + property.constant + " = new " + property.converter + "();");
+						out.println();
+					} else if (property.coded) {
+						out.println("\tprivate static final " + PROPERTY_CODEC + " " + property.constant + " = " + CODECS + ".forType(" + property.typeName + ".class);");
+						out.println();
+					}
+				}
+				out.println("\t@Override");
+				out.println("\tpublic String getKind() {");
+				out.println("\t\treturn " + elements.getConstantExpression(getKind(type)) + ";");
+				out.println("\t}");
+				out.println();
+				out.println("\t@Override");
+				out.println("\tpublic " + typeName + " newInstance() {");
+				out.println("\t\treturn new " + typeName + "();");
+				out.println("\t}");
+				out.println();
+				out.println("\t@Override");
+				out.println("\tpublic void toEntity(" + typeName + " source, " + ENTITY + " entity) {");
+				for (Property property : properties) {
+					out.println("\t\t{");
+					out.println("\t\t\t" + property.typeName + " value = source." + property.getter + "();");
+					out.println("\t\t\tentity." + (property.indexed ? "setProperty" : "setUnindexedProperty") + "("
+							+ elements.getConstantExpression(property.propertyName) + ", " + property.toDatastore("value") + ");");
+					out.println("\t\t}");
+				}
+				out.println("\t}");
+				out.println();
+				out.println("\t@Override");
+				out.println("\tpublic void fromEntity(" + ENTITY + " entity, " + typeName + " target, " + RELATION_RESOLVER + " resolver)");
+				out.println("\t\t\tthrows IllegalAccessException, java.lang.reflect.InvocationTargetException, InstantiationException {");
+				if (id != null) {
+					out.println("\t\ttarget." + id.setter + "(entity.getKey().getId());");
+				}
+				if (!properties.isEmpty()) {
+					out.println("\t\tObject value;");
+				}
+				for (Property property : properties) {
+					out.println("\t\tvalue = entity.getProperty(" + elements.getConstantExpression(property.propertyName) + ");");
+					if (property.type.getKind().isPrimitive()) {
+						out.println("\t\tif (value != null) target." + property.setter + "(" + property.fromDatastore("value") + ");");
+					} else {
+						out.println("\t\ttarget." + property.setter + "(value == null ? null : " + property.fromDatastore("value") + ");");
+					}
+				}
+				out.println("\t}");
+				out.println();
+				out.println("}");
+			}
+		} catch (IOException e) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to generate " + mapperName + ": " + e.getMessage(), type);
+		}
+	}
+
+	private List<VariableElement> getFields(final TypeElement type) {
+		List<VariableElement> fields = new ArrayList<>();
+		TypeMirror superclass = type.getSuperclass();
+		if (superclass.getKind() == TypeKind.DECLARED) {
+			fields.addAll(getFields((TypeElement) ((DeclaredType) superclass).asElement()));
+		}
+		for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+			Set<Modifier> modifiers = field.getModifiers();
+			if (!modifiers.contains(Modifier.STATIC) && !modifiers.contains(Modifier.TRANSIENT)) {
+				fields.add(field);
+			}
+		}
+		return fields;
+	}
+
+	private String findGetter(final TypeElement type, final VariableElement field) {
+		String suffix = capitalize(field.getSimpleName().toString());
+		for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(type))) {
+			String name = method.getSimpleName().toString();
+			boolean bool = field.asType().getKind() == TypeKind.BOOLEAN || field.asType().toString().equals(Boolean.class.getName());
+			if ((name.equals("get" + suffix) || (bool && name.equals("is" + suffix))) && method.getParameters().isEmpty()
+					&& isPublicInstance(method) && types.isAssignable(method.getReturnType(), field.asType())) {
+				return name;
+			}
+		}
+		return null;
+	}
+
+	private String findSetter(final TypeElement type, final VariableElement field) {
+		String name = "set" + capitalize(field.getSimpleName().toString());
+		for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(type))) {
+			if (method.getSimpleName().contentEquals(name) && method.getParameters().size() == 1 && isPublicInstance(method)
+					&& types.isSameType(types.erasure(method.getParameters().get(0).asType()), types.erasure(field.asType()))) {
+				return name;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isPublicInstance(final ExecutableElement method) {
+		return method.getModifiers().contains(Modifier.PUBLIC) && !method.getModifiers().contains(Modifier.STATIC);
+	}
+
+	private String getKind(final TypeElement type) {
+		AnnotationMirror entityName = getAnnotation(type, ENTITY_NAME);
+		if (entityName != null) {
+			return String.valueOf(getValue(entityName).getValue());
+		}
+		return type.getSimpleName().toString();
+	}
+
+	private AnnotationMirror getAnnotation(final Element element, final String annotation) {
+		for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+			if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation)) {
+				return mirror;
+			}
+		}
+		return null;
+	}
+
+	private AnnotationValue getValue(final AnnotationMirror mirror) {
+		for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : elements.getElementValuesWithDefaults(mirror).entrySet()) {
+			if (entry.getKey().getSimpleName().contentEquals("value")) {
+				return entry.getValue();
+			}
+		}
+		return null;
+	}
+
+	private void note(final Element element, final String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "Skipping mapper for " + element + ": " + message, element);
+	}
+
+	/**
+	 * Name of the static converter or codec field of the property, made unique within the mapper since fields
+	 * like fooBar and foobar (or a field hiding one of its superclass) would upper case to the same name.
+	 */
+	private static String constantName(final Property property, final Set<String> used) {
+		String base = property.name.toUpperCase() + (property.converter != null ? "_CONVERTER" : "_CODEC");
+		String name = base;
+		for (int i = 1; !used.add(name); i++) {
+			name = base + "_" + i;
+		}
+		return name;
+	}
+
+	private static String capitalize(final String name) {
+		return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+	}
+
+	private class Property {
+
+		private final String name;
+
+		private final String propertyName;
+
+		private final TypeMirror type;
+
+		private final String typeName;
+
+		private final boolean id;
+
+		private final boolean indexed;
+
+		private final String converter;
+
+		private final boolean relation;
+
+		private final boolean lazy;
+
+		/**
+		 * Converted with the codec of its type, others are stored as is.
+		 */
+		private final boolean coded;
+
+		private String getter;
+
+		private String setter;
+
+		private String constant;
+
+		Property(final VariableElement field) {
+			this.name = field.getSimpleName().toString();
+			AnnotationMirror fieldName = getAnnotation(field, FIELD_NAME);
+			this.propertyName = fieldName != null ? String.valueOf(getValue(fieldName).getValue()) : name;
+			this.type = field.asType();
+			this.typeName = types.erasure(type).toString();
+			this.id = getAnnotation(field, ID) != null;
+			this.indexed = getAnnotation(field, UNINDEXED) == null;
+			AnnotationMirror converter = getAnnotation(field, CONVERTER);
+			this.converter = converter != null ? types.erasure((TypeMirror) getValue(converter).getValue()).toString() : null;
+			this.relation = !id && converter == null && isAssignable(type, ABSTRACT_ENTITY);
+			this.lazy = relation && getAnnotation(field, LAZY) != null;
+			this.coded = !id && converter == null && !relation && !type.getKind().isPrimitive() && numberMethod(typeName) == null
+					&& !Boolean.class.getName().equals(typeName) && !"java.util.Date".equals(typeName);
+		}
+
+		String toDatastore(final String value) {
+			if (type.getKind().isPrimitive()) {
+				return converter != null ? constant + ".toDatastoreEntity(" + value + ")" : value;
+			} else if (converter != null) {
+				return value + " == null ? null : " + constant + ".toDatastoreEntity(" + value + ")";
+			} else if (relation) {
+				return value + " == null ? null : " + value + ".getId()";
+			} else if (coded) {
+				return value + " == null ? null : " + constant + ".toDatastore(" + value + ")";
+			}
+			return value;
+		}
+
+		String fromDatastore(final String value) {
+			String boxed = type.getKind().isPrimitive() ? types.boxedClass(types.getPrimitiveType(type.getKind())).getQualifiedName().toString() : typeName;
+			if (converter != null) {
+				return "(" + boxed + ") " + constant + ".fromDatastoreEntity(" + value + ")";
+			} else if (relation) {
+				return "(" + typeName + ") resolver.resolve(" + typeName + ".class, (Long) " + value + ", " + lazy + ")";
+			} else if (coded) {
+				return "(" + typeName + ") " + constant + ".fromDatastore(" + value + ")";
+			}
+			String number = numberMethod(boxed);
+			if (number != null) {
+				return boxed + ".valueOf(((Number) " + value + ")." + number + "())";
+			}
+			return "(" + boxed + ") " + value;
+		}
+
+		private String numberMethod(final String boxed) {
+			switch (boxed) {
+			case "java.lang.Long": return "longValue";
+			case "java.lang.Integer": return "intValue";
+			case "java.lang.Short": return "shortValue";
+			case "java.lang.Byte": return "byteValue";
+			case "java.lang.Double": return "doubleValue";
+			case "java.lang.Float": return "floatValue";
+			default: return null;
+			}
+		}
+
+		private boolean isAssignable(final TypeMirror type, final String target) {
+			TypeElement element = elements.getTypeElement(target);
+			return element != null && type.getKind() == TypeKind.DECLARED && types.isAssignable(types.erasure(type), types.erasure(element.asType()));
+		}
+	}
+
+}
@@ -0,0 +1,464 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.GenericTypeResolver;
+
+import com.ar.sgt.appengine.datastore.batch.BatchOptions;
+import com.ar.sgt.appengine.datastore.metrics.Operation;
+import com.ar.sgt.appengine.datastore.metrics.RepositoryMetrics;
+import com.ar.sgt.appengine.datastore.query.Order;
+import com.ar.sgt.appengine.datastore.query.PageRequest;
+import com.ar.sgt.appengine.datastore.query.PageResult;
+import com.ar.sgt.appengine.datastore.utils.EntityUtils;
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * {@link AsyncRepository} backed by the {@link AsyncDatastoreService}. RPCs are started on the caller thread,
+ * waiting for them and mapping the results happens on the executor. By default that's at most
+ * {@value #DEFAULT_THREADS} request threads per calling thread, created by the {@link ThreadManager} so relation
+ * loading can still reach the datastore; use {@link #setExecutor(Executor)} to supply another one. Operations
+ * and RPCs are recorded in the metrics of the mapper like {@link AbstractRepository} does, timed from the start
+ * of the call to the moment the executor has its result.
+ */
+public abstract class AbstractAsyncRepository<T extends AbstractEntity> implements AsyncRepository<T> {
+
+	/**
+	 * Request threads the default executor runs at once for each calling thread.
+	 */
+	public static final int DEFAULT_THREADS = 4;
+
+	private final String entityName;
+
+	private final Class<T> type;
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private EntityMapper mapper = new EntityMapper();
+
+	private volatile AsyncDatastoreService asyncDatastoreService;
+
+	private volatile DatastoreService datastoreService;
+
+	private Executor executor = new RequestExecutor(DEFAULT_THREADS);
+
+	@SuppressWarnings("unchecked")
+	public AbstractAsyncRepository() {
+		this.type = (Class<T>) GenericTypeResolver.resolveTypeArgument(getClass(), AbstractAsyncRepository.class);
+		this.entityName = EntityMapper.getEntityName(type);
+	}
+
+	@Override
+	public CompletableFuture<Optional<T>> get(Long id) {
+		logger.info("Load {}: {}", type, id);
+		return load(Collections.singletonList(id)).thenApply(objects -> Optional.ofNullable(objects.get(id)));
+	}
+
+	@Override
+	public CompletableFuture<Map<Long, T>> get(Iterable<Long> ids) {
+		logger.info("Load {}: {}", type, ids);
+		return load(ids);
+	}
+
+	/**
+	 * Batch get read through the entity cache like {@link EntityMapper}, only the keys missing from the cache
+	 * are fetched from the datastore, in gets of up to {@value BatchOptions#MAX_GET_SIZE} keys started at once.
+	 */
+	private CompletableFuture<Map<Long, T>> load(Iterable<Long> ids) {
+		final long start = System.nanoTime();
+		final Map<Key, Class<?>> keys = new LinkedHashMap<Key, Class<?>>();
+		for (Long id : ids) {
+			keys.put(KeyFactory.createKey(entityName, id), type);
+		}
+		final Map<Key, Entity> cached = mapper.cacheGet(keys);
+		final List<Key> pending = new ArrayList<Key>(keys.size() - cached.size());
+		for (Key key : keys.keySet()) {
+			if (!cached.containsKey(key)) pending.add(key);
+		}
+		final List<Future<Map<Key, Entity>>> rpcs = new ArrayList<Future<Map<Key, Entity>>>();
+		final long rpcStart = System.nanoTime();
+		for (int from = 0; from < pending.size(); from += BatchOptions.MAX_GET_SIZE) {
+			List<Key> chunk = pending.subList(from, Math.min(from + BatchOptions.MAX_GET_SIZE, pending.size()));
+			rpcs.add(getAsyncDatastoreService().get((Transaction) null, chunk));
+		}
+		return CompletableFuture.supplyAsync(() -> {
+			Map<Key, Entity> found = cached;
+			if (!pending.isEmpty()) {
+				found = new HashMap<Key, Entity>(pending.size() * 2);
+				for (int i = 0; i < rpcs.size(); i++) {
+					found.putAll(await(rpcs.get(i)));
+					rpc(Operation.GET, rpcStart, Math.min(BatchOptions.MAX_GET_SIZE, pending.size() - i * BatchOptions.MAX_GET_SIZE));
+				}
+				mapper.cacheFill(keys, pending, found);
+				found.putAll(cached);
+			}
+			Map<Long, T> objects = toMap(keys.keySet(), found);
+			record(Operation.GET, start, objects.size());
+			return objects;
+		}, executor);
+	}
+
+	private Map<Long, T> toMap(Collection<Key> keys, Map<Key, Entity> found) {
+		List<Entity> entities = new ArrayList<Entity>(found.size());
+		for (Key key : keys) {
+			Entity entity = found.get(key);
+			if (entity != null) entities.add(entity);
+		}
+		Map<Long, T> objects = new LinkedHashMap<Long, T>();
+		for (T obj : fromEntities(entities)) {
+			objects.put(obj.getId(), obj);
+		}
+		return objects;
+	}
+
+	@Override
+	public CompletableFuture<T> save(final T obj) {
+		logger.info("Save {}: {}", type, obj);
+		final long start = System.nanoTime();
+		final Entity entity = toEntity(obj);
+		final long rpcStart = System.nanoTime();
+		return complete(getAsyncDatastoreService().put((Transaction) null, entity), key -> {
+			rpc(Operation.SAVE, rpcStart, 1);
+			obj.setId(key.getId());
+			mapper.cachePut(Collections.singletonList(entity), type);
+			record(Operation.SAVE, start, 1);
+			return obj;
+		});
+	}
+
+	/**
+	 * Entities are put in chunks of {@value BatchOptions#MAX_CHUNK_SIZE}, all started at once. Chunks are
+	 * independent, the future fails with the first failed chunk but the others may have been written.
+	 */
+	@Override
+	public CompletableFuture<List<T>> saveAll(Iterable<T> it) {
+		final long start = System.nanoTime();
+		final List<T> objects = new ArrayList<T>();
+		final List<Entity> entities = new ArrayList<Entity>();
+		for (T obj : it) {
+			objects.add(obj);
+			entities.add(toEntity(obj));
+		}
+		logger.info("Save {}: {} entities", type, entities.size());
+		final List<Future<List<Key>>> rpcs = new ArrayList<Future<List<Key>>>();
+		final long rpcStart = System.nanoTime();
+		for (int from = 0; from < entities.size(); from += BatchOptions.MAX_CHUNK_SIZE) {
+			List<Entity> chunk = entities.subList(from, Math.min(from + BatchOptions.MAX_CHUNK_SIZE, entities.size()));
+			rpcs.add(getAsyncDatastoreService().put((Transaction) null, chunk));
+		}
+		return CompletableFuture.supplyAsync(() -> {
+			int i = 0;
+			for (Future<List<Key>> rpc : rpcs) {
+				List<Key> keys = await(rpc);
+				rpc(Operation.SAVE, rpcStart, keys.size());
+				mapper.cachePut(entities.subList(i, i + keys.size()), type);
+				for (Key key : keys) {
+					objects.get(i++).setId(key.getId());
+				}
+			}
+			record(Operation.SAVE, start, objects.size());
+			return objects;
+		}, executor);
+	}
+
+	@Override
+	public CompletableFuture<List<T>> findAll() {
+		logger.info("findAll {}", type);
+		return findAll(new Query(entityName));
+	}
+
+	@Override
+	public CompletableFuture<List<T>> findAll(Order order) {
+		logger.info("findAll {}", type);
+		Query query = new Query(entityName);
+		query.addSort(EntityUtils.getFieldName(type, order.getFieldName()), order.getDirection());
+		return findAll(query);
+	}
+
+	private CompletableFuture<List<T>> findAll(Query query) {
+		final long start = System.nanoTime();
+		PreparedQuery pq = getAsyncDatastoreService().prepare(query);
+		final List<Entity> results = pq.asList(FetchOptions.Builder.withDefaults());
+		return CompletableFuture.supplyAsync(() -> {
+			// fetches every result before mapping, like AbstractRepository
+			rpc(Operation.FIND, start, results.size());
+			List<T> objects = fromEntities(results);
+			record(Operation.FIND, start, objects.size());
+			return objects;
+		}, executor);
+	}
+
+	@Override
+	public CompletableFuture<PageResult<T>> findAll(PageRequest pageRequest) {
+		logger.info("findAll {} {}", type, pageRequest);
+		return find(new Query(entityName), pageRequest);
+	}
+
+	@Override
+	public CompletableFuture<PageResult<T>> find(Query query, PageRequest pageRequest) {
+		logger.info("find {} {}", type, pageRequest);
+		final long start = System.nanoTime();
+		if (pageRequest.getOrder() != null) {
+			query.addSort(EntityUtils.getFieldName(type, pageRequest.getOrder().getFieldName()), pageRequest.getOrder().getDirection());
+		}
+		PreparedQuery pq = getAsyncDatastoreService().prepare(query);
+		final QueryResultList<Entity> results = pq.asQueryResultList(AbstractRepository.buildFetchOptions(pageRequest));
+		return CompletableFuture.supplyAsync(() -> {
+			rpc(Operation.FIND, start, results.size());
+			List<T> objects = fromEntities(results);
+			record(Operation.FIND, start, objects.size());
+			return new PageResult<>(objects, AbstractRepository.cursorOf(results));
+		}, executor);
+	}
+
+	@Override
+	public CompletableFuture<Void> delete(Long id) {
+		logger.info("Delete {}: {}", type, id);
+		final long start = System.nanoTime();
+		final Key key = KeyFactory.createKey(entityName, id);
+		return complete(getAsyncDatastoreService().delete((Transaction) null, key), v -> {
+			rpc(Operation.DELETE, start, 1);
+			mapper.cacheInvalidate(Collections.singletonList(key), type);
+			record(Operation.DELETE, start, 1);
+			return null;
+		});
+	}
+
+	/**
+	 * Keys are deleted in chunks of {@value BatchOptions#MAX_CHUNK_SIZE}, all started at once. The future fails
+	 * with the first failed chunk, every key is dropped from the cache either way.
+	 */
+	@Override
+	public CompletableFuture<Void> delete(Iterable<Long> ids) {
+		logger.info("Delete {}: {}", type, ids);
+		final long start = System.nanoTime();
+		final List<Key> keys = new ArrayList<Key>();
+		for (Long id : ids) {
+			keys.add(KeyFactory.createKey(entityName, id));
+		}
+		final List<Future<Void>> rpcs = new ArrayList<Future<Void>>();
+		for (int from = 0; from < keys.size(); from += BatchOptions.MAX_CHUNK_SIZE) {
+			rpcs.add(getAsyncDatastoreService().delete((Transaction) null, keys.subList(from, Math.min(from + BatchOptions.MAX_CHUNK_SIZE, keys.size()))));
+		}
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				for (int i = 0; i < rpcs.size(); i++) {
+					await(rpcs.get(i));
+					rpc(Operation.DELETE, start, Math.min(BatchOptions.MAX_CHUNK_SIZE, keys.size() - i * BatchOptions.MAX_CHUNK_SIZE));
+				}
+			} finally {
+				mapper.cacheInvalidate(keys, type);
+			}
+			record(Operation.DELETE, start, keys.size());
+			return null;
+		}, executor);
+	}
+
+	protected List<T> fromEntities(List<Entity> entities) {
+		try {
+			return mapper.fromDatastoreEntities(entities, type, getDatastoreService());
+		} catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
+			logger.error("fromEntities: {}", e);
+			throw new CompletionException(e);
+		}
+	}
+
+	protected Entity toEntity(T obj) {
+		try {
+			return mapper.toDatastoreEntity(obj, type);
+		} catch (IllegalArgumentException | IllegalAccessException | InvocationTargetException | NoSuchMethodException | InstantiationException e) {
+			logger.error("toEntity: {}", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Waits for the RPC on the executor and maps its result there.
+	 */
+	private <R, V> CompletableFuture<V> complete(final Future<R> rpc, final ResultMapper<R, V> resultMapper) {
+		return CompletableFuture.supplyAsync(() -> resultMapper.map(await(rpc)), executor);
+	}
+
+	private void record(final Operation operation, final long start, final int entities) {
+		mapper.getMetrics().operation(entityName, operation, System.nanoTime() - start, entities);
+	}
+
+	private void rpc(final Operation operation, final long start, final int entities) {
+		mapper.getMetrics().rpc(entityName, operation, System.nanoTime() - start, entities);
+	}
+
+	private static <R> R await(final Future<R> rpc) {
+		try {
+			return rpc.get();
+		} catch (ExecutionException e) {
+			throw new CompletionException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CompletionException(e);
+		}
+	}
+
+	protected String getEntityName() {
+		return entityName;
+	}
+
+	/**
+	 * Reports the calls, RPCs and mapping of this repository to the given metrics instead of the ones of the
+	 * registry.
+	 *
+	 * @see EntityMapper#setMetrics(RepositoryMetrics)
+	 */
+	public void setMetrics(RepositoryMetrics metrics) {
+		mapper.setMetrics(metrics);
+	}
+
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	protected Executor getExecutor() {
+		return executor;
+	}
+
+	protected AsyncDatastoreService getAsyncDatastoreService() {
+		if (this.asyncDatastoreService == null) {
+			synchronized (this) {
+				if (this.asyncDatastoreService == null) {
+					this.asyncDatastoreService = DatastoreServiceFactory.getAsyncDatastoreService();
+				}
+			}
+		}
+		return this.asyncDatastoreService;
+	}
+
+	protected DatastoreService getDatastoreService() {
+		if (this.datastoreService == null) {
+			synchronized (this) {
+				if (this.datastoreService == null) {
+					this.datastoreService = DatastoreServiceFactory.getDatastoreService();
+				}
+			}
+		}
+		return this.datastoreService;
+	}
+
+	private interface ResultMapper<R, V> {
+		V map(R result);
+	}
+
+	/**
+	 * Runs tasks on request threads, at most maxThreads at once for each submitting thread. Threads are created
+	 * on demand and end as soon as nothing is queued, so none of them outlives the request that started it.
+	 */
+	static final class RequestExecutor implements Executor {
+
+		private final int maxThreads;
+
+		private final ThreadLocal<Workers> workers = ThreadLocal.withInitial(Workers::new);
+
+		RequestExecutor(int maxThreads) {
+			this.maxThreads = maxThreads;
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			Workers current = workers.get();
+			synchronized (current) {
+				current.queue.add(command);
+				if (current.running >= maxThreads) return;
+				current.running++;
+			}
+			try {
+				ThreadManager.currentRequestThreadFactory().newThread(current::drain).start();
+			} catch (RuntimeException e) {
+				synchronized (current) {
+					current.running--;
+				}
+				throw e;
+			}
+		}
+
+		private static final class Workers {
+
+			private final Deque<Runnable> queue = new ArrayDeque<Runnable>();
+
+			private int running;
+
+			private void drain() {
+				try {
+					for (;;) {
+						Runnable task;
+						synchronized (this) {
+							task = queue.poll();
+							if (task == null) {
+								running--;
+								return;
+							}
+						}
+						task.run();
+					}
+				} catch (RuntimeException | Error e) {
+					synchronized (this) {
+						running--;
+					}
+					throw e;
+				}
+			}
+		}
+	}
+
+}
@@ -36,6 +36,11 @@ public abstract class AbstractEntity implements Serializable {
 	@Id
 	private Long id;
 	
+	/**
+	 * Snapshot of the properties this object was loaded or last saved with, 0 if unknown.
+	 */
+	private transient long snapshot;
+	
 	public Long getId() {
 		return id;
 	}
@@ -44,8 +49,23 @@ public abstract class AbstractEntity implements Serializable {
 		this.id = key;
 	}
 
+	long getSnapshot() {
+		return snapshot;
+	}
+
+	void setSnapshot(long snapshot) {
+		this.snapshot = snapshot;
+	}
+
 	@Override
 	public int hashCode() {
+		return hash(id);
+	}
+
+	/**
+	 * Hash code of an entity with the given id, shared with lazy proxies so they hash like the entity they load.
+	 */
+	static int hash(Long id) {
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + ((id == null) ? 0 : id.hashCode());
@@ -58,15 +78,23 @@ public abstract class AbstractEntity implements Serializable {
 			return true;
 		if (obj == null)
 			return false;
-		if (getClass() != obj.getClass())
+		if (getEntityClass(this) != getEntityClass(obj))
 			return false;
-		AbstractEntity other = (AbstractEntity) obj;
+		// getter, so lazy proxies answer with their id
+		Long otherId = ((AbstractEntity) obj).getId();
 		if (id == null) {
-			if (other.id != null)
+			if (otherId != null)
 				return false;
-		} else if (!id.equals(other.id))
+		} else if (!id.equals(otherId))
 			return false;
 		return true;
 	}
+
+	/**
+	 * Returns the class of the entity, the proxied one for lazy relation proxies.
+	 */
+	public static Class<?> getEntityClass(Object obj) {
+		return obj instanceof LazyProxy ? obj.getClass().getSuperclass() : obj.getClass();
+	}
 	
 }
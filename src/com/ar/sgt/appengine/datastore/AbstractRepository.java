@@ -27,33 +27,77 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.ar.sgt.appengine.datastore;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.GenericTypeResolver;
 
+import com.ar.sgt.appengine.datastore.annotation.Cached;
+import com.ar.sgt.appengine.datastore.batch.BatchOptions;
+import com.ar.sgt.appengine.datastore.batch.BatchResult;
+import com.ar.sgt.appengine.datastore.batch.ImportOptions;
+import com.ar.sgt.appengine.datastore.batch.ImportResult;
+import com.ar.sgt.appengine.datastore.batch.ScanOptions;
+import com.ar.sgt.appengine.datastore.batch.ScanResult;
+import com.ar.sgt.appengine.datastore.cache.CachePolicy;
+import com.ar.sgt.appengine.datastore.cache.EntityCache;
+import com.ar.sgt.appengine.datastore.cache.QueryCache;
+import com.ar.sgt.appengine.datastore.cache.QueryKeys;
+import com.ar.sgt.appengine.datastore.cache.QueryPage;
+import com.ar.sgt.appengine.datastore.mapping.PropertyMapping;
+import com.ar.sgt.appengine.datastore.metrics.Operation;
+import com.ar.sgt.appengine.datastore.metrics.RepositoryMetrics;
 import com.ar.sgt.appengine.datastore.query.Order;
 import com.ar.sgt.appengine.datastore.query.PageRequest;
 import com.ar.sgt.appengine.datastore.query.PageResult;
 import com.ar.sgt.appengine.datastore.utils.EntityUtils;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.PropertyProjection;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.datastore.Transaction;
 
 public abstract class AbstractRepository<T extends AbstractEntity> implements Repository<T> {
 
+	/**
+	 * Number of entities fetched and mapped together when streaming results.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 100;
+	
+	/**
+	 * Max values of an IN filter.
+	 */
+	private static final int MAX_IN_VALUES = 30;
+	
 	private final String entityName;
 	
 	private final Class<T> type;
@@ -64,13 +108,12 @@ public abstract class AbstractRepository<T extends AbstractEntity> implements Re
 	
 	private DatastoreService datastoreService;
 	
-	private TransactionManager txManager;
+	private volatile AsyncDatastoreService asyncDatastoreService;
 	
 	@SuppressWarnings("unchecked")
 	public AbstractRepository() {
 		this.type = (Class<T>) GenericTypeResolver.resolveTypeArgument(getClass(), AbstractRepository.class);
 		this.entityName = EntityMapper.getEntityName(type);
-		this.txManager = new TransactionManager();
 	}
 	
 	protected T fromEntity(Entity entity) {
@@ -82,6 +125,27 @@ public abstract class AbstractRepository<T extends AbstractEntity> implements Re
 		}
 	}
 
+	protected List<T> fromEntities(List<Entity> entities) {
+		return fromEntities(entities, true);
+	}
+
+	/**
+	 * Maps a chunk of a stream or scan. Those are mapped outside of the open {@link Session}, which would
+	 * otherwise keep every streamed object.
+	 */
+	protected List<T> fromStreamedEntities(List<Entity> entities) {
+		return fromEntities(entities, false);
+	}
+
+	private List<T> fromEntities(List<Entity> entities, boolean session) {
+		try {
+			return mapper.fromDatastoreEntities(entities, type, getDatastoreService(), session);
+		} catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
+			logger.error("fromEntities: {}", e);
+			throw new RuntimeException(e);
+		}
+	}
+
 	protected Entity toEntity(T obj) {
 		try {
 			return mapper.toDatastoreEntity(obj, type);
@@ -94,119 +158,371 @@ public abstract class AbstractRepository<T extends AbstractEntity> implements Re
 	@Override
 	public Optional<T> get(Long id) {
 		logger.info("Load {}: {}", type, id);
-		Entity entity;
+		long start = System.nanoTime();
 		try {
-			entity = getDatastoreService().get(KeyFactory.createKey(entityName, id));
-		} catch (EntityNotFoundException e) {
-			return Optional.ofNullable(null);
+			T object = mapper.load(type, id, getDatastoreService());
+			record(Operation.GET, start, object == null ? 0 : 1);
+			return Optional.ofNullable(object);
+		} catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+			logger.error("get: {}", e);
+			throw new RuntimeException(e);
 		}
-		return Optional.of(fromEntity(entity));
 	}
 
+	/**
+	 * Saves the object, or queues it until the {@link Session} open in this thread is flushed.
+	 */
 	@Override
 	public void save(T obj) {
+		Session session = Session.current();
+		if (session != null) {
+			session.save(obj, type, mapper);
+			return;
+		}
 		save(obj, null);
 	}
 
 	@Override
 	public void save(T obj, Transaction txn) {
 		logger.info("Save {}: {}", type, obj);
+		long start = System.nanoTime();
 		Entity entity = toEntity(obj);
+		if (mapper.skipWrite(obj, entity)) {
+			logger.debug("Save {}: {} unchanged, skipped", type, obj.getId());
+			record(Operation.SAVE, start, 0);
+			return;
+		}
+		long rpcStart = System.nanoTime();
 		if (txn != null) {
 			getDatastoreService().put(txn, entity);	
 		} else {
 			getDatastoreService().put(entity);
 		}
+		rpc(Operation.SAVE, rpcStart, 1);
 		obj.setId(entity.getKey().getId());
+		if (txn != null) {
+			// the transaction may still roll back, don't cache or snapshot what it wrote
+			mapper.cacheInvalidate(Collections.singletonList(entity.getKey()), type);
+			mapper.snapshot(obj, null);
+		} else {
+			mapper.cachePut(Collections.singletonList(entity), type);
+			mapper.snapshot(obj, entity);
+		}
+		record(Operation.SAVE, start, 1);
 	}
 
 	@Override
 	public void save(Iterable<T> it) {
-		int c = 0;
-		Transaction transaction = txManager.beginTransaction(true);
-		try {
-			for (T e : it) {
-				c++;
-				save(e, transaction);
-				if ((c % 20) == 0) {
-					txManager.commit();
-					try {
-						Thread.sleep(1500); // wait before instantiate a new transaction for same entity group
-					} catch (InterruptedException e1) {
-					}
-					transaction = txManager.beginTransaction(true);
+		Session session = Session.current();
+		if (session != null) {
+			for (T obj : it) {
+				session.save(obj, type, mapper);
+			}
+			return;
+		}
+		save(it, BatchOptions.transactional().withStopOnFailure(true)).rethrow();
+	}
+	
+	/**
+	 * Unchanged objects are left out of the chunks when dirty tracking is enabled, failure offsets still refer
+	 * to positions in the given sequence.
+	 */
+	@Override
+	public BatchResult save(Iterable<T> it, BatchOptions options) {
+		long start = System.nanoTime();
+		BatchResult result = new BatchResult();
+		List<T> objects = new ArrayList<T>();
+		List<Entity> entities = new ArrayList<Entity>();
+		List<Integer> positions = new ArrayList<Integer>();
+		int position = 0;
+		for (T obj : it) {
+			Entity entity = toEntity(obj);
+			if (mapper.skipWrite(obj, entity)) {
+				result.skipped(1);
+			} else {
+				objects.add(obj);
+				entities.add(entity);
+				positions.add(position);
+			}
+			position++;
+		}
+		logger.info("Save {}: {} entities, {} unchanged, {}", type, entities.size(), result.getSkipped(), options);
+		for (int from = 0; from < entities.size(); from += options.getChunkSize()) {
+			int to = Math.min(from + options.getChunkSize(), entities.size());
+			List<Entity> chunk = entities.subList(from, to);
+			try {
+				List<Key> keys = put(chunk, options.isTransactional());
+				for (int i = 0; i < keys.size(); i++) {
+					objects.get(from + i).setId(keys.get(i).getId());
+					mapper.snapshot(objects.get(from + i), chunk.get(i));
 				}
+				result.success(chunk.size());
+			} catch (RuntimeException e) {
+				logger.error("Save {}: chunk {}-{} failed: {}", type, positions.get(from), positions.get(to - 1), e);
+				result.failure(positions.get(from), chunk.size(), e);
+				if (options.isStopOnFailure()) break;
 			}
-			if (txManager.isActive()) txManager.commit();
+		}
+		record(Operation.SAVE, start, result.getProcessed());
+		return result;
+	}
+	
+	@Override
+	public BulkImport<T> bulkImport(ImportOptions options) {
+		logger.info("bulkImport {} {}", type, options);
+		return new BulkImport<T>(type, mapper, getDatastoreService(), options);
+	}
+	
+	@Override
+	public ImportResult importAll(Iterable<T> it, ImportOptions options) {
+		try (BulkImport<T> bulk = bulkImport(options)) {
+			for (T obj : it) {
+				bulk.add(obj);
+			}
+			return bulk.finish();
+		}
+	}
+	
+	private List<Key> put(List<Entity> chunk, boolean transactional) {
+		long start = System.nanoTime();
+		if (!transactional) {
+			// explicit null so the chunk doesn't join a transaction active on this thread
+			List<Key> keys = getDatastoreService().put((Transaction) null, chunk);
+			rpc(Operation.SAVE, start, chunk.size());
+			mapper.cachePut(chunk, type);
+			return keys;
+		}
+		TransactionManager txManager = new TransactionManager();
+		Transaction transaction = txManager.beginTransaction(true);
+		try {
+			List<Key> keys = getDatastoreService().put(transaction, chunk);
+			txManager.commit();
+			rpc(Operation.SAVE, start, chunk.size());
+			mapper.cachePut(chunk, type);
+			return keys;
 		} finally {
 			if (txManager.isActive()) txManager.rollback();
 		}
-		
 	}
 	
 	@Override
 	public List<T> findAll() {
 		logger.info("findAll {}", type);
+		long start = System.nanoTime();
 		Query query = new Query(entityName);
 		
 		PreparedQuery pq = getDatastoreService().prepare(query);
 		
-		List<T> objects = new ArrayList<T>();
-		
-		for (Entity entity : pq.asIterable()) {
-			objects.add(fromEntity(entity));
-		}
-		
+		List<T> objects = fromEntities(fetch(pq, FetchOptions.Builder.withDefaults()));
+		record(Operation.FIND, start, objects.size());
 		return objects;
 	}
 
 	@Override
 	public PageResult<T> findAll(final PageRequest pageRequest) {
 		logger.info("findAll {} {}", type, pageRequest);
-		Query query = new Query(entityName);
+		return findPage(new Query(entityName), pageRequest);
+	}
+
+	@Override
+	public PageResult<T> find(final Query query, final PageRequest pageRequest) {
+		logger.info("find {} {}", type, pageRequest);
+		return findPage(query, pageRequest);
+	}
+	
+	private PageResult<T> findPage(final Query query, final PageRequest pageRequest) {
+		long start = System.nanoTime();
 		if (pageRequest.getOrder() != null) {
 			query.addSort(EntityUtils.getFieldName(type, pageRequest.getOrder().getFieldName()), pageRequest.getOrder().getDirection());
 		}
 		
+		int expiration = mapper.getRegistry().getQueryExpiration(type);
+		QueryCache queryCache = null;
+		String cacheKey = null;
+		long version = 0;
+		if (expiration > 0 && entityName.equals(query.getKind()) && query.getProjections().isEmpty() && !query.isKeysOnly()) {
+			queryCache = mapper.getRegistry().getQueryCache();
+			cacheKey = QueryKeys.of(query, pageRequest);
+			version = queryCache.getVersion(entityName);
+			QueryPage page = queryCache.get(entityName, version, cacheKey);
+			if (page != null) {
+				List<T> objects = load(page.getKeys());
+				record(Operation.FIND, start, objects.size());
+				return new PageResult<>(objects, page.getCursor());
+			}
+		}
+		
 		PreparedQuery pq = getDatastoreService().prepare(query);
 		
-		List<T> objects = new ArrayList<T>();
-
 		FetchOptions fetchOptions = buildFetchOptions(pageRequest);
 		
-		QueryResultList<Entity> results = pq.asQueryResultList(fetchOptions);
+		QueryResultList<Entity> results = fetchPage(pq, fetchOptions);
+		
+		String cursor = cursorOf(results);
+		if (queryCache != null) {
+			List<Key> keys = new ArrayList<Key>(results.size());
+			for (Entity entity : results) {
+				keys.add(entity.getKey());
+			}
+			queryCache.put(entityName, version, cacheKey, QueryPage.of(keys, cursor), expiration);
+		}
 
-		for (Entity entity : results) {
-			objects.add(fromEntity(entity));
+		List<T> objects = fromEntities(results);
+		record(Operation.FIND, start, objects.size());
+		return new PageResult<>(objects, cursor);
+	}
+	
+	/**
+	 * Runs the query and fetches every result, so its RPCs are measured here rather than while mapping.
+	 */
+	private List<Entity> fetch(final PreparedQuery pq, final FetchOptions fetchOptions) {
+		long start = System.nanoTime();
+		List<Entity> entities = pq.asList(fetchOptions);
+		rpc(Operation.FIND, start, entities.size());
+		return entities;
+	}
+	
+	private QueryResultList<Entity> fetchPage(final PreparedQuery pq, final FetchOptions fetchOptions) {
+		long start = System.nanoTime();
+		QueryResultList<Entity> entities = pq.asQueryResultList(fetchOptions);
+		rpc(Operation.FIND, start, entities.size());
+		return entities;
+	}
+	
+	private void record(final Operation operation, final long start, final int entities) {
+		mapper.getMetrics().operation(entityName, operation, System.nanoTime() - start, entities);
+	}
+	
+	private void rpc(final Operation operation, final long start, final int entities) {
+		mapper.getMetrics().rpc(entityName, operation, System.nanoTime() - start, entities);
+		AccessTracker.call(operation, entityName, entities);
+	}
+	
+	/**
+	 * Loads the entities of a cached page with one batch get, in the order of the keys. Entities deleted
+	 * since the page was cached are left out.
+	 */
+	private List<T> load(final List<Key> keys) {
+		List<Long> ids = new ArrayList<Long>(keys.size());
+		for (Key key : keys) {
+			ids.add(key.getId());
+		}
+		try {
+			Map<Long, Object> loaded = mapper.loadAll(type, ids, getDatastoreService());
+			List<T> objects = new ArrayList<T>(ids.size());
+			for (Long id : ids) {
+				Object object = loaded.get(id);
+				if (object != null) objects.add(type.cast(object));
+			}
+			return objects;
+		} catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+			logger.error("load: {}", e);
+			throw new RuntimeException(e);
 		}
-		
-		return new PageResult<>(objects, results.getCursor().toWebSafeString());
 	}
-
+	
 	@Override
-	public PageResult<T> find(final Query query, final PageRequest pageRequest) {
-		logger.info("find {} {}", type, pageRequest);
-
+	public List<Long> findIds(final Query query) {
+		logger.info("findIds {} {}", type, query);
+		long start = System.nanoTime();
+		checkKind(query);
+		query.setKeysOnly();
+		PreparedQuery pq = getDatastoreService().prepare(query);
+		List<Long> ids = new ArrayList<Long>();
+		for (Entity entity : pq.asIterable(FetchOptions.Builder.withChunkSize(DEFAULT_CHUNK_SIZE))) {
+			ids.add(entity.getKey().getId());
+		}
+		rpc(Operation.FIND, start, ids.size());
+		record(Operation.FIND, start, ids.size());
+		return ids;
+	}
+	
+	@Override
+	public boolean exists(final Long... ids) {
+		logger.info("exists {} {}", type, ids);
+		if (ids.length == 0) return false;
+		long start = System.nanoTime();
+		Set<Key> keys = new LinkedHashSet<Key>();
+		for (Long id : ids) {
+			if (id == null) return false;
+			keys.add(KeyFactory.createKey(entityName, id));
+		}
+		List<Key> all = new ArrayList<Key>(keys);
+		int found = 0;
+		for (int i = 0; i < all.size(); i += MAX_IN_VALUES) {
+			List<Key> chunk = all.subList(i, Math.min(i + MAX_IN_VALUES, all.size()));
+			Query query = new Query(entityName).setKeysOnly();
+			if (chunk.size() == 1) {
+				query.setFilter(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY, FilterOperator.EQUAL, chunk.get(0)));
+			} else {
+				query.setFilter(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY, FilterOperator.IN, chunk));
+			}
+			long rpcStart = System.nanoTime();
+			found += getDatastoreService().prepare(query).countEntities(FetchOptions.Builder.withLimit(chunk.size()));
+			rpc(Operation.FIND, rpcStart, chunk.size());
+		}
+		record(Operation.FIND, start, found);
+		return found == all.size();
+	}
+	
+	@Override
+	public <D> List<D> findProjection(final Query query, final Class<D> projection) {
+		logger.info("findProjection {} {} {}", type, projection, query);
+		long start = System.nanoTime();
+		PreparedQuery pq = getDatastoreService().prepare(withProjection(query, projection));
+		List<D> objects = fromProjections(fetch(pq, FetchOptions.Builder.withDefaults()), projection);
+		record(Operation.FIND, start, objects.size());
+		return objects;
+	}
+	
+	@Override
+	public <D> PageResult<D> findProjection(final Query query, final Class<D> projection, final PageRequest pageRequest) {
+		logger.info("findProjection {} {} {}", type, projection, pageRequest);
+		long start = System.nanoTime();
 		if (pageRequest.getOrder() != null) {
 			query.addSort(EntityUtils.getFieldName(type, pageRequest.getOrder().getFieldName()), pageRequest.getOrder().getDirection());
 		}
-		
-		PreparedQuery pq = getDatastoreService().prepare(query);
-		
-		List<T> objects = new ArrayList<T>();
-
-		FetchOptions fetchOptions = buildFetchOptions(pageRequest);
-		
-		QueryResultList<Entity> results = pq.asQueryResultList(fetchOptions);
-
-		for (Entity entity : results) {
-			objects.add(fromEntity(entity));
+		PreparedQuery pq = getDatastoreService().prepare(withProjection(query, projection));
+		QueryResultList<Entity> results = fetchPage(pq, buildFetchOptions(pageRequest));
+		List<D> objects = fromProjections(results, projection);
+		record(Operation.FIND, start, objects.size());
+		return new PageResult<>(objects, cursorOf(results));
+	}
+	
+	private Query withProjection(final Query query, final Class<?> projection) {
+		checkKind(query);
+		if (query.getProjections().isEmpty()) {
+			for (PropertyMapping property : mapper.getMapping(projection).getProperties()) {
+				query.addProjection(new PropertyProjection(property.getPropertyName(), null));
+			}
+		}
+		return query;
+	}
+	
+	private <D> List<D> fromProjections(final List<Entity> entities, final Class<D> projection) {
+		try {
+			return mapper.fromProjections(entities, projection);
+		} catch (IllegalAccessException | InvocationTargetException | InstantiationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private void checkKind(final Query query) {
+		if (!entityName.equals(query.getKind())) {
+			throw new IllegalArgumentException("Query kind " + query.getKind() + " doesn't match " + entityName);
 		}
-		
-		return new PageResult<>(objects, results.getCursor().toWebSafeString());
 	}
 	
-	private FetchOptions buildFetchOptions(final PageRequest pageRequest) {
+	/**
+	 * @return the web safe cursor after the results, or null for queries run as several queries, like NOT_EQUAL
+	 * and IN filters, which have no cursor
+	 */
+	static String cursorOf(final QueryResultList<?> results) {
+		Cursor cursor = results.getCursor();
+		return cursor != null ? cursor.toWebSafeString() : null;
+	}
+
+	static FetchOptions buildFetchOptions(final PageRequest pageRequest) {
 		FetchOptions fetchOptions = FetchOptions.Builder.withLimit(pageRequest.getPageSize());
 		if (pageRequest.getCursor() != null && !"".equalsIgnoreCase(pageRequest.getCursor())) {
 			fetchOptions.startCursor(Cursor.fromWebSafeString(pageRequest.getCursor()));
@@ -221,29 +537,58 @@ public abstract class AbstractRepository<T extends AbstractEntity> implements Re
 		return new IterableEntity<T>(pq);
 	}
 	
+	@Override
+	public Stream<T> stream() {
+		return stream(new Query(entityName), FetchOptions.Builder.withChunkSize(DEFAULT_CHUNK_SIZE));
+	}
+	
+	@Override
+	public Stream<T> stream(final Query query, final FetchOptions fetchOptions) {
+		logger.info("stream {} {}", type, query);
+		PreparedQuery pq = getDatastoreService().prepare(query);
+		Iterator<T> iterator = new IterableEntity<T>(pq, fetchOptions).iterator();
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+	
+	@Override
+	public ScanResult scan(final Consumer<? super T> consumer, final ScanOptions options) {
+		logger.info("scan {} {}", type, options);
+		return new ParallelScan<T>(getDatastoreService(), entityName, this::fromStreamedEntities, mapper.getMetrics(), options).run(consumer);
+	}
+	
 	@Override
 	public List<T> findAll(Order order) {
 		logger.info("findAll {}", type);
+		long start = System.nanoTime();
 		Query query = new Query(entityName);
 		query.addSort(EntityUtils.getFieldName(type, order.getFieldName()), order.getDirection());
 		
 		PreparedQuery pq = getDatastoreService().prepare(query);
 
-		List<T> objects = new ArrayList<T>();
-		
-		for (Entity entity : pq.asIterable()) {
-			objects.add(fromEntity(entity));
-		}
-		
+		List<T> objects = fromEntities(fetch(pq, FetchOptions.Builder.withDefaults()));
+		record(Operation.FIND, start, objects.size());
 		return objects;
 
 	}
 	
+	/**
+	 * Deletes the entity, or queues the delete until the {@link Session} open in this thread is flushed.
+	 */
 	@Override
 	public void delete(Long id) {
 		logger.info("Delete {}: {}", type, id);
+		Session session = Session.current();
+		if (session != null) {
+			if (id != null) session.delete(KeyFactory.createKey(entityName, id), type, mapper);
+			return;
+		}
 		if (id != null) {
-			getDatastoreService().delete(KeyFactory.createKey(entityName, id));
+			long start = System.nanoTime();
+			Key key = KeyFactory.createKey(entityName, id);
+			getDatastoreService().delete(key);
+			rpc(Operation.DELETE, start, 1);
+			mapper.cacheInvalidate(Collections.singletonList(key), type);
+			record(Operation.DELETE, start, 1);
 		}
 	}
 
@@ -251,18 +596,191 @@ public abstract class AbstractRepository<T extends AbstractEntity> implements Re
 	public void delete(Long id, Transaction txn) {
 		logger.info("Delete {}: {}", type, id);
 		if (id != null) {
-			getDatastoreService().delete(txn, KeyFactory.createKey(entityName, id));
+			long start = System.nanoTime();
+			Key key = KeyFactory.createKey(entityName, id);
+			getDatastoreService().delete(txn, key);
+			rpc(Operation.DELETE, start, 1);
+			mapper.cacheInvalidate(Collections.singletonList(key), type);
+			record(Operation.DELETE, start, 1);
 		}
 	}
 	
 	@Override
 	public void delete(Iterable<Long> idList) {
-		logger.info("Delete {}: {}", type, idList);
+		Session session = Session.current();
+		if (session != null) {
+			for (Long id : idList) {
+				session.delete(KeyFactory.createKey(entityName, id), type, mapper);
+			}
+			return;
+		}
+		delete(idList, BatchOptions.nonTransactional().withStopOnFailure(true)).rethrow();
+	}
+	
+	@Override
+	public BatchResult delete(Iterable<Long> idList, BatchOptions options) {
+		logger.info("Delete {}: {}, {}", type, idList, options);
+		final Iterator<Long> ids = idList.iterator();
+		return deleteKeys(new Iterator<Key>() {
+			@Override
+			public boolean hasNext() {
+				return ids.hasNext();
+			}
+			@Override
+			public Key next() {
+				return KeyFactory.createKey(entityName, ids.next());
+			}
+		}, options);
+	}
+	
+	@Override
+	public BatchResult deleteWhere(Query query) {
+		return deleteWhere(query, BatchOptions.nonTransactional());
+	}
+	
+	@Override
+	public BatchResult deleteWhere(Query query, BatchOptions options) {
+		logger.info("deleteWhere {} {}, {}", type, query, options);
+		checkKind(query);
+		query.setKeysOnly();
+		PreparedQuery pq = getDatastoreService().prepare(query);
+		final Iterator<Entity> results = pq.asIterator(FetchOptions.Builder.withChunkSize(options.getChunkSize()));
+		return deleteKeys(new Iterator<Key>() {
+			@Override
+			public boolean hasNext() {
+				return results.hasNext();
+			}
+			@Override
+			public Key next() {
+				return results.next().getKey();
+			}
+		}, options);
+	}
+	
+	private BatchResult deleteKeys(final Iterator<Key> keys, final BatchOptions options) {
+		long start = System.nanoTime();
+		BatchResult result = new BatchResult();
+		Deque<PendingChunk> inFlight = new ArrayDeque<PendingChunk>();
+		List<Key> chunk = new ArrayList<Key>(options.getChunkSize());
+		int offset = 0;
+		while (keys.hasNext() && (result.isSuccess() || !options.isStopOnFailure())) {
+			chunk.add(keys.next());
+			if (chunk.size() == options.getChunkSize() || !keys.hasNext()) {
+				if (options.isTransactional()) {
+					delete(chunk, offset, result);
+				} else if (options.getParallelism() > 1) {
+					if (inFlight.size() >= options.getParallelism()) {
+						inFlight.poll().await(result);
+					}
+					inFlight.add(new PendingChunk(getAsyncDatastoreService().delete((Transaction) null, chunk), chunk, offset));
+				} else {
+					try {
+						long rpcStart = System.nanoTime();
+						getDatastoreService().delete((Transaction) null, chunk);
+						rpc(Operation.DELETE, rpcStart, chunk.size());
+						result.success(chunk.size());
+					} catch (RuntimeException e) {
+						logger.error("Delete {}: chunk at {} failed: {}", type, offset, e);
+						result.failure(offset, chunk.size(), e);
+					} finally {
+						mapper.cacheInvalidate(chunk, type);
+					}
+				}
+				offset += chunk.size();
+				chunk = new ArrayList<Key>(options.getChunkSize());
+			}
+		}
+		while (!inFlight.isEmpty()) {
+			inFlight.poll().await(result);
+		}
+		record(Operation.DELETE, start, result.getProcessed());
+		return result;
+	}
+	
+	private void delete(List<Key> chunk, int offset, BatchResult result) {
+		TransactionManager txManager = new TransactionManager();
 		Transaction transaction = txManager.beginTransaction(true);
-		for (Long id : idList) {
-			getDatastoreService().delete(transaction, KeyFactory.createKey(entityName, id));	
+		try {
+			long start = System.nanoTime();
+			getDatastoreService().delete(transaction, chunk);
+			txManager.commit();
+			rpc(Operation.DELETE, start, chunk.size());
+			result.success(chunk.size());
+		} catch (RuntimeException e) {
+			logger.error("Delete {}: chunk at {} failed: {}", type, offset, e);
+			result.failure(offset, chunk.size(), e);
+		} finally {
+			if (txManager.isActive()) txManager.rollback();
+			mapper.cacheInvalidate(chunk, type);
 		}
-		txManager.commit();
+	}
+	
+	/**
+	 * Sets the cache used for cached kinds, shared by the relations this repository loads.
+	 *
+	 * @see EntityMapper#setCache(EntityCache)
+	 */
+	public void setCache(EntityCache cache) {
+		mapper.setCache(cache);
+	}
+	
+	/**
+	 * Caches this repository kind with the given policy, overriding its {@link Cached} annotation. The policy
+	 * is registered for the entity class, so relations to it loaded by other repositories are cached too.
+	 */
+	public void setCachePolicy(CachePolicy policy) {
+		mapper.getRegistry().setCachePolicy(type, policy);
+	}
+	
+	/**
+	 * Caches the pages returned by {@link #find(Query, PageRequest)} and {@link #findAll(PageRequest)} for up
+	 * to the given seconds, 0 to stop caching them. Only the keys of a page are cached, its entities are
+	 * loaded with a batch get, from the entity cache if the kind is cached too.
+	 *
+	 * @see com.ar.sgt.appengine.datastore.mapping.MappingRegistry#setQueryExpiration(Class, int)
+	 */
+	public void setQueryExpiration(int expiration) {
+		mapper.getRegistry().setQueryExpiration(type, expiration);
+	}
+	
+	/**
+	 * @see EntityMapper#setLazyBatchSize(int)
+	 */
+	public void setLazyBatchSize(int lazyBatchSize) {
+		mapper.setLazyBatchSize(lazyBatchSize);
+	}
+	
+	/**
+	 * @see EntityMapper#setDirtyTracking(boolean)
+	 */
+	public void setDirtyTracking(boolean dirtyTracking) {
+		mapper.setDirtyTracking(dirtyTracking);
+	}
+	
+	/**
+	 * @return number of saves skipped by this repository because the entity didn't change
+	 */
+	public long getSkippedWrites() {
+		return mapper.getSkippedWrites();
+	}
+	
+	/**
+	 * Reports the calls, RPCs and mapping of this repository, and of the relations it loads, to the given metrics
+	 * instead of the ones of the registry.
+	 *
+	 * @see EntityMapper#setMetrics(RepositoryMetrics)
+	 */
+	public void setMetrics(RepositoryMetrics metrics) {
+		mapper.setMetrics(metrics);
+	}
+	
+	/**
+	 * Opt in parallel mapping of result pages of at least threshold entities.
+	 *
+	 * @see EntityMapper#setParallelMapping(ExecutorService, int)
+	 */
+	public void setParallelMapping(ExecutorService executor, int threshold) {
+		mapper.setParallelMapping(executor, threshold);
 	}
 	
 	protected String getEntityName() {
@@ -283,38 +801,121 @@ public abstract class AbstractRepository<T extends AbstractEntity> implements Re
 		return this.datastoreService;
 	}
 
+	protected AsyncDatastoreService getAsyncDatastoreService() {
+		if (this.asyncDatastoreService == null) {
+			synchronized (this) {
+				if (this.asyncDatastoreService == null) {
+					this.asyncDatastoreService = DatastoreServiceFactory.getAsyncDatastoreService();
+				}
+			}
+		}
+		return this.asyncDatastoreService;
+	}
+
+	private class PendingChunk {
+
+		private final Future<Void> future;
+
+		private final List<Key> keys;
+
+		private final int offset;
+
+		private final int count;
+
+		private final long start = System.nanoTime();
+
+		PendingChunk(Future<Void> future, List<Key> keys, int offset) {
+			this.future = future;
+			this.keys = keys;
+			this.offset = offset;
+			this.count = keys.size();
+		}
+
+		/**
+		 * Waits for the delete; its RPC time runs from when it was started to when this call returns, so it also
+		 * counts the wait behind earlier chunks.
+		 */
+		void await(BatchResult result) {
+			try {
+				future.get();
+				rpc(Operation.DELETE, start, count);
+				result.success(count);
+			} catch (ExecutionException e) {
+				logger.error("Delete {}: chunk at {} failed: {}", type, offset, e.getCause());
+				result.failure(offset, count, e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				result.failure(offset, count, new RuntimeException(e));
+			} finally {
+				mapper.cacheInvalidate(keys, type);
+			}
+		}
+	}
+
+	/**
+	 * Maps entities in chunks as they are pulled from the query, so memory stays bounded to one chunk and
+	 * relations of each chunk are loaded in batch.
+	 */
 	protected class EntityIterator<E> implements Iterator<E> {
 
-		private Iterator<Entity> iterator;
+		private final Iterator<Entity> iterator;
+		
+		private final int chunkSize;
+		
+		private Iterator<T> current = Collections.emptyIterator();
 		
 		public EntityIterator(Iterator<Entity> iterator) {
+			this(iterator, DEFAULT_CHUNK_SIZE);
+		}
+		
+		public EntityIterator(Iterator<Entity> iterator, int chunkSize) {
 			this.iterator = iterator;
+			this.chunkSize = chunkSize;
 		}
 		
 		@Override
 		public boolean hasNext() {
-			return this.iterator.hasNext();
+			return this.current.hasNext() || this.iterator.hasNext();
 		}
 
 		@SuppressWarnings("unchecked")
 		@Override
 		public E next() {
-			return (E) fromEntity(this.iterator.next());
+			if (!this.current.hasNext()) {
+				List<Entity> chunk = new ArrayList<Entity>(chunkSize);
+				while (chunk.size() < chunkSize && this.iterator.hasNext()) {
+					chunk.add(this.iterator.next());
+				}
+				if (chunk.isEmpty()) throw new NoSuchElementException();
+				this.current = fromStreamedEntities(chunk).iterator();
+			}
+			return (E) this.current.next();
 		}
 		
 	}
 	
+	/**
+	 * Runs the query again on every call to {@link #iterator()}, so it can be iterated more than once.
+	 */
 	protected class IterableEntity<E> implements Iterable<E> {
 
-		private final Iterator<E> iterator;
+		private final PreparedQuery pq;
+		
+		private final FetchOptions fetchOptions;
 		
 		public IterableEntity(final PreparedQuery pq) {
-			this.iterator = new EntityIterator<E>(pq.asIterator());
+			this(pq, FetchOptions.Builder.withChunkSize(DEFAULT_CHUNK_SIZE));
+		}
+		
+		public IterableEntity(final PreparedQuery pq, final FetchOptions fetchOptions) {
+			this.pq = pq;
+			this.fetchOptions = fetchOptions;
 		}
 		
 		@Override
 		public Iterator<E> iterator() {
-			return this.iterator;
+			Integer chunkSize = fetchOptions.getChunkSize();
+			return new EntityIterator<E>(pq.asIterator(fetchOptions), chunkSize != null ? chunkSize : DEFAULT_CHUNK_SIZE);
 		}
 	}
 	
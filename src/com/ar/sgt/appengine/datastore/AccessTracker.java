@@ -0,0 +1,249 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ar.sgt.appengine.datastore.mapping.GeneratedMapper;
+import com.ar.sgt.appengine.datastore.metrics.AccessException;
+import com.ar.sgt.appengine.datastore.metrics.AccessIssue;
+import com.ar.sgt.appengine.datastore.metrics.AccessPolicy;
+import com.ar.sgt.appengine.datastore.metrics.Operation;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Records the datastore calls made through repositories, relation loading, lazy proxies and sessions on the
+ * current thread, and reports the access patterns that usually mean a slow request: repeated single key gets
+ * of a kind, keys fetched more than once, oversized queries and too many RPCs. Opt in, usually for a request
+ * or a test:
+ * <pre>
+ * try (AccessTracker tracker = AccessTracker.open(AccessPolicy.failing())) {
+ *     ...
+ * }
+ * </pre>
+ * Each call is attributed to the library method that made it and the application code that called it, read
+ * from the stack, so tracking is meant for development, tests or sampled requests. Calls made by other threads,
+ * like parallel scans, imports and asynchronous repositories, are not recorded.
+ */
+public class AccessTracker implements AutoCloseable {
+
+	private static final ThreadLocal<AccessTracker> CURRENT = new ThreadLocal<AccessTracker>();
+
+	private static final String LIBRARY_PACKAGE = "com.ar.sgt.appengine.datastore.";
+
+	private static final String PROXY_MARKER = "$$EnhancerByCGLIB$$";
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final AccessPolicy policy;
+
+	private final List<Call> calls = new ArrayList<Call>();
+
+	private final List<AccessIssue> issues = new ArrayList<AccessIssue>();
+
+	private final Set<Key> loaded = new HashSet<Key>();
+
+	private final Map<String, Integer> singleGets = new HashMap<String, Integer>();
+
+	private final Map<String, Integer> duplicates = new HashMap<String, Integer>();
+
+	private final Set<String> reported = new HashSet<String>();
+
+	private AccessTracker(AccessPolicy policy) {
+		this.policy = policy;
+	}
+
+	public static AccessTracker open() {
+		return open(AccessPolicy.logging());
+	}
+
+	public static AccessTracker open(AccessPolicy policy) {
+		if (CURRENT.get() != null) throw new IllegalStateException("An access tracker is already open in this thread");
+		AccessTracker tracker = new AccessTracker(policy);
+		CURRENT.set(tracker);
+		return tracker;
+	}
+
+	/**
+	 * @return the tracker open in the current thread, or null
+	 */
+	public static AccessTracker current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Records a batch get of the given keys, if a tracker is open in this thread.
+	 */
+	static void get(final List<Key> keys) {
+		AccessTracker tracker = CURRENT.get();
+		if (tracker != null) tracker.recordGet(keys);
+	}
+
+	/**
+	 * Records a put, delete or query of the given kind, if a tracker is open in this thread.
+	 */
+	static void call(final Operation operation, final String kind, final int entities) {
+		AccessTracker tracker = CURRENT.get();
+		if (tracker != null) tracker.record(operation, kind, entities);
+	}
+
+	private synchronized void recordGet(final List<Key> keys) {
+		String kind = keys.get(0).getKind();
+		String origin = record(Operation.GET, kind, keys.size());
+		if (keys.size() == 1) {
+			int count = singleGets.merge(kind, 1, Integer::sum);
+			if (count >= policy.getSingleGets()) report(AccessIssue.Type.REPEATED_GET, kind, count, origin);
+		}
+		for (Key key : keys) {
+			if (!loaded.add(key)) {
+				int count = duplicates.merge(key.getKind(), 1, Integer::sum);
+				report(AccessIssue.Type.DUPLICATE_LOAD, key.getKind(), count, origin);
+			}
+		}
+	}
+
+	private synchronized String record(final Operation operation, final String kind, final int entities) {
+		Call call = new Call(operation, kind, entities, origin());
+		calls.add(call);
+		if (operation == Operation.FIND && entities > policy.getMaxResults()) {
+			report(AccessIssue.Type.LARGE_QUERY, kind, entities, call.origin);
+		}
+		if (calls.size() > policy.getMaxRpcs()) {
+			report(AccessIssue.Type.TOO_MANY_RPCS, kind, calls.size(), call.origin);
+		}
+		return call.origin;
+	}
+
+	/**
+	 * Reports an issue the first time it's found for its kind, large queries once per origin.
+	 */
+	private void report(final AccessIssue.Type type, final String kind, final int count, final String origin) {
+		String id = type == AccessIssue.Type.TOO_MANY_RPCS ? type.name() : type + ":" + kind + (type == AccessIssue.Type.LARGE_QUERY ? ":" + origin : "");
+		if (!reported.add(id)) return;
+		AccessIssue issue = new AccessIssue(type, kind, count, origin);
+		issues.add(issue);
+		logger.warn("Datastore access issue: {}", issue);
+		if (policy.getListener() != null) policy.getListener().accept(issue);
+		if (policy.isFail()) throw new AccessException(issue);
+	}
+
+	/**
+	 * Walks the stack out of the library: the outermost library frame is the method called by the application,
+	 * or the getter of a lazy proxy, and the frame after it is the application code.
+	 */
+	private static String origin() {
+		StackTraceElement method = null;
+		for (StackTraceElement frame : new Throwable().getStackTrace()) {
+			String className = frame.getClassName();
+			if (className.startsWith(LIBRARY_PACKAGE) || className.contains(PROXY_MARKER)) {
+				method = frame;
+			} else if (!isPlatform(className)) {
+				return describe(method) + " called from " + frame;
+			}
+		}
+		return describe(method);
+	}
+
+	private static boolean isPlatform(final String className) {
+		return className.startsWith("java.") || className.startsWith("javax.") || className.startsWith("sun.") || className.startsWith("jdk.")
+				|| className.startsWith("com.google.") || className.startsWith("net.sf.cglib.") || className.endsWith(GeneratedMapper.SUFFIX);
+	}
+
+	private static String describe(final StackTraceElement frame) {
+		if (frame == null) return "unknown";
+		String className = frame.getClassName();
+		int proxy = className.indexOf(PROXY_MARKER);
+		if (proxy > 0) return "lazy " + simpleName(className.substring(0, proxy)) + "." + frame.getMethodName();
+		return simpleName(className) + "." + frame.getMethodName();
+	}
+
+	private static String simpleName(final String className) {
+		return className.substring(className.lastIndexOf('.') + 1);
+	}
+
+	/**
+	 * @return the calls recorded so far, as "operation kind x entities in origin"
+	 */
+	public synchronized List<String> getCalls() {
+		List<String> result = new ArrayList<String>(calls.size());
+		for (Call call : calls) {
+			result.add(call.toString());
+		}
+		return result;
+	}
+
+	public synchronized int getRpcCount() {
+		return calls.size();
+	}
+
+	public synchronized List<AccessIssue> getIssues() {
+		return Collections.unmodifiableList(new ArrayList<AccessIssue>(issues));
+	}
+
+	/**
+	 * Unbinds the tracker from the thread, logging a summary of the calls made.
+	 */
+	@Override
+	public void close() {
+		if (CURRENT.get() == this) CURRENT.remove();
+		logger.info("Datastore access: {} RPCs, {} issues", getRpcCount(), getIssues().size());
+	}
+
+	private static class Call {
+
+		private final Operation operation;
+
+		private final String kind;
+
+		private final int entities;
+
+		private final String origin;
+
+		Call(Operation operation, String kind, int entities, String origin) {
+			this.operation = operation;
+			this.kind = kind;
+			this.entities = entities;
+			this.origin = origin;
+		}
+
+		@Override
+		public String toString() {
+			return operation + " " + kind + " x" + entities + " in " + origin;
+		}
+
+	}
+
+}
@@ -0,0 +1,71 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import com.ar.sgt.appengine.datastore.query.Order;
+import com.ar.sgt.appengine.datastore.query.PageRequest;
+import com.ar.sgt.appengine.datastore.query.PageResult;
+import com.google.appengine.api.datastore.Query;
+
+/**
+ * Non blocking counterpart of {@link Repository}. Every call issues its datastore RPC right away and returns,
+ * so independent lookups can run concurrently and be combined with the usual {@link CompletableFuture} operators.
+ */
+public interface AsyncRepository<T extends AbstractEntity> {
+
+	CompletableFuture<Optional<T>> get(Long id);
+
+	/**
+	 * Loads all the given ids with a single batch get. Ids not found are missing from the result.
+	 */
+	CompletableFuture<Map<Long, T>> get(Iterable<Long> ids);
+
+	/**
+	 * @return a future completed with the saved object, once its id was set
+	 */
+	CompletableFuture<T> save(T obj);
+
+	CompletableFuture<List<T>> saveAll(Iterable<T> it);
+
+	CompletableFuture<List<T>> findAll();
+
+	CompletableFuture<List<T>> findAll(Order order);
+
+	CompletableFuture<PageResult<T>> findAll(PageRequest pageRequest);
+
+	CompletableFuture<PageResult<T>> find(Query query, PageRequest pageRequest);
+
+	CompletableFuture<Void> delete(Long id);
+
+	CompletableFuture<Void> delete(Iterable<Long> ids);
+
+}
@@ -0,0 +1,396 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ar.sgt.appengine.datastore.batch.ImportOptions;
+import com.ar.sgt.appengine.datastore.batch.ImportResult;
+import com.ar.sgt.appengine.datastore.metrics.Operation;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Pipeline writing a large number of objects. Added objects wait in a bounded queue for the mapping workers,
+ * mapped entities are grouped in batches by count and serialized size and written by concurrent writers:
+ * <pre>
+ * try (BulkImport&lt;Person&gt; bulk = personRepository.bulkImport(ImportOptions.on(executor))) {
+ *     for (Person person : parse(file)) {
+ *         bulk.add(person);
+ *     }
+ *     logger.info("{}", bulk.finish());
+ * }
+ * </pre>
+ * Every stage blocks when the next one falls behind, so memory stays bounded however fast objects are added.
+ * Failed objects and batches are counted in the {@link ImportResult}, the import goes on. New entities get
+ * their ids allocated before their batch is written, so a retried put doesn't create them twice. If a stage
+ * dies, i.e. on an Error, the other stages are cancelled and {@link #add(AbstractEntity)} and {@link #finish()}
+ * throw its failure instead of waiting.
+ */
+public class BulkImport<T extends AbstractEntity> implements AutoCloseable {
+
+	/**
+	 * Time a partial batch waits for more entities before it's written anyway.
+	 */
+	private static final long LINGER_MILLIS = 100;
+
+	private static final Object END = new Object();
+
+	private final Item endItem = new Item(null, null, 0);
+
+	private final List<Item> endBatch = new ArrayList<Item>(0);
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final Class<T> type;
+
+	private final EntityMapper mapper;
+
+	private final DatastoreService datastoreService;
+
+	private final ImportOptions options;
+
+	private final ImportResult result = new ImportResult();
+
+	private final BlockingQueue<Object> objects;
+
+	private final BlockingQueue<Item> entities;
+
+	private final BlockingQueue<List<Item>> batches;
+
+	private final List<Future<?>> stages = new ArrayList<Future<?>>();
+
+	private boolean finished;
+
+	private volatile Throwable failure;
+
+	BulkImport(Class<T> type, EntityMapper mapper, DatastoreService datastoreService, ImportOptions options) {
+		this.type = type;
+		this.mapper = mapper;
+		this.datastoreService = datastoreService;
+		this.options = options;
+		this.objects = new ArrayBlockingQueue<Object>(options.getQueueSize());
+		this.entities = new ArrayBlockingQueue<Item>(options.getQueueSize());
+		this.batches = new ArrayBlockingQueue<List<Item>>(options.getWriters());
+		for (int i = 0; i < options.getMappers(); i++) {
+			start(this::map);
+		}
+		start(this::batch);
+		for (int i = 0; i < options.getWriters(); i++) {
+			start(this::write);
+		}
+	}
+
+	private void start(final Callable<Void> stage) {
+		Future<Void> future = options.getExecutor().submit(() -> {
+			try {
+				return stage.call();
+			} catch (Throwable e) {
+				fail(e);
+				throw e;
+			}
+		});
+		synchronized (stages) {
+			stages.add(future);
+			// a stage started before may have failed already
+			if (failure != null) future.cancel(true);
+		}
+	}
+
+	/**
+	 * Records the first failure of a stage and cancels the others, so none stays blocked on a dead one.
+	 */
+	private void fail(final Throwable e) {
+		synchronized (stages) {
+			if (failure != null) return;
+			failure = e;
+			logger.error("Import {}: stage failed, cancelling the import: {}", type, e);
+			for (Future<?> stage : stages) {
+				stage.cancel(true);
+			}
+		}
+	}
+
+	private void cancel() {
+		synchronized (stages) {
+			for (Future<?> stage : stages) {
+				stage.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Queues the object, waiting while the queue is full.
+	 *
+	 * @throws RuntimeException or Error the failure of a stage that died
+	 */
+	public void add(T object) {
+		if (finished) throw new IllegalStateException("Import already finished");
+		try {
+			offer(objects, object);
+			result.accepted();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while importing " + type.getName(), e);
+		}
+	}
+
+	/**
+	 * @return the running totals, the final ones once finished
+	 */
+	public ImportResult getResult() {
+		return result;
+	}
+
+	/**
+	 * Waits until every added object was written or failed.
+	 */
+	public ImportResult finish() {
+		if (finished) return result;
+		finished = true;
+		try {
+			for (int i = 0; i < options.getMappers(); i++) {
+				offer(objects, END);
+			}
+			for (Future<?> stage : stages) {
+				stage.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancel();
+			throw new RuntimeException("Interrupted while importing " + type.getName(), e);
+		} catch (ExecutionException | CancellationException e) {
+			cancel();
+			throw propagate(failure != null ? failure : e instanceof ExecutionException ? e.getCause() : e);
+		} finally {
+			result.finished();
+		}
+		logger.info("Import {}: {}", type, result);
+		return result;
+	}
+
+	@Override
+	public void close() {
+		finish();
+	}
+
+	/**
+	 * Waits while the queue is full, failing as soon as a stage died.
+	 */
+	private <E> void offer(final BlockingQueue<E> queue, final E element) throws InterruptedException {
+		while (true) {
+			if (failure != null) throw propagate(failure);
+			if (queue.offer(element, LINGER_MILLIS, TimeUnit.MILLISECONDS)) return;
+		}
+	}
+
+	/**
+	 * Passes the end marker on to the next stage, unless the import failed and the stages are cancelled.
+	 */
+	private <E> void end(final BlockingQueue<E> queue, final E marker) {
+		try {
+			while (failure == null) {
+				if (queue.offer(marker, LINGER_MILLIS, TimeUnit.MILLISECONDS)) return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static RuntimeException propagate(final Throwable failure) {
+		if (failure instanceof Error) throw (Error) failure;
+		return failure instanceof RuntimeException ? (RuntimeException) failure : new RuntimeException(failure);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Void map() throws InterruptedException {
+		try {
+			Object next;
+			while ((next = objects.take()) != END) {
+				T object = (T) next;
+				try {
+					Entity entity = mapper.toDatastoreEntity(object, type);
+					if (mapper.skipWrite(object, entity)) {
+						result.skipped();
+					} else {
+						entities.put(new Item(object, entity, EntityTranslator.convertToPb(entity).getSerializedSize()));
+					}
+				} catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException | InstantiationException e) {
+					logger.error("Import {}: mapping failed: {}", type, e);
+					result.failure(1, new RuntimeException(e));
+				} catch (RuntimeException e) {
+					logger.error("Import {}: mapping failed: {}", type, e);
+					result.failure(1, e);
+				}
+			}
+		} finally {
+			end(entities, endItem);
+		}
+		return null;
+	}
+
+	private Void batch() throws InterruptedException {
+		try {
+			List<Item> batch = new ArrayList<Item>(options.getBatchSize());
+			long bytes = 0;
+			int ended = 0;
+			while (ended < options.getMappers()) {
+				Item item = entities.poll(LINGER_MILLIS, TimeUnit.MILLISECONDS);
+				if (item == endItem) {
+					ended++;
+					continue;
+				}
+				if (item == null || (!batch.isEmpty() && bytes + item.bytes > options.getBatchBytes())) {
+					if (!batch.isEmpty()) batches.put(batch);
+					batch = new ArrayList<Item>(options.getBatchSize());
+					bytes = 0;
+					if (item == null) continue;
+				}
+				batch.add(item);
+				bytes += item.bytes;
+				if (batch.size() >= options.getBatchSize()) {
+					batches.put(batch);
+					batch = new ArrayList<Item>(options.getBatchSize());
+					bytes = 0;
+				}
+			}
+			if (!batch.isEmpty()) batches.put(batch);
+		} finally {
+			for (int i = 0; i < options.getWriters(); i++) {
+				end(batches, endBatch);
+			}
+		}
+		return null;
+	}
+
+	private Void write() throws InterruptedException {
+		List<Item> batch;
+		while ((batch = batches.take()) != endBatch) {
+			write(batch);
+		}
+		return null;
+	}
+
+	private void write(final List<Item> batch) throws InterruptedException {
+		long bytes = 0;
+		List<Entity> chunk = new ArrayList<Entity>(batch.size());
+		for (Item item : batch) {
+			chunk.add(item.entity);
+			bytes += item.bytes;
+		}
+		long start = System.nanoTime();
+		for (int attempt = 1;; attempt++) {
+			try {
+				// the ids still missing are allocated on every attempt, the allocation itself may have timed out
+				if (options.getMaxAttempts() > 1) chunk = withKeys(chunk);
+				long rpcStart = System.nanoTime();
+				List<Key> keys = datastoreService.put((Transaction) null, chunk);
+				mapper.getMetrics().rpc(chunk.get(0).getKind(), Operation.SAVE, System.nanoTime() - rpcStart, chunk.size());
+				for (int i = 0; i < keys.size(); i++) {
+					T object = batch.get(i).object;
+					object.setId(keys.get(i).getId());
+					mapper.snapshot(object, chunk.get(i));
+				}
+				mapper.cachePut(chunk, type);
+				result.written(chunk.size(), bytes, System.nanoTime() - start);
+				return;
+			} catch (DatastoreTimeoutException | ConcurrentModificationException | DatastoreFailureException e) {
+				if (attempt >= options.getMaxAttempts()) {
+					logger.error("Import {}: batch of {} failed after {} attempts: {}", type, chunk.size(), attempt, e);
+					result.failure(chunk.size(), e);
+					return;
+				}
+				logger.warn("Import {}: batch of {} failed, retrying: {}", type, chunk.size(), e.getMessage());
+				result.retried();
+				Thread.sleep(options.getRetryDelay() << (attempt - 1));
+			} catch (RuntimeException e) {
+				logger.error("Import {}: batch of {} failed: {}", type, chunk.size(), e);
+				result.failure(chunk.size(), e);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Allocates ids for the entities without one, with one call for the whole batch.
+	 */
+	private List<Entity> withKeys(final List<Entity> chunk) {
+		int incomplete = 0;
+		for (Entity entity : chunk) {
+			if (!entity.getKey().isComplete()) incomplete++;
+		}
+		if (incomplete == 0) return chunk;
+		Iterator<Key> keys = datastoreService.allocateIds(chunk.get(0).getKind(), incomplete).iterator();
+		List<Entity> complete = new ArrayList<Entity>(chunk.size());
+		for (Entity entity : chunk) {
+			if (entity.getKey().isComplete()) {
+				complete.add(entity);
+			} else {
+				Entity copy = new Entity(keys.next());
+				copy.setPropertiesFrom(entity);
+				complete.add(copy);
+			}
+		}
+		return complete;
+	}
+
+	private class Item {
+
+		final T object;
+
+		final Entity entity;
+
+		final int bytes;
+
+		Item(T object, Entity entity, int bytes) {
+			this.object = object;
+			this.entity = entity;
+			this.bytes = bytes;
+		}
+
+	}
+
+}
@@ -26,188 +26,599 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 package com.ar.sgt.appengine.datastore;
 
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Modifier;
-import java.time.temporal.Temporal;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 
-import org.apache.commons.beanutils.PropertyUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.ar.sgt.appengine.datastore.annotation.Converter;
 import com.ar.sgt.appengine.datastore.annotation.EntityName;
-import com.ar.sgt.appengine.datastore.annotation.Id;
-import com.ar.sgt.appengine.datastore.annotation.Lazy;
-import com.ar.sgt.appengine.datastore.annotation.Unindexed;
-import com.ar.sgt.appengine.datastore.converters.FieldConverter;
-import com.ar.sgt.appengine.datastore.utils.DateUtils;
-import com.ar.sgt.appengine.datastore.utils.EntityUtils;
+import com.ar.sgt.appengine.datastore.cache.CachePolicy;
+import com.ar.sgt.appengine.datastore.cache.EntityCache;
+import com.ar.sgt.appengine.datastore.mapping.Codecs;
+import com.ar.sgt.appengine.datastore.mapping.EntityMapping;
+import com.ar.sgt.appengine.datastore.mapping.GeneratedMapper;
+import com.ar.sgt.appengine.datastore.mapping.MappingException;
+import com.ar.sgt.appengine.datastore.mapping.MappingRegistry;
+import com.ar.sgt.appengine.datastore.mapping.PropertyMapping;
+import com.ar.sgt.appengine.datastore.mapping.RelationResolver;
+import com.ar.sgt.appengine.datastore.mapping.Snapshots;
+import com.ar.sgt.appengine.datastore.metrics.Operation;
+import com.ar.sgt.appengine.datastore.metrics.RepositoryMetrics;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
-import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.RawValue;
 
 import net.sf.cglib.proxy.Enhancer;
+import net.sf.cglib.proxy.Factory;
+import net.sf.cglib.proxy.MethodInterceptor;
 
 public class EntityMapper {
 
+	public static final int DEFAULT_LAZY_BATCH_SIZE = 100;
+	
+	/**
+	 * Prototype of the lazy proxy class of each entity type, new proxies are created from it without going
+	 * through the {@link Enhancer} again.
+	 */
+	private static final ClassValue<Factory> PROXIES = new ClassValue<Factory>() {
+		@Override
+		protected Factory computeValue(Class<?> type) {
+			Enhancer enhancer = new Enhancer();
+			enhancer.setSuperclass(type);
+			enhancer.setInterfaces(new Class<?>[] { LazyProxy.class });
+			enhancer.setCallback((MethodInterceptor) (obj, method, args, proxy) -> null);
+			return (Factory) enhancer.create();
+		}
+	};
+	
 	private Logger logger = LoggerFactory.getLogger(getClass());
 	
-	private Map<String, List<Field>> cached = new HashMap<String, List<Field>>();
+	private final MappingRegistry registry;
+	
+	private ExecutorService parallelExecutor;
+	
+	private int parallelThreshold;
+	
+	private EntityCache cache;
+	
+	private RepositoryMetrics metrics;
+	
+	private int lazyBatchSize = DEFAULT_LAZY_BATCH_SIZE;
+	
+	private volatile boolean dirtyTracking;
 	
-	private static final String BOUND_FIELD = "CGLIB$";
+	private final LongAdder skippedWrites = new LongAdder();
 	
-	private Map<Class<?>, FieldConverter> convertersCache = new HashMap<>();
+	public EntityMapper() {
+		this(MappingRegistry.getDefault());
+	}
+	
+	public EntityMapper(MappingRegistry registry) {
+		this.registry = registry;
+	}
 	
 	public com.google.appengine.api.datastore.Entity toDatastoreEntity(AbstractEntity element, Class<?> type) throws IllegalAccessException, InvocationTargetException, NoSuchMethodException, InstantiationException  {
 
 		if (element == null) return null;
 		
-		String entityName = getEntityName(type);
+		long start = System.nanoTime();
+		String entityName = getKind(type);
 		
 		com.google.appengine.api.datastore.Entity entity = element.getId() == null ? new com.google.appengine.api.datastore.Entity(entityName) : new com.google.appengine.api.datastore.Entity(KeyFactory.createKey(entityName, element.getId()));
 		
-		for (Field field : getFields(element.getClass())) {
-			if (field.isAnnotationPresent(Id.class)) {
-				continue;
-			} else if (field.getName().startsWith(BOUND_FIELD)) {
-				continue;
-			}
-			String fieldName = EntityUtils.getFieldName(field);
-			Object value = getPropertyValue(field, element);
-			if (field.isAnnotationPresent(Unindexed.class)) {
-				entity.setUnindexedProperty(fieldName, value);				
-			} else {
-				entity.setProperty(fieldName, value);
+		GeneratedMapper<AbstractEntity> generated = getGeneratedMapper(element.getClass());
+		if (generated != null) {
+			generated.toEntity(element, entity);
+		} else {
+			for (PropertyMapping property : getMapping(element.getClass()).getProperties()) {
+				Object value = getPropertyValue(property, element);
+				if (property.isEmbedded() && property.isIndexed()) {
+					// embedded entities are only indexed when explicitly asked for
+					entity.setIndexedProperty(property.getPropertyName(), value);
+				} else if (property.isIndexed()) {
+					entity.setProperty(property.getPropertyName(), value);
+				} else {
+					entity.setUnindexedProperty(property.getPropertyName(), value);				
+				}
 			}
 		}
 		
+		getMetrics().mapping(entityName, System.nanoTime() - start, 1);
 		return entity;
 		
 	}
 	
 	public <T> T fromDatastoreEntity(com.google.appengine.api.datastore.Entity entity, Class<T> type, DatastoreService datastoreService) throws IllegalAccessException, InvocationTargetException, NoSuchMethodException, InstantiationException  {
-		
 		if (entity == null) return null;
-		
-		T newObject = type.newInstance();
-		
-		for (Field field : getFields(type)) {
-			if (field.isAnnotationPresent(Id.class)) {
-				setPropertyValue(field, entity.getKey().getId(), newObject);
-			} else {
-				String fieldName = EntityUtils.getFieldName(field);
-				Object value = entity.getProperty(fieldName);
-				if (value != null && AbstractEntity.class.isAssignableFrom(field.getType())) {
-					Object fk = null;
-					if (field.isAnnotationPresent(Lazy.class)) {
-						fk = getLazyRelated(field.getType(), datastoreService, (Long) value);
-					} else {
-						fk = getRelated(field.getType(), datastoreService, (Long) value);
-					}
-					setPropertyValue(field, fk, newObject);	
-				} else {
-					setPropertyValue(field, value, newObject);	
-				}
+		return fromDatastoreEntities(Collections.singletonList(entity), type, datastoreService).get(0);
+	}
+	
+	/**
+	 * Maps a list of entities, loading eager relations in two phases: the related keys of the whole list are
+	 * collected and fetched with one batch get per level of relations, then objects are wired from the fetched
+	 * entities. An entity referenced more than once is mapped to a single shared instance.
+	 */
+	public <T> List<T> fromDatastoreEntities(List<com.google.appengine.api.datastore.Entity> entities, Class<T> type, DatastoreService datastoreService) throws IllegalAccessException, InvocationTargetException, NoSuchMethodException, InstantiationException  {
+		return fromDatastoreEntities(entities, type, datastoreService, true);
+	}
+
+	/**
+	 * @param session false to map outside of the open {@link Session}, so objects of long streams and scans
+	 * aren't kept in its identity map
+	 */
+	<T> List<T> fromDatastoreEntities(List<com.google.appengine.api.datastore.Entity> entities, Class<T> type, DatastoreService datastoreService, boolean session) throws IllegalAccessException, InvocationTargetException, NoSuchMethodException, InstantiationException  {
+		LoadContext context = session ? newContext(datastoreService) : new LoadContext(this, datastoreService);
+		prefetch(context, entities, type);
+		long start = System.nanoTime();
+		List<T> objects;
+		if (parallelExecutor != null && entities.size() >= parallelThreshold) {
+			objects = mapParallel(context, entities, type);
+		} else {
+			objects = new ArrayList<T>(entities.size());
+			for (Entity entity : entities) {
+				objects.add(type.cast(mapEntity(context, entity, type)));
 			}
 		}
-
-		return newObject;
+		if (!entities.isEmpty()) getMetrics().mapping(getKind(type), System.nanoTime() - start, entities.size());
+		return objects;
+	}
+	
+	/**
+	 * Maps projection query results into the given type, which doesn't need to be an entity. Fields are
+	 * matched by their property name, as with entities, and the @Id field gets the key id. Relations
+	 * are never loaded: declare them as Long to read the related id.
+	 */
+	public <D> List<D> fromProjections(List<Entity> entities, Class<D> type) throws IllegalAccessException, InvocationTargetException, InstantiationException {
+		EntityMapping mapping = getMapping(type);
+		List<D> objects = new ArrayList<D>(entities.size());
+		for (Entity entity : entities) {
+			Object newObject = mapping.newInstance();
+			if (mapping.getId() != null) {
+				mapping.getId().getAccessor().set(newObject, entity.getKey().getId());
+			}
+			for (PropertyMapping property : mapping.getProperties()) {
+				Object value = entity.getProperty(property.getPropertyName());
+				if (value == null || property.isRelation()) continue;
+				property.getAccessor().set(newObject, value instanceof RawValue ? Codecs.fromRawValue(property, (RawValue) value) : property.getCodec().fromDatastore(value));
+			}
+			objects.add(type.cast(newObject));
+		}
+		return objects;
 	}
 	
-	private Object getLazyRelated(final Class<?> type, final DatastoreService datastoreService, final Long value) {
-		Object lazyEntity = Enhancer.create(type, new LazyLoadHandler() {
-			@Override
-			protected Object loadEntity() {
-				try {
-					logger.debug("Lazy loading {} with id {}", type, value);
-					return getRelated(type, datastoreService, value);
-				} catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException
-						| InstantiationException e) {
-					logger.error("{}", e);
+	/**
+	 * Maps entities in slices on the parallel executor. Relations were already fetched, so workers only do
+	 * in memory mapping; results keep the order of the given list.
+	 */
+	private <T> List<T> mapParallel(final LoadContext context, final List<Entity> entities, final Class<T> type) throws IllegalAccessException, InvocationTargetException, InstantiationException {
+		final Object[] objects = new Object[entities.size()];
+		int slice = Math.max(parallelThreshold / 2, 1);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int from = 0; from < entities.size(); from += slice) {
+			final int start = from;
+			final int end = Math.min(from + slice, entities.size());
+			tasks.add(() -> {
+				for (int i = start; i < end; i++) {
+					objects[i] = mapEntity(context, entities.get(i), type);
 				}
 				return null;
+			});
+		}
+		logger.debug("Mapping {} entities in {} parallel slices", entities.size(), tasks.size());
+		try {
+			for (Future<Void> future : parallelExecutor.invokeAll(tasks)) {
+				future.get();
 			}
-		});
-		return lazyEntity;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MappingException("Interrupted while mapping " + type.getName(), e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IllegalAccessException) throw (IllegalAccessException) cause;
+			if (cause instanceof InvocationTargetException) throw (InvocationTargetException) cause;
+			if (cause instanceof InstantiationException) throw (InstantiationException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new MappingException("Unable to map " + type.getName(), cause);
+		}
+		List<T> result = new ArrayList<T>(objects.length);
+		for (Object object : objects) {
+			result.add(type.cast(object));
+		}
+		return result;
 	}
-
-	private Object getRelated(final Class<?> type, final DatastoreService datastoreService, final Long id) throws IllegalAccessException, InvocationTargetException, NoSuchMethodException, InstantiationException {
-		Entity entity;
-		try {
-			entity = datastoreService.get(KeyFactory.createKey(getEntityName(type), id));
-		} catch (EntityNotFoundException e) {
-			return null;
-		}
-		return fromDatastoreEntity(entity, type, datastoreService);
-	}
-
-	private void setPropertyValue(final Field field, final Object value, final Object element) throws IllegalAccessException, InvocationTargetException, NoSuchMethodException, InstantiationException {
-		if (value != null && field.isAnnotationPresent(Converter.class)) {
-			Converter ca = field.getAnnotation(Converter.class);
-			FieldConverter fc = getConverterInstance(ca.value());
-			PropertyUtils.setProperty(element, field.getName(), fc.fromDatastoreEntity(value));
-		} else if (value != null && Temporal.class.isAssignableFrom(field.getType())) {
-			PropertyUtils.setProperty(element, field.getName(), DateUtils.dateToTemporal((Date) value, field.getType()));
-		} else if (value != null && com.google.appengine.api.datastore.Text.class.isAssignableFrom(value.getClass())) {
-			Text text = (Text) value;
-			PropertyUtils.setProperty(element, field.getName(), text.getValue());
-		} else {
-			PropertyUtils.setProperty(element, field.getName(), value);	
+	
+	/**
+	 * Enables parallel mapping of result lists of at least threshold entities, smaller lists are mapped on the
+	 * calling thread. The executor should be bounded, and on App Engine its threads must be request threads
+	 * (ThreadManager.currentRequestThreadFactory()) since building keys needs the API environment.
+	 */
+	public void setParallelMapping(ExecutorService executor, int threshold) {
+		if (threshold < 2) throw new IllegalArgumentException("threshold must be at least 2");
+		this.parallelExecutor = executor;
+		this.parallelThreshold = threshold;
+	}
+	
+	private void prefetch(final LoadContext context, final List<Entity> entities, final Class<?> type) {
+		List<Entity> level = new ArrayList<Entity>(entities.size());
+		List<Class<?>> levelTypes = new ArrayList<Class<?>>(entities.size());
+		for (Entity entity : entities) {
+			context.add(entity);
+			level.add(entity);
+			levelTypes.add(type);
+		}
+		while (!level.isEmpty()) {
+			Map<Key, Class<?>> pending = new LinkedHashMap<Key, Class<?>>();
+			for (int i = 0; i < level.size(); i++) {
+				for (PropertyMapping relation : getMapping(levelTypes.get(i)).getRelations()) {
+					if (relation.isLazy()) continue;
+					Object value = level.get(i).getProperty(relation.getPropertyName());
+					if (value instanceof Long) {
+						Key key = KeyFactory.createKey(getKind(relation.getType()), (Long) value);
+						if (!context.isLoaded(key) && context.getInstance(key) == null) pending.put(key, relation.getType());
+					}
+				}
+			}
+			if (pending.isEmpty()) break;
+			logger.debug("Fetching {} related entities", pending.size());
+			context.load(pending);
+			level = new ArrayList<Entity>(pending.size());
+			levelTypes = new ArrayList<Class<?>>(pending.size());
+			for (Map.Entry<Key, Class<?>> entry : pending.entrySet()) {
+				Entity entity = context.getEntity(entry.getKey());
+				if (entity != null) {
+					level.add(entity);
+					levelTypes.add(entry.getValue());
+				}
+			}
 		}
 	}
 	
-	private Object getPropertyValue(final Field field, final Object element) throws IllegalAccessException, InvocationTargetException, NoSuchMethodException, InstantiationException {
-		Object value = PropertyUtils.getProperty(element, field.getName());
-		if (value == null) return null;
+	private Object mapEntity(final LoadContext context, final Entity entity, final Class<?> type) throws IllegalAccessException, InvocationTargetException, InstantiationException  {
 		
-		if (field.isAnnotationPresent(Converter.class)) {
-			Converter ca = field.getAnnotation(Converter.class);
-			FieldConverter fc = getConverterInstance(ca.value());
-			return fc.toDatastoreEntity(value);
-		} else if (AbstractEntity.class.isAssignableFrom(value.getClass())) {
-			 return ((AbstractEntity) value).getId();
-		} else if (Temporal.class.isAssignableFrom(value.getClass()) ) {
-			return DateUtils.temporalToDate(value);
-		}
-		return value;
+		Object existing = context.getInstance(entity.getKey());
+		if (existing != null) return existing;
 		
-	}
-	
-	private List<Field> getFields(final Class<?> type) {
+		RelationResolver resolver = (relatedType, id, lazy) -> lazy ? getLazyRelated(context, relatedType, id) : resolve(context, relatedType, id);
+		
+		GeneratedMapper<AbstractEntity> generated = getGeneratedMapper(type);
+		if (generated != null) {
+			AbstractEntity newObject = generated.newInstance();
+			existing = context.putInstanceIfAbsent(entity.getKey(), newObject);
+			if (existing != null) return existing;
+			generated.fromEntity(entity, newObject, resolver);
+			snapshot(newObject, entity);
+			return newObject;
+		}
 		
-		if (cached.get(type.getName()) != null) return cached.get(type.getName());
+		EntityMapping mapping = getMapping(type);
 		
-		List<Field> fields = new ArrayList<Field>();
+		Object newObject = mapping.newInstance();
+		existing = context.putInstanceIfAbsent(entity.getKey(), newObject);
+		if (existing != null) return existing;
 		
-		if (type.getSuperclass() != null) {
-			fields.addAll(getFields(type.getSuperclass()));
+		if (mapping.getId() != null) {
+			mapping.getId().getAccessor().set(newObject, entity.getKey().getId());
 		}
 		
-		for (Field field : type.getDeclaredFields()) {
-			if (isAccesible(field.getModifiers())) {
-				field.setAccessible(true);
-				fields.add(field);
+		for (PropertyMapping property : mapping.getProperties()) {
+			Object value = entity.getProperty(property.getPropertyName());
+			if (value != null && property.isRelation()) {
+				property.getAccessor().set(newObject, resolver.resolve(property.getType(), (Long) value, property.isLazy()));
+			} else {
+				setPropertyValue(property, value, newObject);	
 			}
 		}
 		
-		cached.put(type.getName(), fields);
-		
-		return fields;
+		if (newObject instanceof AbstractEntity) {
+			snapshot((AbstractEntity) newObject, entity);
+		}
+
+		return newObject;
+	}
+	
+	private Object resolve(final LoadContext context, final Class<?> type, final Long id) throws IllegalAccessException, InvocationTargetException, InstantiationException {
+		Key key = KeyFactory.createKey(getKind(type), id);
+		Object instance = context.getInstance(key);
+		if (instance != null) return instance;
+		if (!context.isLoaded(key)) {
+			context.load(Collections.<Key, Class<?>>singletonMap(key, type));
+		}
+		Entity entity = context.getEntity(key);
+		return entity == null ? null : mapEntity(context, entity, type);
+	}
+	
+	private Object getLazyRelated(final LoadContext context, final Class<?> type, final Long value) {
+		Key key = getKey(type, value);
+		Object instance = context.getInstance(key);
+		if (instance != null) return instance;
+		return context.getLazyBatch().getProxy(key, type, value);
+	}
+
+	Object newProxy(final Class<?> type, final LazyLoadHandler handler) {
+		return PROXIES.get(type).newInstance(handler);
+	}
+
+	/**
+	 * Loads the entities of the given type and ids with one batch get, and their eager relations.
+	 *
+	 * @return the mapped objects by id, ids not found are left out
+	 */
+	Map<Long, Object> loadAll(final Class<?> type, final List<Long> ids, final DatastoreService datastoreService) throws IllegalAccessException, InvocationTargetException, InstantiationException {
+		logger.debug("Loading {} with ids {}", type, ids);
+		LoadContext context = newContext(datastoreService);
+		Map<Long, Object> objects = new HashMap<Long, Object>();
+		Map<Key, Class<?>> keys = new LinkedHashMap<Key, Class<?>>();
+		for (Long id : ids) {
+			Key key = getKey(type, id);
+			Object instance = context.getInstance(key);
+			if (instance != null) {
+				objects.put(id, instance);
+			} else if (!context.isLoaded(key)) {
+				keys.put(key, type);
+			}
+		}
+		context.load(keys);
+		List<Entity> entities = new ArrayList<Entity>();
+		for (Long id : ids) {
+			Entity entity = objects.containsKey(id) ? null : context.getEntity(getKey(type, id));
+			if (entity != null) entities.add(entity);
+		}
+		prefetch(context, entities, type);
+		long start = System.nanoTime();
+		for (Entity entity : entities) {
+			objects.put(entity.getKey().getId(), mapEntity(context, entity, type));
+		}
+		if (!entities.isEmpty()) getMetrics().mapping(getKind(type), System.nanoTime() - start, entities.size());
+		return objects;
+	}
+
+	/**
+	 * Sets how many pending lazy proxies of the same kind, created while mapping the same results, are loaded
+	 * together when one of them is first used. 1 loads each proxy on its own.
+	 */
+	public void setLazyBatchSize(int lazyBatchSize) {
+		if (lazyBatchSize < 1) throw new IllegalArgumentException("lazyBatchSize must be positive");
+		this.lazyBatchSize = lazyBatchSize;
+	}
+
+	public int getLazyBatchSize() {
+		return lazyBatchSize;
+	}
+
+	/**
+	 * Enables dirty tracking: loaded objects keep a hash of their properties, and saving an object whose entity
+	 * still has the same hash is skipped. Only objects loaded or saved while enabled are tracked.
+	 */
+	public void setDirtyTracking(boolean dirtyTracking) {
+		this.dirtyTracking = dirtyTracking;
+	}
+
+	public boolean isDirtyTracking() {
+		return dirtyTracking;
+	}
+
+	/**
+	 * @return number of writes skipped because the entity didn't change
+	 */
+	public long getSkippedWrites() {
+		return skippedWrites.sum();
+	}
+
+	/**
+	 * Checks whether the write of the entity built from the object can be skipped, counting it if so.
+	 *
+	 * @return true if dirty tracking is enabled and the entity is the same the object was loaded or last saved with
+	 */
+	boolean skipWrite(final AbstractEntity object, final Entity entity) {
+		if (!dirtyTracking || object.getId() == null) return false;
+		long snapshot = object.getSnapshot();
+		if (snapshot == 0 || snapshot != Snapshots.of(entity)) return false;
+		skippedWrites.increment();
+		return true;
+	}
+
+	/**
+	 * Records the entity as the stored state of the object, null forgets it.
+	 */
+	void snapshot(final AbstractEntity object, final Entity entity) {
+		if (entity == null) {
+			object.setSnapshot(0);
+		} else if (dirtyTracking) {
+			object.setSnapshot(Snapshots.of(entity));
+		}
+	}
+
+	/**
+	 * Loads the entity of the given type and id with its eager relations, or returns its instance if the open
+	 * {@link Session} already has one.
+	 *
+	 * @return the mapped object, null if the entity doesn't exist
+	 */
+	public <T> T load(final Class<T> type, final Long id, final DatastoreService datastoreService) throws IllegalAccessException, InvocationTargetException, InstantiationException {
+		LoadContext context = newContext(datastoreService);
+		Key key = getKey(type, id);
+		Object instance = context.getInstance(key);
+		if (instance != null) return type.cast(instance);
+		if (!context.isLoaded(key)) {
+			context.load(Collections.<Key, Class<?>>singletonMap(key, type));
+		}
+		Entity entity = context.getEntity(key);
+		if (entity == null) return null;
+		prefetch(context, Collections.singletonList(entity), type);
+		long start = System.nanoTime();
+		Object object = mapEntity(context, entity, type);
+		getMetrics().mapping(key.getKind(), System.nanoTime() - start, 1);
+		return type.cast(object);
+	}
+
+	Key getKey(final Class<?> type, final Long id) {
+		return KeyFactory.createKey(getKind(type), id);
+	}
+
+	private LoadContext newContext(final DatastoreService datastoreService) {
+		Session session = Session.current();
+		return session != null ? session.newContext(this, datastoreService) : new LoadContext(this, datastoreService);
+	}
+
+	/**
+	 * Batch get of the given keys, mapped to their entity class. Kinds with a {@link CachePolicy} are read
+	 * from the cache first and the entities fetched from the datastore are added to it. Keys not found map to
+	 * null.
+	 */
+	Map<Key, Entity> get(final DatastoreService datastoreService, final Map<Key, Class<?>> keys) {
+		Map<Key, Entity> result = cacheGet(keys);
+		List<Key> pending = new ArrayList<Key>(keys.size() - result.size());
+		for (Key key : keys.keySet()) {
+			if (!result.containsKey(key)) pending.add(key);
+		}
+		if (pending.isEmpty()) return result;
+		long start = System.nanoTime();
+		Map<Key, Entity> found = datastoreService.get(pending);
+		getMetrics().rpc(pending.get(0).getKind(), Operation.GET, System.nanoTime() - start, pending.size());
+		AccessTracker.get(pending);
+		for (Key key : pending) {
+			result.put(key, found.get(key));
+		}
+		cacheFill(keys, pending, found);
+		return result;
+	}
+
+	/**
+	 * Cached entries of the keys whose class has a {@link CachePolicy}, keys cached as missing map to null.
+	 */
+	Map<Key, Entity> cacheGet(final Map<Key, Class<?>> keys) {
+		Map<Key, Entity> result = new HashMap<Key, Entity>();
+		List<Key> cacheable = new ArrayList<Key>();
+		for (Map.Entry<Key, Class<?>> entry : keys.entrySet()) {
+			if (registry.getCachePolicy(entry.getValue()) != null) cacheable.add(entry.getKey());
+		}
+		if (!cacheable.isEmpty()) {
+			result.putAll(getCache().getAll(cacheable));
+			recordCache(cacheable, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the entities just read for the pending keys to the cache, keys not found are cached as missing.
+	 */
+	void cacheFill(final Map<Key, Class<?>> keys, final Collection<Key> pending, final Map<Key, Entity> found) {
+		Map<CachePolicy, Map<Key, Entity>> fills = new HashMap<CachePolicy, Map<Key, Entity>>();
+		for (Key key : pending) {
+			CachePolicy policy = registry.getCachePolicy(keys.get(key));
+			if (policy != null) fills.computeIfAbsent(policy, p -> new HashMap<Key, Entity>()).put(key, found.get(key));
+		}
+		for (Map.Entry<CachePolicy, Map<Key, Entity>> fill : fills.entrySet()) {
+			getCache().fill(fill.getValue(), fill.getKey());
+		}
+	}
+
+	/**
+	 * Counts the cache hits and misses of each kind looked up.
+	 */
+	private void recordCache(final Collection<Key> keys, final Map<Key, Entity> cached) {
+		Map<String, int[]> counts = new HashMap<String, int[]>();
+		for (Key key : keys) {
+			counts.computeIfAbsent(key.getKind(), k -> new int[2])[cached.containsKey(key) ? 0 : 1]++;
+		}
+		for (Map.Entry<String, int[]> count : counts.entrySet()) {
+			getMetrics().cache(count.getKey(), count.getValue()[0], count.getValue()[1]);
+		}
+	}
+
+	/**
+	 * Writes saved entities through to the cache, if their kind is cached, and drops the cached queries of the kind.
+	 */
+	void cachePut(final Collection<Entity> entities, final Class<?> type) {
+		if (entities.isEmpty()) return;
+		CachePolicy policy = registry.getCachePolicy(type);
+		if (policy != null) getCache().put(entities, policy);
+		invalidateQueries(type);
+	}
+
+	/**
+	 * Drops the given keys from the cache, if their kind is cached, and the cached queries of the kind.
+	 */
+	void cacheInvalidate(final Collection<Key> keys, final Class<?> type) {
+		if (keys.isEmpty()) return;
+		if (registry.getCachePolicy(type) != null) getCache().invalidate(keys);
+		invalidateQueries(type);
+	}
+
+	private void invalidateQueries(final Class<?> type) {
+		if (registry.getQueryExpiration(type) > 0) registry.getQueryCache().invalidate(getKind(type));
+	}
+
+	/**
+	 * Sets the cache used for kinds with a {@link CachePolicy}, by default the one of the registry.
+	 *
+	 * @see MappingRegistry#setCache(EntityCache)
+	 */
+	public void setCache(EntityCache cache) {
+		this.cache = cache;
+	}
+
+	public EntityCache getCache() {
+		return cache != null ? cache : registry.getCache();
+	}
+
+	/**
+	 * Sets the metrics this mapper and the repositories using it report to, by default the ones of the registry.
+	 *
+	 * @see MappingRegistry#setMetrics(RepositoryMetrics)
+	 */
+	public void setMetrics(RepositoryMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public RepositoryMetrics getMetrics() {
+		return metrics != null ? metrics : registry.getMetrics();
+	}
+
+	public MappingRegistry getRegistry() {
+		return registry;
+	}
+
+	private void setPropertyValue(final PropertyMapping property, final Object value, final Object element) throws IllegalAccessException, InvocationTargetException {
+		property.getAccessor().set(element, value == null ? null : property.getCodec().fromDatastore(value));
 	}
 	
-	private boolean isAccesible(int modifier) {
-		return !(Modifier.isTransient(modifier) || Modifier.isStatic(modifier) || Modifier.isAbstract(modifier));
+	private Object getPropertyValue(final PropertyMapping property, final Object element) throws IllegalAccessException, InvocationTargetException {
+		Object value = property.getAccessor().get(element);
+		if (value == null) return null;
+		return property.getCodec().toDatastore(value);
+	}
+	
+	/**
+	 * Returns the mapping plan of the given class, building it the first time the class is seen.
+	 */
+	public EntityMapping getMapping(final Class<?> type) {
+		return registry.getMapping(type);
 	}
 
+	private GeneratedMapper<AbstractEntity> getGeneratedMapper(final Class<?> type) {
+		return registry.getGeneratedMapper(type);
+	}
 	
+	private String getKind(final Class<?> type) {
+		return registry.getKind(type);
+	}
+
 	public static String getEntityName(final Class<?> type) {
 		if (type.isAnnotationPresent(EntityName.class)) {
 			EntityName nm = type.getAnnotation(EntityName.class);
@@ -216,14 +627,4 @@ public class EntityMapper {
 		return type.getSimpleName();	
 	}
 
-	
-	private FieldConverter getConverterInstance(Class<? extends FieldConverter> class1) throws InstantiationException, IllegalAccessException {
-		if (convertersCache.containsKey(class1)) {
-			return convertersCache.get(class1);
-		}
-		FieldConverter cInstance = class1.newInstance();
-		convertersCache.put(class1, cInstance);
-		return cInstance;
-	}
-	
 }
@@ -0,0 +1,111 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ar.sgt.appengine.datastore.mapping.MappingException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Lazy proxies created while mapping the same results. A key gets a single proxy, and touching any proxy
+ * loads it together with up to batch size pending siblings of the same kind in one batch get.
+ */
+class LazyBatch {
+
+	private final EntityMapper mapper;
+
+	private final DatastoreService datastoreService;
+
+	private final int batchSize;
+
+	private final Map<Key, Object> proxies = new HashMap<Key, Object>();
+
+	private final Map<Class<?>, LinkedHashMap<Long, LazyLoadHandler>> pending = new HashMap<Class<?>, LinkedHashMap<Long, LazyLoadHandler>>();
+
+	LazyBatch(EntityMapper mapper, DatastoreService datastoreService, int batchSize) {
+		this.mapper = mapper;
+		this.datastoreService = datastoreService;
+		this.batchSize = batchSize;
+	}
+
+	synchronized Object getProxy(Key key, Class<?> type, Long id) {
+		Object proxy = proxies.get(key);
+		if (proxy != null) return proxy;
+		LazyLoadHandler handler = new LazyLoadHandler(type, id) {
+			@Override
+			protected Object loadEntity() {
+				return load(this);
+			}
+		};
+		proxy = mapper.newProxy(type, handler);
+		proxies.put(key, proxy);
+		pending.computeIfAbsent(type, t -> new LinkedHashMap<Long, LazyLoadHandler>()).put(id, handler);
+		return proxy;
+	}
+
+	/**
+	 * Loads the entity of the handler and completes the siblings loaded with it. Called with the handler lock
+	 * held; siblings are completed without taking theirs, so locks are always acquired handler first.
+	 */
+	private synchronized Object load(LazyLoadHandler handler) {
+		// a sibling may have loaded it while this thread waited for the batch
+		if (handler.isLoaded()) return handler.getLoaded();
+		Map<Long, LazyLoadHandler> siblings = pending.get(handler.getType());
+		List<LazyLoadHandler> batch = new ArrayList<LazyLoadHandler>();
+		batch.add(handler);
+		siblings.remove(handler.getId());
+		for (Iterator<LazyLoadHandler> it = siblings.values().iterator(); it.hasNext() && batch.size() < batchSize;) {
+			LazyLoadHandler sibling = it.next();
+			it.remove();
+			if (!sibling.isLoaded()) batch.add(sibling);
+		}
+		List<Long> ids = new ArrayList<Long>(batch.size());
+		for (LazyLoadHandler h : batch) {
+			ids.add(h.getId());
+		}
+		Map<Long, Object> loaded;
+		try {
+			loaded = mapper.loadAll(handler.getType(), ids, datastoreService);
+		} catch (IllegalAccessException | InvocationTargetException | InstantiationException e) {
+			throw new MappingException("Unable to load " + handler.getType().getName() + " " + ids, e);
+		}
+		mapper.getMetrics().lazyLoad(mapper.getRegistry().getKind(handler.getType()), ids.size());
+		for (LazyLoadHandler sibling : batch) {
+			if (sibling != handler) sibling.complete(loaded.get(sibling.getId()));
+		}
+		return loaded.get(handler.getId());
+	}
+
+}
@@ -26,19 +26,86 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 package com.ar.sgt.appengine.datastore;
 
-import net.sf.cglib.proxy.InvocationHandler;
 import java.lang.reflect.Method;
 
-public abstract class LazyLoadHandler implements InvocationHandler  {
+import net.sf.cglib.proxy.MethodInterceptor;
+import net.sf.cglib.proxy.MethodProxy;
+
+/**
+ * Interceptor of a lazy relation proxy. The id based methods of {@link AbstractEntity} are answered from the
+ * known id, anything else loads the entity once, even when several threads touch the proxy, and is
+ * dispatched to it through the generated {@link MethodProxy} instead of reflection.
+ */
+public abstract class LazyLoadHandler implements MethodInterceptor {
+
+	private final Class<?> type;
+
+	private final Long id;
+
+	private volatile Object entity;
+
+	public LazyLoadHandler(Class<?> type, Long id) {
+		this.type = type;
+		this.id = id;
+	}
 
-	private Object entity;
-	
 	@Override
-	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-		if (entity == null) {
-			entity = loadEntity();
+	public Object intercept(Object proxy, Method method, Object[] args, MethodProxy methodProxy) throws Throwable {
+		if (method.getDeclaringClass() == AbstractEntity.class) {
+			switch (method.getName()) {
+			case "getId":
+				return id;
+			case "hashCode":
+				return AbstractEntity.hash(id);
+			case "equals":
+				Object other = args[0];
+				return proxy == other || (other instanceof AbstractEntity && AbstractEntity.getEntityClass(other) == type
+						&& id.equals(((AbstractEntity) other).getId()));
+			default:
+			}
+		}
+		return methodProxy.invoke(getEntity(), args);
+	}
+
+	public boolean isLoaded() {
+		return entity != null;
+	}
+
+	Class<?> getType() {
+		return type;
+	}
+
+	Long getId() {
+		return id;
+	}
+
+	Object getLoaded() {
+		return entity;
+	}
+
+	/**
+	 * Sets the entity when it was loaded along with another proxy. Doesn't lock, so it can be called while
+	 * the loading proxy holds its own lock.
+	 */
+	void complete(Object loaded) {
+		if (loaded != null && entity == null) entity = loaded;
+	}
+
+	private Object getEntity() {
+		Object current = entity;
+		if (current == null) {
+			synchronized (this) {
+				current = entity;
+				if (current == null) {
+					current = loadEntity();
+					if (current == null) {
+						throw new IllegalStateException("Related " + type.getName() + " with id " + id + " doesn't exist");
+					}
+					entity = current;
+				}
+			}
 		}
-		return method.invoke(entity, args);
+		return current;
 	}
 
 	protected abstract Object loadEntity();
@@ -0,0 +1,124 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * State of a single mapping operation. Holds the raw entities fetched so far, including keys known to be
+ * missing, and the objects already mapped so every key is materialized only once. Safe to share between the
+ * threads of a parallel mapping.
+ */
+class LoadContext {
+
+	private final EntityMapper mapper;
+
+	private final DatastoreService datastoreService;
+
+	private final ConcurrentMap<Key, Optional<Entity>> entities;
+
+	private final ConcurrentMap<Key, Object> instances;
+
+	private LazyBatch lazyBatch;
+
+	LoadContext(EntityMapper mapper, DatastoreService datastoreService) {
+		this(mapper, datastoreService, new ConcurrentHashMap<Key, Optional<Entity>>(), new ConcurrentHashMap<Key, Object>());
+	}
+
+	/**
+	 * Context backed by maps that outlive it, those of a {@link Session}.
+	 */
+	LoadContext(EntityMapper mapper, DatastoreService datastoreService, ConcurrentMap<Key, Optional<Entity>> entities, ConcurrentMap<Key, Object> instances) {
+		this.mapper = mapper;
+		this.datastoreService = datastoreService;
+		this.entities = entities;
+		this.instances = instances;
+	}
+
+	DatastoreService getDatastoreService() {
+		return datastoreService;
+	}
+
+	void add(Entity entity) {
+		entities.put(entity.getKey(), Optional.of(entity));
+	}
+
+	boolean isLoaded(Key key) {
+		return entities.containsKey(key);
+	}
+
+	/**
+	 * @return the loaded entity, or null if it wasn't found or not loaded yet
+	 */
+	Entity getEntity(Key key) {
+		Optional<Entity> entity = entities.get(key);
+		return entity != null ? entity.orElse(null) : null;
+	}
+
+	/**
+	 * Fetches the given keys, mapped to their entity class, in one batch get through the mapper cache. Keys not
+	 * found are remembered as missing.
+	 */
+	void load(Map<Key, Class<?>> keys) {
+		if (keys.isEmpty()) return;
+		Map<Key, Entity> found = mapper.get(datastoreService, keys);
+		for (Key key : keys.keySet()) {
+			entities.put(key, Optional.ofNullable(found.get(key)));
+		}
+	}
+
+	/**
+	 * @return the batch of the lazy proxies created in this context
+	 */
+	synchronized LazyBatch getLazyBatch() {
+		if (lazyBatch == null) {
+			lazyBatch = new LazyBatch(mapper, datastoreService, mapper.getLazyBatchSize());
+		}
+		return lazyBatch;
+	}
+
+	Object getInstance(Key key) {
+		return instances.get(key);
+	}
+
+	/**
+	 * Registers the instance mapped for the key, unless another thread did it first.
+	 *
+	 * @return the instance previously registered, or null if the given one was kept
+	 */
+	Object putInstanceIfAbsent(Key key, Object instance) {
+		return instances.putIfAbsent(key, instance);
+	}
+
+}
@@ -0,0 +1,251 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ar.sgt.appengine.datastore.batch.ScanOptions;
+import com.ar.sgt.appengine.datastore.batch.ScanResult;
+import com.ar.sgt.appengine.datastore.metrics.Operation;
+import com.ar.sgt.appengine.datastore.metrics.RepositoryMetrics;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+
+/**
+ * Scans a whole kind in parallel. The kind is split in key ranges from a sample of keys sorted by the
+ * {@value Entity#SCATTER_RESERVED_PROPERTY} property, and workers read the ranges in chunks with a cursor,
+ * map each chunk and hand it to the calling thread through a bounded buffer. Entities are delivered in no
+ * particular order.
+ */
+class ParallelScan<T> {
+
+	/**
+	 * Sampled keys per range. Only a small fraction of entities have a scatter property, so split points come
+	 * from several samples to get ranges of similar size.
+	 */
+	private static final int OVERSAMPLING = 32;
+
+	/**
+	 * Put in the buffer by each worker when it runs out of ranges.
+	 */
+	private final List<T> done = new ArrayList<T>(0);
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final DatastoreService datastoreService;
+
+	private final String kind;
+
+	private final Function<List<Entity>, List<T>> mapping;
+
+	private final RepositoryMetrics metrics;
+
+	private final ScanOptions options;
+
+	private volatile boolean cancelled;
+
+	/**
+	 * Error that ended a worker, rethrown on the calling thread.
+	 */
+	private volatile Error error;
+
+	ParallelScan(DatastoreService datastoreService, String kind, Function<List<Entity>, List<T>> mapping, RepositoryMetrics metrics, ScanOptions options) {
+		this.datastoreService = datastoreService;
+		this.kind = kind;
+		this.mapping = mapping;
+		this.metrics = metrics;
+		this.options = options;
+	}
+
+	/**
+	 * Runs the scan, passing every entity to the consumer on the calling thread. If the consumer throws, or a
+	 * worker fails with an Error, the scan is cancelled and the exception rethrown. Failed ranges are reported
+	 * in the result instead.
+	 */
+	ScanResult run(final Consumer<? super T> consumer) {
+		ScanResult result = new ScanResult();
+		List<Key> splits = split(options.getRanges());
+		Queue<Key[]> ranges = new ConcurrentLinkedQueue<Key[]>();
+		for (int i = 0; i <= splits.size(); i++) {
+			ranges.add(new Key[] { i > 0 ? splits.get(i - 1) : null, i < splits.size() ? splits.get(i) : null });
+		}
+		result.ranges(ranges.size());
+		logger.debug("Scanning {} in {} ranges", kind, ranges.size());
+		BlockingQueue<List<T>> buffer = new ArrayBlockingQueue<List<T>>(options.getBufferSize());
+		int workers = Math.min(options.getParallelism(), ranges.size());
+		List<Future<?>> futures = new ArrayList<Future<?>>(workers);
+		try {
+			for (int i = 0; i < workers; i++) {
+				futures.add(options.getExecutor().submit(() -> work(ranges, buffer, result)));
+			}
+			int finished = 0;
+			while (finished < workers) {
+				List<T> chunk = buffer.take();
+				if (chunk == done) {
+					if (error != null) throw error;
+					finished++;
+					continue;
+				}
+				for (T object : chunk) {
+					consumer.accept(object);
+				}
+				result.delivered(chunk.size());
+				if (options.getProgressListener() != null) options.getProgressListener().accept(result);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancel(futures, buffer);
+			throw new RuntimeException("Interrupted while scanning " + kind, e);
+		} catch (RuntimeException | Error e) {
+			cancel(futures, buffer);
+			throw e;
+		}
+		return result;
+	}
+
+	private void cancel(final List<Future<?>> futures, final BlockingQueue<List<T>> buffer) {
+		cancelled = true;
+		for (Future<?> future : futures) {
+			future.cancel(true);
+		}
+		buffer.clear();
+	}
+
+	private void work(final Queue<Key[]> ranges, final BlockingQueue<List<T>> buffer, final ScanResult result) {
+		try {
+			Key[] range;
+			while (!cancelled && (range = ranges.poll()) != null) {
+				scan(range[0], range[1], buffer, result);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Error e) {
+			logger.error("Scan {}: worker failed: {}", kind, e);
+			error = e;
+		} finally {
+			finish(buffer);
+		}
+	}
+
+	/**
+	 * Tells the calling thread this worker is done, however it ended. Only a cancelled scan has nobody
+	 * waiting for it.
+	 */
+	private void finish(final BlockingQueue<List<T>> buffer) {
+		boolean interrupted = Thread.interrupted();
+		try {
+			while (!cancelled) {
+				try {
+					buffer.put(done);
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	private void scan(final Key start, final Key end, final BlockingQueue<List<T>> buffer, final ScanResult result) throws InterruptedException {
+		try {
+			Query query = query(start, end);
+			Cursor cursor = null;
+			while (!cancelled) {
+				FetchOptions fetchOptions = FetchOptions.Builder.withLimit(options.getChunkSize());
+				if (cursor != null) fetchOptions.startCursor(cursor);
+				long rpcStart = System.nanoTime();
+				QueryResultList<Entity> chunk = datastoreService.prepare(query).asQueryResultList(fetchOptions);
+				metrics.rpc(kind, Operation.FIND, System.nanoTime() - rpcStart, chunk.size());
+				if (!chunk.isEmpty()) buffer.put(mapping.apply(chunk));
+				if (chunk.size() < options.getChunkSize()) break;
+				cursor = chunk.getCursor();
+			}
+			result.completed();
+		} catch (RuntimeException e) {
+			// interrupted by cancel, nobody is waiting for the result
+			if (cancelled) return;
+			logger.error("Scan {}: range {}-{} failed: {}", kind, start, end, e);
+			result.failure(start, end, e);
+		}
+	}
+
+	private Query query(final Key start, final Key end) {
+		Query query = new Query(kind);
+		List<Filter> filters = new ArrayList<Filter>(2);
+		if (start != null) filters.add(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY, FilterOperator.GREATER_THAN_OR_EQUAL, start));
+		if (end != null) filters.add(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY, FilterOperator.LESS_THAN, end));
+		if (filters.size() == 1) {
+			query.setFilter(filters.get(0));
+		} else if (filters.size() == 2) {
+			query.setFilter(CompositeFilterOperator.and(filters));
+		}
+		return query;
+	}
+
+	/**
+	 * @return the sorted keys where each range but the first starts, empty for a single range
+	 */
+	private List<Key> split(final int ranges) {
+		if (ranges < 2) return Collections.emptyList();
+		Query query = new Query(kind).addSort(Entity.SCATTER_RESERVED_PROPERTY).setKeysOnly();
+		List<Key> samples = new ArrayList<Key>();
+		for (Entity entity : datastoreService.prepare(query).asIterable(FetchOptions.Builder.withLimit(ranges * OVERSAMPLING))) {
+			samples.add(entity.getKey());
+		}
+		Collections.sort(samples);
+		List<Key> splits = new ArrayList<Key>(ranges - 1);
+		for (int i = 1; i < ranges && !samples.isEmpty(); i++) {
+			Key key = samples.get(i * samples.size() / ranges);
+			if (splits.isEmpty() || key.compareTo(splits.get(splits.size() - 1)) > 0) splits.add(key);
+		}
+		logger.debug("Split {} with {} scatter samples: {}", kind, samples.size(), splits.size());
+		return splits;
+	}
+
+}
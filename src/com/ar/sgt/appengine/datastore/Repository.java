@@ -28,10 +28,19 @@ package com.ar.sgt.appengine.datastore;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
+import com.ar.sgt.appengine.datastore.batch.BatchOptions;
+import com.ar.sgt.appengine.datastore.batch.BatchResult;
+import com.ar.sgt.appengine.datastore.batch.ImportOptions;
+import com.ar.sgt.appengine.datastore.batch.ImportResult;
+import com.ar.sgt.appengine.datastore.batch.ScanOptions;
+import com.ar.sgt.appengine.datastore.batch.ScanResult;
 import com.ar.sgt.appengine.datastore.query.Order;
 import com.ar.sgt.appengine.datastore.query.PageRequest;
 import com.ar.sgt.appengine.datastore.query.PageResult;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Transaction;
 
@@ -46,6 +55,25 @@ public interface Repository<T extends AbstractEntity> {
 	List<T> findAll();
 
 	List<T> findAll(Order order);
+
+	/**
+	 * Streams every entity of the kind, see {@link #stream(Query, FetchOptions)}.
+	 */
+	Stream<T> stream();
+
+	/**
+	 * Streams the query results, pulling them from the datastore in chunks of {@link FetchOptions#chunkSize(int)}
+	 * entities and mapping each chunk as it arrives. Only the current chunk is held in memory, streamed objects
+	 * are not added to the open {@link Session}.
+	 */
+	Stream<T> stream(Query query, FetchOptions fetchOptions);
+
+	/**
+	 * Reads every entity of the kind with parallel key range queries and passes them to the consumer, in no
+	 * particular order, on the calling thread. Blocks until the scan is done. Scanned objects are not added to
+	 * the open {@link Session}.
+	 */
+	ScanResult scan(Consumer<? super T> consumer, ScanOptions options);
 	
 	void delete(Long id);
 	
@@ -53,10 +81,51 @@ public interface Repository<T extends AbstractEntity> {
 
 	void delete(Iterable<Long> it);
 
+	BatchResult delete(Iterable<Long> it, BatchOptions options);
+
+	/**
+	 * Deletes every entity matching the query. Keys are streamed from a keys only query into batch deletes,
+	 * entities are never loaded.
+	 */
+	BatchResult deleteWhere(Query query);
+
+	BatchResult deleteWhere(Query query, BatchOptions options);
+
 	void save(Iterable<T> it);
 
+	BatchResult save(Iterable<T> it, BatchOptions options);
+
+	/**
+	 * Starts a {@link BulkImport} of objects of this kind, finish it to wait for the pending writes.
+	 */
+	BulkImport<T> bulkImport(ImportOptions options);
+
+	/**
+	 * Writes the objects through a {@link BulkImport}, iterating them as fast as the pipeline accepts them.
+	 */
+	ImportResult importAll(Iterable<T> it, ImportOptions options);
+
 	PageResult<T> findAll(PageRequest pageRequest);
 
 	PageResult<T> find(Query query, PageRequest pageRequest);
 
+	/**
+	 * Runs the query as keys only and returns the matching ids, entities are never loaded.
+	 */
+	List<Long> findIds(Query query);
+
+	/**
+	 * @return true if an entity exists for every given id, checked with keys only queries; false if no id is given
+	 */
+	boolean exists(Long... ids);
+
+	/**
+	 * Runs the query as a projection of the properties mapped by the given type and maps the results into it.
+	 * Only indexed properties can be projected and entities missing one of them are not returned, relations
+	 * are not loaded.
+	 */
+	<D> List<D> findProjection(Query query, Class<D> projection);
+
+	<D> PageResult<D> findProjection(Query query, Class<D> projection, PageRequest pageRequest);
+
 }
\ No newline at end of file
@@ -0,0 +1,286 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ar.sgt.appengine.datastore.batch.BatchOptions;
+import com.ar.sgt.appengine.datastore.metrics.Operation;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Unit of work bound to the current thread, usually opened for a request:
+ * <pre>
+ * try (Session session = Session.open()) {
+ *     ...
+ * }
+ * </pre>
+ * While open, every key loaded through repositories, relations or lazy proxies is mapped to a single instance
+ * and later lookups are served from it without RPCs; objects of streams and scans are left out so they can be
+ * released. Repository save and delete calls without an explicit transaction are queued, coalesced and written
+ * on {@link #flush()} or {@link #close()} with as few batch puts and deletes as possible. New entities get
+ * their id when the session is flushed.
+ */
+public class Session implements AutoCloseable {
+
+	private static final ThreadLocal<Session> CURRENT = new ThreadLocal<Session>();
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final DatastoreService datastoreService;
+
+	private final ConcurrentMap<Key, Optional<Entity>> entities = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<Key, Object> instances = new ConcurrentHashMap<>();
+
+	private final List<PendingSave> saves = new ArrayList<PendingSave>();
+
+	private final Set<Object> saved = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+	private final Map<Key, PendingDelete> deletes = new LinkedHashMap<Key, PendingDelete>();
+
+	private Session(DatastoreService datastoreService) {
+		this.datastoreService = datastoreService;
+	}
+
+	public static Session open() {
+		return open(DatastoreServiceFactory.getDatastoreService());
+	}
+
+	public static Session open(DatastoreService datastoreService) {
+		if (CURRENT.get() != null) throw new IllegalStateException("A session is already open in this thread");
+		Session session = new Session(datastoreService);
+		CURRENT.set(session);
+		return session;
+	}
+
+	/**
+	 * @return the session open in the current thread, or null
+	 */
+	public static Session current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Writes the pending saves in batch puts of up to {@value BatchOptions#MAX_CHUNK_SIZE} entities of any kind,
+	 * then the pending deletes the same way. Objects unchanged since loaded are skipped if their mapper tracks them.
+	 * Each chunk is written through to the cache right after its RPC, and a failed chunk is dropped from it, so
+	 * the cache never keeps what chunks written before a failure replaced or deleted. Writes of the chunks
+	 * already written are no longer pending when a later chunk fails.
+	 */
+	public synchronized void flush() {
+		if (saves.isEmpty() && deletes.isEmpty()) return;
+		logger.info("Flush session: {} saves, {} deletes", saves.size(), deletes.size());
+		List<Entity> toPut = new ArrayList<Entity>(saves.size());
+		for (Iterator<PendingSave> it = saves.iterator(); it.hasNext();) {
+			PendingSave save = it.next();
+			Entity entity = save.toEntity();
+			if (save.mapper.skipWrite(save.object, entity)) {
+				it.remove();
+			} else {
+				toPut.add(entity);
+			}
+		}
+		int from = 0;
+		try {
+			for (; from < toPut.size(); from += BatchOptions.MAX_CHUNK_SIZE) {
+				int to = Math.min(from + BatchOptions.MAX_CHUNK_SIZE, toPut.size());
+				put(saves.subList(from, to), toPut.subList(from, to));
+			}
+		} finally {
+			List<PendingSave> written = saves.subList(0, Math.min(from, saves.size()));
+			for (PendingSave save : written) {
+				saved.remove(save.object);
+			}
+			written.clear();
+		}
+		List<Key> keys = new ArrayList<Key>(deletes.keySet());
+		for (from = 0; from < keys.size(); from += BatchOptions.MAX_CHUNK_SIZE) {
+			delete(keys.subList(from, Math.min(from + BatchOptions.MAX_CHUNK_SIZE, keys.size())));
+		}
+	}
+
+	private void put(final List<PendingSave> pending, final List<Entity> chunk) {
+		long start = System.nanoTime();
+		List<Key> keys;
+		try {
+			keys = datastoreService.put((Transaction) null, chunk);
+		} catch (RuntimeException e) {
+			// the put may have been applied in part, drop the cached entries it could have replaced
+			for (int i = 0; i < chunk.size(); i++) {
+				Key key = chunk.get(i).getKey();
+				if (key.isComplete()) pending.get(i).mapper.cacheInvalidate(Collections.singletonList(key), pending.get(i).type);
+			}
+			throw e;
+		}
+		pending.get(0).mapper.getMetrics().rpc(chunk.get(0).getKind(), Operation.SAVE, System.nanoTime() - start, chunk.size());
+		AccessTracker.call(Operation.SAVE, chunk.get(0).getKind(), chunk.size());
+		Map<Class<?>, List<Entity>> putByType = new LinkedHashMap<Class<?>, List<Entity>>();
+		Map<Class<?>, EntityMapper> mappers = new LinkedHashMap<Class<?>, EntityMapper>();
+		for (int i = 0; i < keys.size(); i++) {
+			PendingSave save = pending.get(i);
+			save.object.setId(keys.get(i).getId());
+			save.mapper.snapshot(save.object, chunk.get(i));
+			instances.put(keys.get(i), save.object);
+			putByType.computeIfAbsent(save.type, t -> new ArrayList<Entity>()).add(chunk.get(i));
+			mappers.putIfAbsent(save.type, save.mapper);
+		}
+		for (Map.Entry<Class<?>, List<Entity>> put : putByType.entrySet()) {
+			mappers.get(put.getKey()).cachePut(put.getValue(), put.getKey());
+		}
+	}
+
+	private void delete(final List<Key> chunk) {
+		Map<Class<?>, List<Key>> deleteByType = new LinkedHashMap<Class<?>, List<Key>>();
+		Map<Class<?>, EntityMapper> mappers = new LinkedHashMap<Class<?>, EntityMapper>();
+		for (Key key : chunk) {
+			PendingDelete delete = deletes.get(key);
+			deleteByType.computeIfAbsent(delete.type, t -> new ArrayList<Key>()).add(key);
+			mappers.putIfAbsent(delete.type, delete.mapper);
+		}
+		long start = System.nanoTime();
+		try {
+			datastoreService.delete((Transaction) null, chunk);
+			deletes.get(chunk.get(0)).mapper.getMetrics().rpc(chunk.get(0).getKind(), Operation.DELETE, System.nanoTime() - start, chunk.size());
+			AccessTracker.call(Operation.DELETE, chunk.get(0).getKind(), chunk.size());
+			deletes.keySet().removeAll(chunk);
+		} finally {
+			// a failed delete may have been applied in part too
+			for (Map.Entry<Class<?>, List<Key>> delete : deleteByType.entrySet()) {
+				mappers.get(delete.getKey()).cacheInvalidate(delete.getValue(), delete.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Drops pending writes and every mapped instance.
+	 */
+	public synchronized void clear() {
+		saves.clear();
+		saved.clear();
+		deletes.clear();
+		entities.clear();
+		instances.clear();
+	}
+
+	/**
+	 * Flushes pending writes and unbinds the session from the thread, even if the flush fails.
+	 */
+	@Override
+	public void close() {
+		try {
+			flush();
+		} finally {
+			if (CURRENT.get() == this) CURRENT.remove();
+		}
+	}
+
+	synchronized void save(AbstractEntity object, Class<?> type, EntityMapper mapper) {
+		if (object.getId() != null) {
+			Key key = mapper.getKey(type, object.getId());
+			deletes.remove(key);
+			entities.remove(key);
+			instances.put(key, object);
+		}
+		if (saved.add(object)) {
+			saves.add(new PendingSave(object, type, mapper));
+		}
+	}
+
+	synchronized void delete(Key key, Class<?> type, EntityMapper mapper) {
+		for (Iterator<PendingSave> it = saves.iterator(); it.hasNext();) {
+			PendingSave save = it.next();
+			if (save.object.getId() != null && key.equals(mapper.getKey(save.type, save.object.getId()))) {
+				it.remove();
+				saved.remove(save.object);
+			}
+		}
+		instances.remove(key);
+		entities.put(key, Optional.<Entity>empty());
+		deletes.put(key, new PendingDelete(type, mapper));
+	}
+
+	LoadContext newContext(EntityMapper mapper, DatastoreService datastoreService) {
+		return new LoadContext(mapper, datastoreService, entities, instances);
+	}
+
+	private static class PendingSave {
+
+		final AbstractEntity object;
+
+		final Class<?> type;
+
+		final EntityMapper mapper;
+
+		PendingSave(AbstractEntity object, Class<?> type, EntityMapper mapper) {
+			this.object = object;
+			this.type = type;
+			this.mapper = mapper;
+		}
+
+		Entity toEntity() {
+			try {
+				return mapper.toDatastoreEntity(object, type);
+			} catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException | InstantiationException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+	}
+
+	private static class PendingDelete {
+
+		final Class<?> type;
+
+		final EntityMapper mapper;
+
+		PendingDelete(Class<?> type, EntityMapper mapper) {
+			this.type = type;
+			this.mapper = mapper;
+		}
+
+	}
+
+}
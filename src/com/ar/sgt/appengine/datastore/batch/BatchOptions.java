@@ -0,0 +1,119 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.batch;
+
+/**
+ * Options of batch writes and deletes. Operations are split in chunks, each issued as a single datastore call.
+ */
+public class BatchOptions {
+
+	/**
+	 * Maximum number of entities the datastore accepts in a single put or delete.
+	 */
+	public static final int MAX_CHUNK_SIZE = 500;
+
+	/**
+	 * Maximum number of keys the datastore accepts in a single get.
+	 */
+	public static final int MAX_GET_SIZE = 1000;
+
+	/**
+	 * Maximum number of entity groups a cross group transaction can touch.
+	 */
+	public static final int MAX_TRANSACTION_GROUPS = 25;
+
+	private final boolean transactional;
+
+	private int chunkSize;
+
+	private boolean stopOnFailure = false;
+
+	private int parallelism = 1;
+
+	private BatchOptions(boolean transactional, int chunkSize) {
+		this.transactional = transactional;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Each chunk is written in its own cross group transaction, so chunks are limited to
+	 * {@value #MAX_TRANSACTION_GROUPS} root entities.
+	 */
+	public static BatchOptions transactional() {
+		return new BatchOptions(true, MAX_TRANSACTION_GROUPS);
+	}
+
+	public static BatchOptions nonTransactional() {
+		return new BatchOptions(false, MAX_CHUNK_SIZE);
+	}
+
+	public BatchOptions withChunkSize(int chunkSize) {
+		if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be positive");
+		this.chunkSize = Math.min(chunkSize, transactional ? MAX_TRANSACTION_GROUPS : MAX_CHUNK_SIZE);
+		return this;
+	}
+
+	/**
+	 * Stop processing on the first failed chunk. By default remaining chunks are still processed.
+	 */
+	public BatchOptions withStopOnFailure(boolean stopOnFailure) {
+		this.stopOnFailure = stopOnFailure;
+		return this;
+	}
+
+	/**
+	 * Maximum number of chunks in flight at once. Only non-transactional deletes run chunks concurrently,
+	 * through the async datastore service.
+	 */
+	public BatchOptions withParallelism(int parallelism) {
+		if (parallelism < 1) throw new IllegalArgumentException("parallelism must be positive");
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	public boolean isTransactional() {
+		return transactional;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public boolean isStopOnFailure() {
+		return stopOnFailure;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	@Override
+	public String toString() {
+		return "BatchOptions [transactional=" + transactional + ", chunkSize=" + chunkSize + ", parallelism=" + parallelism + "]";
+	}
+
+}
@@ -0,0 +1,138 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.batch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a batch operation. Chunks are independent, a failed chunk doesn't undo the ones already written.
+ */
+public class BatchResult {
+
+	private int processed;
+
+	private int chunks;
+
+	private int skipped;
+
+	private final List<ChunkFailure> failures = new ArrayList<>();
+
+	public synchronized void success(int count) {
+		processed += count;
+		chunks++;
+	}
+
+	public synchronized void failure(int offset, int count, RuntimeException cause) {
+		failures.add(new ChunkFailure(offset, count, cause));
+		chunks++;
+	}
+
+	public synchronized void skipped(int count) {
+		skipped += count;
+	}
+
+	/**
+	 * @return number of elements successfully processed
+	 */
+	public synchronized int getProcessed() {
+		return processed;
+	}
+
+	/**
+	 * @return number of elements not written because they didn't change, not counted as processed
+	 */
+	public synchronized int getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return number of chunks issued, successful or not
+	 */
+	public synchronized int getChunks() {
+		return chunks;
+	}
+
+	public synchronized List<ChunkFailure> getFailures() {
+		return Collections.unmodifiableList(new ArrayList<>(failures));
+	}
+
+	public synchronized boolean isSuccess() {
+		return failures.isEmpty();
+	}
+
+	/**
+	 * Throws the cause of the first failure, if any.
+	 */
+	public synchronized void rethrow() {
+		if (!failures.isEmpty()) {
+			throw failures.get(0).getCause();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BatchResult [processed=" + processed + ", chunks=" + chunks + ", skipped=" + skipped + ", failures=" + failures + "]";
+	}
+
+	public static class ChunkFailure {
+
+		private final int offset;
+
+		private final int count;
+
+		private final RuntimeException cause;
+
+		ChunkFailure(int offset, int count, RuntimeException cause) {
+			this.offset = offset;
+			this.count = count;
+			this.cause = cause;
+		}
+
+		/**
+		 * @return position of the first element of the chunk in the original sequence
+		 */
+		public int getOffset() {
+			return offset;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public RuntimeException getCause() {
+			return cause;
+		}
+
+		@Override
+		public String toString() {
+			return "[offset=" + offset + ", count=" + count + ", cause=" + cause + "]";
+		}
+	}
+
+}
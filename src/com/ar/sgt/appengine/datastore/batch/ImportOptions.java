@@ -0,0 +1,173 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.batch;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Options of bulk imports. Objects go through a bounded queue to the mapping workers, are grouped in batches
+ * by count and serialized size, and written by concurrent writers with retries.
+ */
+public class ImportOptions {
+
+	public static final int DEFAULT_MAPPERS = 2;
+
+	public static final int DEFAULT_WRITERS = 4;
+
+	public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+	/**
+	 * Default serialized size of a batch, well under the size limit of a datastore request.
+	 */
+	public static final long DEFAULT_BATCH_BYTES = 4 * 1024 * 1024;
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+	public static final long DEFAULT_RETRY_DELAY = 200;
+
+	private final ExecutorService executor;
+
+	private int mappers = DEFAULT_MAPPERS;
+
+	private int writers = DEFAULT_WRITERS;
+
+	private int queueSize = DEFAULT_QUEUE_SIZE;
+
+	private int batchSize = BatchOptions.MAX_CHUNK_SIZE;
+
+	private long batchBytes = DEFAULT_BATCH_BYTES;
+
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+	private long retryDelay = DEFAULT_RETRY_DELAY;
+
+	private ImportOptions(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * The executor must be able to run mappers + writers + 1 tasks at once, the stages wait on each other.
+	 * On App Engine its threads must be request threads (ThreadManager.currentRequestThreadFactory()).
+	 */
+	public static ImportOptions on(ExecutorService executor) {
+		if (executor == null) throw new IllegalArgumentException("executor is required");
+		return new ImportOptions(executor);
+	}
+
+	/**
+	 * Number of workers converting objects to entities.
+	 */
+	public ImportOptions withMappers(int mappers) {
+		if (mappers < 1) throw new IllegalArgumentException("mappers must be positive");
+		this.mappers = mappers;
+		return this;
+	}
+
+	/**
+	 * Number of batch puts in flight at once.
+	 */
+	public ImportOptions withWriters(int writers) {
+		if (writers < 1) throw new IllegalArgumentException("writers must be positive");
+		this.writers = writers;
+		return this;
+	}
+
+	/**
+	 * Capacity of the queues between stages. Adding objects blocks while the queue is full, so at most about
+	 * twice this many objects plus the batches being written are held in memory.
+	 */
+	public ImportOptions withQueueSize(int queueSize) {
+		if (queueSize < 1) throw new IllegalArgumentException("queueSize must be positive");
+		this.queueSize = queueSize;
+		return this;
+	}
+
+	public ImportOptions withBatchSize(int batchSize) {
+		if (batchSize < 1) throw new IllegalArgumentException("batchSize must be positive");
+		this.batchSize = Math.min(batchSize, BatchOptions.MAX_CHUNK_SIZE);
+		return this;
+	}
+
+	/**
+	 * Maximum serialized size of the entities of a batch. A single larger entity is still written on its own.
+	 */
+	public ImportOptions withBatchBytes(long batchBytes) {
+		if (batchBytes < 1) throw new IllegalArgumentException("batchBytes must be positive");
+		this.batchBytes = batchBytes;
+		return this;
+	}
+
+	/**
+	 * Attempts of a batch put failing with a timeout, contention or a transient datastore error. Retries wait
+	 * the retry delay, doubled on each attempt.
+	 */
+	public ImportOptions withRetries(int maxAttempts, long retryDelay) {
+		if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be positive");
+		if (retryDelay < 0) throw new IllegalArgumentException("retryDelay can't be negative");
+		this.maxAttempts = maxAttempts;
+		this.retryDelay = retryDelay;
+		return this;
+	}
+
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	public int getMappers() {
+		return mappers;
+	}
+
+	public int getWriters() {
+		return writers;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public long getBatchBytes() {
+		return batchBytes;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public long getRetryDelay() {
+		return retryDelay;
+	}
+
+	@Override
+	public String toString() {
+		return "ImportOptions [mappers=" + mappers + ", writers=" + writers + ", queueSize=" + queueSize + ", batchSize=" + batchSize + ", batchBytes=" + batchBytes + ", maxAttempts=" + maxAttempts + "]";
+	}
+
+}
@@ -0,0 +1,212 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.batch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running totals of a bulk import, updated by the pipeline stages. Failed batches don't stop the import.
+ */
+public class ImportResult {
+
+	private final long started = System.nanoTime();
+
+	private long finished;
+
+	private long accepted;
+
+	private long written;
+
+	private long skipped;
+
+	private long failed;
+
+	private int batches;
+
+	private int retries;
+
+	private long bytes;
+
+	private long putNanos;
+
+	private long maxPutNanos;
+
+	private final List<ImportFailure> failures = new ArrayList<>();
+
+	public synchronized void accepted() {
+		accepted++;
+	}
+
+	public synchronized void skipped() {
+		skipped++;
+	}
+
+	public synchronized void written(int count, long batchBytes, long nanos) {
+		written += count;
+		bytes += batchBytes;
+		batches++;
+		putNanos += nanos;
+		maxPutNanos = Math.max(maxPutNanos, nanos);
+	}
+
+	public synchronized void retried() {
+		retries++;
+	}
+
+	public synchronized void failure(int count, RuntimeException cause) {
+		failed += count;
+		failures.add(new ImportFailure(count, cause));
+	}
+
+	public synchronized void finished() {
+		finished = System.nanoTime();
+	}
+
+	/**
+	 * @return number of objects added to the import
+	 */
+	public synchronized long getAccepted() {
+		return accepted;
+	}
+
+	public synchronized long getWritten() {
+		return written;
+	}
+
+	/**
+	 * @return number of objects not written because they didn't change, see dirty tracking
+	 */
+	public synchronized long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return number of objects that couldn't be mapped or written
+	 */
+	public synchronized long getFailed() {
+		return failed;
+	}
+
+	/**
+	 * @return number of successful batch puts
+	 */
+	public synchronized int getBatches() {
+		return batches;
+	}
+
+	public synchronized int getRetries() {
+		return retries;
+	}
+
+	/**
+	 * @return serialized size of the written entities
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return time since the import started, until it finished
+	 */
+	public synchronized long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis((finished != 0 ? finished : System.nanoTime()) - started);
+	}
+
+	/**
+	 * @return written entities per second
+	 */
+	public synchronized double getThroughput() {
+		long elapsed = (finished != 0 ? finished : System.nanoTime()) - started;
+		return elapsed > 0 ? written * 1e9 / elapsed : 0;
+	}
+
+	/**
+	 * @return average latency of the successful batch puts, including retries
+	 */
+	public synchronized double getAveragePutMillis() {
+		return batches > 0 ? putNanos / 1e6 / batches : 0;
+	}
+
+	public synchronized double getMaxPutMillis() {
+		return maxPutNanos / 1e6;
+	}
+
+	public synchronized List<ImportFailure> getFailures() {
+		return Collections.unmodifiableList(new ArrayList<>(failures));
+	}
+
+	public synchronized boolean isSuccess() {
+		return failures.isEmpty();
+	}
+
+	/**
+	 * Throws the cause of the first failure, if any.
+	 */
+	public synchronized void rethrow() {
+		if (!failures.isEmpty()) {
+			throw failures.get(0).getCause();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("ImportResult [accepted=%d, written=%d, skipped=%d, failed=%d, batches=%d, retries=%d, bytes=%d, elapsed=%dms, throughput=%.1f/s, put=%.1fms avg %.1fms max, failures=%s]",
+				accepted, written, skipped, failed, batches, retries, bytes, getElapsedMillis(), getThroughput(), getAveragePutMillis(), getMaxPutMillis(), failures);
+	}
+
+	public static class ImportFailure {
+
+		private final int count;
+
+		private final RuntimeException cause;
+
+		ImportFailure(int count, RuntimeException cause) {
+			this.count = count;
+			this.cause = cause;
+		}
+
+		/**
+		 * @return number of objects lost, a single one for mapping failures or a whole batch
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		public RuntimeException getCause() {
+			return cause;
+		}
+
+		@Override
+		public String toString() {
+			return "[count=" + count + ", cause=" + cause + "]";
+		}
+	}
+
+}
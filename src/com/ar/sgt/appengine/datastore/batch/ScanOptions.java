@@ -0,0 +1,145 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.batch;
+
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+/**
+ * Options of parallel scans. The kind is split in key ranges, scanned by up to parallelism workers of the
+ * given executor, each range read in chunks with a cursor.
+ */
+public class ScanOptions {
+
+	public static final int DEFAULT_CHUNK_SIZE = 100;
+
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	/**
+	 * Key ranges per worker when the number of ranges isn't set, so workers done with small ranges can help
+	 * with the rest.
+	 */
+	public static final int RANGES_PER_WORKER = 4;
+
+	private final ExecutorService executor;
+
+	private int parallelism = DEFAULT_PARALLELISM;
+
+	private int ranges;
+
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+	private int bufferSize;
+
+	private Consumer<ScanResult> progressListener;
+
+	private ScanOptions(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * On App Engine the executor threads must be request threads (ThreadManager.currentRequestThreadFactory()),
+	 * workers run queries and build keys.
+	 */
+	public static ScanOptions on(ExecutorService executor) {
+		if (executor == null) throw new IllegalArgumentException("executor is required");
+		return new ScanOptions(executor);
+	}
+
+	/**
+	 * Maximum number of ranges scanned at once.
+	 */
+	public ScanOptions withParallelism(int parallelism) {
+		if (parallelism < 1) throw new IllegalArgumentException("parallelism must be positive");
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * Number of key ranges the kind is split in, by default {@value #RANGES_PER_WORKER} per worker. Fewer
+	 * ranges are used if the kind is too small to split that much.
+	 */
+	public ScanOptions withRanges(int ranges) {
+		if (ranges < 1) throw new IllegalArgumentException("ranges must be positive");
+		this.ranges = ranges;
+		return this;
+	}
+
+	public ScanOptions withChunkSize(int chunkSize) {
+		if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be positive");
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	/**
+	 * Maximum number of mapped chunks waiting for the consumer, by default two per worker. Workers wait while
+	 * the buffer is full, so a slow consumer holds at most this many chunks in memory.
+	 */
+	public ScanOptions withBufferSize(int bufferSize) {
+		if (bufferSize < 1) throw new IllegalArgumentException("bufferSize must be positive");
+		this.bufferSize = bufferSize;
+		return this;
+	}
+
+	/**
+	 * Called on the consumer thread after every chunk delivered, with the running totals.
+	 */
+	public ScanOptions withProgressListener(Consumer<ScanResult> progressListener) {
+		this.progressListener = progressListener;
+		return this;
+	}
+
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public int getRanges() {
+		return ranges > 0 ? ranges : parallelism * RANGES_PER_WORKER;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public int getBufferSize() {
+		return bufferSize > 0 ? bufferSize : parallelism * 2;
+	}
+
+	public Consumer<ScanResult> getProgressListener() {
+		return progressListener;
+	}
+
+	@Override
+	public String toString() {
+		return "ScanOptions [parallelism=" + parallelism + ", ranges=" + getRanges() + ", chunkSize=" + chunkSize + ", bufferSize=" + getBufferSize() + "]";
+	}
+
+}
@@ -0,0 +1,154 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.batch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Outcome and progress of a parallel scan. A failed range doesn't stop the others, entities of the range read
+ * before the failure were already delivered.
+ */
+public class ScanResult {
+
+	private int ranges;
+
+	private int completedRanges;
+
+	private long processed;
+
+	private int chunks;
+
+	private final List<RangeFailure> failures = new ArrayList<>();
+
+	public synchronized void ranges(int count) {
+		ranges = count;
+	}
+
+	public synchronized void completed() {
+		completedRanges++;
+	}
+
+	public synchronized void delivered(int count) {
+		processed += count;
+		chunks++;
+	}
+
+	public synchronized void failure(Key start, Key end, RuntimeException cause) {
+		failures.add(new RangeFailure(start, end, cause));
+		completedRanges++;
+	}
+
+	/**
+	 * @return number of key ranges the kind was split in
+	 */
+	public synchronized int getRanges() {
+		return ranges;
+	}
+
+	/**
+	 * @return number of ranges fully read or failed
+	 */
+	public synchronized int getCompletedRanges() {
+		return completedRanges;
+	}
+
+	/**
+	 * @return number of entities delivered to the consumer
+	 */
+	public synchronized long getProcessed() {
+		return processed;
+	}
+
+	public synchronized int getChunks() {
+		return chunks;
+	}
+
+	public synchronized List<RangeFailure> getFailures() {
+		return Collections.unmodifiableList(new ArrayList<>(failures));
+	}
+
+	public synchronized boolean isSuccess() {
+		return failures.isEmpty();
+	}
+
+	/**
+	 * Throws the cause of the first failure, if any.
+	 */
+	public synchronized void rethrow() {
+		if (!failures.isEmpty()) {
+			throw failures.get(0).getCause();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ScanResult [ranges=" + completedRanges + "/" + ranges + ", processed=" + processed + ", chunks=" + chunks + ", failures=" + failures + "]";
+	}
+
+	public static class RangeFailure {
+
+		private final Key start;
+
+		private final Key end;
+
+		private final RuntimeException cause;
+
+		RangeFailure(Key start, Key end, RuntimeException cause) {
+			this.start = start;
+			this.end = end;
+			this.cause = cause;
+		}
+
+		/**
+		 * @return first key of the range, null for the start of the kind
+		 */
+		public Key getStart() {
+			return start;
+		}
+
+		/**
+		 * @return key after the range, null for the end of the kind
+		 */
+		public Key getEnd() {
+			return end;
+		}
+
+		public RuntimeException getCause() {
+			return cause;
+		}
+
+		@Override
+		public String toString() {
+			return "[start=" + start + ", end=" + end + ", cause=" + cause + "]";
+		}
+	}
+
+}
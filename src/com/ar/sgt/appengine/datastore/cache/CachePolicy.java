@@ -0,0 +1,79 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.cache;
+
+import com.ar.sgt.appengine.datastore.annotation.Cached;
+
+/**
+ * Cache settings of a kind. Expirations are in seconds, 0 means entities never expire and missing ids are
+ * not cached.
+ */
+public final class CachePolicy {
+
+	private final int expiration;
+
+	private final int missingExpiration;
+
+	private CachePolicy(int expiration, int missingExpiration) {
+		if (expiration < 0 || missingExpiration < 0) throw new IllegalArgumentException("expiration can't be negative");
+		this.expiration = expiration;
+		this.missingExpiration = missingExpiration;
+	}
+
+	/**
+	 * Policy with the given expiration, missing ids are not cached.
+	 */
+	public static CachePolicy of(int expiration) {
+		return new CachePolicy(expiration, 0);
+	}
+
+	public static CachePolicy of(Cached cached) {
+		return new CachePolicy(cached.expiration(), cached.missingExpiration());
+	}
+
+	public CachePolicy withMissingExpiration(int missingExpiration) {
+		return new CachePolicy(expiration, missingExpiration);
+	}
+
+	public int getExpiration() {
+		return expiration;
+	}
+
+	public int getMissingExpiration() {
+		return missingExpiration;
+	}
+
+	public boolean isCacheMissing() {
+		return missingExpiration > 0;
+	}
+
+	@Override
+	public String toString() {
+		return "CachePolicy [expiration=" + expiration + ", missingExpiration=" + missingExpiration + "]";
+	}
+
+}
@@ -0,0 +1,60 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.cache;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Cache of datastore entities, consulted before every get and relation load of the kinds that have a
+ * {@link CachePolicy}. Implementations must not fail the caller when the cache is unavailable.
+ */
+public interface EntityCache {
+
+	/**
+	 * Returns the cached entries of the given keys. Keys cached as missing map to null, keys not in the
+	 * cache are absent from the result.
+	 */
+	Map<Key, Entity> getAll(Collection<Key> keys);
+
+	/**
+	 * Stores entries just read from the datastore, null values mark missing keys. Entries already cached are
+	 * kept, so a concurrent write is never replaced by an older read.
+	 */
+	void fill(Map<Key, Entity> entries, CachePolicy policy);
+
+	/**
+	 * Stores written entities, replacing the cached entries.
+	 */
+	void put(Collection<Entity> entities, CachePolicy policy);
+
+	void invalidate(Collection<Key> keys);
+
+}
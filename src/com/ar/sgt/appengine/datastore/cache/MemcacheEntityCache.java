@@ -0,0 +1,143 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * {@link EntityCache} on top of the {@link MemcacheService}, shared by every instance of the application.
+ * Each operation is a single batch memcache call. Memcache errors are logged and ignored by the service, so
+ * an unavailable memcache behaves as an empty cache.
+ */
+public class MemcacheEntityCache implements EntityCache {
+
+	public static final String DEFAULT_NAMESPACE = "entitymapping";
+
+	/**
+	 * Marks a key known to be missing in the datastore.
+	 */
+	private static final Boolean MISSING = Boolean.FALSE;
+
+	private static class Holder {
+		static final MemcacheEntityCache DEFAULT = new MemcacheEntityCache(DEFAULT_NAMESPACE);
+	}
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final MemcacheService memcache;
+
+	public MemcacheEntityCache(String namespace) {
+		this(MemcacheServiceFactory.getMemcacheService(namespace));
+	}
+
+	public MemcacheEntityCache(MemcacheService memcache) {
+		this.memcache = memcache;
+	}
+
+	public static MemcacheEntityCache getDefault() {
+		return Holder.DEFAULT;
+	}
+
+	@Override
+	public Map<Key, Entity> getAll(Collection<Key> keys) {
+		Map<Key, Entity> entries = new HashMap<Key, Entity>();
+		if (keys.isEmpty()) return entries;
+		Map<String, Key> cacheKeys = new HashMap<String, Key>();
+		for (Key key : keys) {
+			cacheKeys.put(toCacheKey(key), key);
+		}
+		for (Map.Entry<String, Object> hit : memcache.getAll(cacheKeys.keySet()).entrySet()) {
+			Object value = hit.getValue();
+			entries.put(cacheKeys.get(hit.getKey()), value instanceof Entity ? (Entity) value : null);
+		}
+		logger.debug("Cache hits {}/{}", entries.size(), keys.size());
+		return entries;
+	}
+
+	@Override
+	public void fill(Map<Key, Entity> entries, CachePolicy policy) {
+		Map<String, Object> found = new HashMap<String, Object>();
+		Map<String, Object> missing = new HashMap<String, Object>();
+		for (Map.Entry<Key, Entity> entry : entries.entrySet()) {
+			if (entry.getValue() != null) {
+				found.put(toCacheKey(entry.getKey()), entry.getValue());
+			} else if (policy.isCacheMissing()) {
+				missing.put(toCacheKey(entry.getKey()), MISSING);
+			}
+		}
+		if (!found.isEmpty()) {
+			memcache.putAll(found, expiration(policy.getExpiration()), SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+		}
+		if (!missing.isEmpty()) {
+			memcache.putAll(missing, expiration(policy.getMissingExpiration()), SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+		}
+	}
+
+	@Override
+	public void put(Collection<Entity> entities, CachePolicy policy) {
+		Map<String, Object> values = new HashMap<String, Object>();
+		for (Entity entity : entities) {
+			values.put(toCacheKey(entity.getKey()), entity);
+		}
+		if (!values.isEmpty()) {
+			memcache.putAll(values, expiration(policy.getExpiration()), SetPolicy.SET_ALWAYS);
+		}
+	}
+
+	@Override
+	public void invalidate(Collection<Key> keys) {
+		if (keys.isEmpty()) return;
+		Collection<String> cacheKeys = new ArrayList<String>(keys.size());
+		for (Key key : keys) {
+			cacheKeys.add(toCacheKey(key));
+		}
+		memcache.deleteAll(cacheKeys);
+	}
+
+	private static String toCacheKey(Key key) {
+		return KeyFactory.keyToString(key);
+	}
+
+	private static Expiration expiration(int seconds) {
+		return seconds > 0 ? Expiration.byDeltaSeconds(seconds) : null;
+	}
+
+}
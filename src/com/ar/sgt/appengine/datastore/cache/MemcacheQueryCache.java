@@ -0,0 +1,106 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * {@link QueryCache} on top of the {@link MemcacheService}, so a write on any instance drops the pages cached
+ * by all of them. Versions are memcache counters, a lookup costs two memcache calls. If a version is evicted
+ * it starts over from 0 and pages cached under a previous 0 may be found again until they expire, expirations
+ * bound how stale a page can get. Versions are kept per namespace, a write only drops the pages of the
+ * namespace it was made in.
+ */
+public class MemcacheQueryCache implements QueryCache {
+
+	public static final String DEFAULT_NAMESPACE = "entitymapping.query";
+
+	private static class Holder {
+		static final MemcacheQueryCache DEFAULT = new MemcacheQueryCache(DEFAULT_NAMESPACE);
+	}
+
+	private Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final MemcacheService memcache;
+
+	public MemcacheQueryCache(String namespace) {
+		this(MemcacheServiceFactory.getMemcacheService(namespace));
+	}
+
+	public MemcacheQueryCache(MemcacheService memcache) {
+		this.memcache = memcache;
+	}
+
+	public static MemcacheQueryCache getDefault() {
+		return Holder.DEFAULT;
+	}
+
+	@Override
+	public long getVersion(String kind) {
+		Object version = memcache.get(toVersionKey(kind));
+		return version instanceof Long ? (Long) version : 0;
+	}
+
+	@Override
+	public QueryPage get(String kind, long version, String query) {
+		Object page = memcache.get(toPageKey(kind, version, query));
+		logger.debug("Query cache {} {}", page != null ? "hit" : "miss", kind);
+		return page instanceof QueryPage ? (QueryPage) page : null;
+	}
+
+	@Override
+	public void put(String kind, long version, String query, QueryPage page, int expiration) {
+		memcache.put(toPageKey(kind, version, query), page, expiration > 0 ? Expiration.byDeltaSeconds(expiration) : null);
+	}
+
+	@Override
+	public void invalidate(String kind) {
+		memcache.increment(toVersionKey(kind), 1, 0L);
+	}
+
+	/**
+	 * Namespaces can't contain a colon, so kinds with one can't collide with another namespace.
+	 */
+	private static String toVersionKey(String kind) {
+		String namespace = NamespaceManager.get();
+		return "v:" + (namespace != null ? namespace : "") + ":" + kind;
+	}
+
+	/**
+	 * Memcache hashes keys longer than its limit, so the query string can be used as is.
+	 */
+	private static String toPageKey(String kind, long version, String query) {
+		return "q:" + kind + "@" + version + ":" + query;
+	}
+
+}
@@ -0,0 +1,399 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.cache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PropertyContainer;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * Size bounded {@link EntityCache} in the JVM heap, meant to sit in front of memcache through a
+ * {@link TieredEntityCache} for the hottest entities. Each instance only sees its own writes, so entries
+ * expire after a short per kind time, {@value #DEFAULT_EXPIRATION} seconds by default.
+ * <p>
+ * Entries are weighted by the estimated size of their properties. Eviction follows W-TinyLFU: new entries
+ * go through a small LRU window and are only admitted to the main space, a segmented LRU, when a frequency
+ * sketch says they are more popular than the entry they would evict. Lookups don't lock; access order is
+ * updated only when the lock is free, so under contention some reorderings are skipped.
+ * <p>
+ * Entities are copied on the way in and out, so objects mapped from a hit never share mutable values with
+ * the cache or with each other.
+ */
+public class NearEntityCache implements EntityCache {
+
+	public static final int DEFAULT_EXPIRATION = 60;
+
+	/**
+	 * Estimated bytes of an entry besides its properties: node, key and map entry.
+	 */
+	private static final int ENTRY_WEIGHT = 128;
+
+	private static final int WINDOW = 0;
+
+	private static final int PROBATION = 1;
+
+	private static final int PROTECTED = 2;
+
+	private final long maximumWeight;
+
+	private final long windowMaximum;
+
+	private final long protectedMaximum;
+
+	private final ConcurrentMap<Key, Node> data = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<String, Integer> expirations = new ConcurrentHashMap<>();
+
+	private volatile int defaultExpiration = DEFAULT_EXPIRATION;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final FrequencySketch sketch;
+
+	private final Node[] queues = { new Node(), new Node(), new Node() };
+
+	private final long[] weights = new long[3];
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private long evictions;
+
+	private long rejections;
+
+	/**
+	 * @param maximumWeight estimated bytes the cached entities may take
+	 */
+	public NearEntityCache(long maximumWeight) {
+		if (maximumWeight <= 0) throw new IllegalArgumentException("maximumWeight must be positive");
+		this.maximumWeight = maximumWeight;
+		this.windowMaximum = Math.max(maximumWeight / 100, 1);
+		this.protectedMaximum = (maximumWeight - windowMaximum) * 4 / 5;
+		this.sketch = new FrequencySketch((int) Math.min(maximumWeight / 256, 1 << 22));
+	}
+
+	/**
+	 * Seconds entities of the given kind are kept, 0 to keep them until evicted.
+	 */
+	public NearEntityCache withExpiration(String kind, int seconds) {
+		if (seconds < 0) throw new IllegalArgumentException("expiration can't be negative");
+		expirations.put(kind, seconds);
+		return this;
+	}
+
+	/**
+	 * Seconds entities of kinds without their own expiration are kept, 0 to keep them until evicted.
+	 */
+	public NearEntityCache withDefaultExpiration(int seconds) {
+		if (seconds < 0) throw new IllegalArgumentException("expiration can't be negative");
+		this.defaultExpiration = seconds;
+		return this;
+	}
+
+	@Override
+	public Map<Key, Entity> getAll(Collection<Key> keys) {
+		Map<Key, Entity> entries = new HashMap<Key, Entity>();
+		long now = System.nanoTime();
+		for (Key key : keys) {
+			Node node = data.get(key);
+			if (node != null && node.isExpired(now)) {
+				invalidate(node);
+				node = null;
+			}
+			if (node == null) {
+				misses.increment();
+			} else {
+				hits.increment();
+				// the cached entity is shared by every caller, mapped objects get their own lists and dates
+				entries.put(key, node.entity == null ? null : node.entity.clone());
+			}
+			if (lock.tryLock()) {
+				try {
+					sketch.increment(key);
+					if (node != null) onAccess(node);
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+		return entries;
+	}
+
+	@Override
+	public void fill(Map<Key, Entity> entries, CachePolicy policy) {
+		long now = System.nanoTime();
+		lock.lock();
+		try {
+			for (Map.Entry<Key, Entity> entry : entries.entrySet()) {
+				Entity entity = entry.getValue();
+				if (entity == null && !policy.isCacheMissing()) continue;
+				// the caller maps the entity it read, cache a copy
+				if (entity != null) entity = entity.clone();
+				int seconds = getExpiration(entry.getKey().getKind());
+				if (entity == null) {
+					seconds = seconds == 0 ? policy.getMissingExpiration() : Math.min(seconds, policy.getMissingExpiration());
+				}
+				add(new Node(entry.getKey(), entity, weigh(entity), expiresAt(now, seconds)), false, now);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(Collection<Entity> entities, CachePolicy policy) {
+		long now = System.nanoTime();
+		lock.lock();
+		try {
+			for (Entity entity : entities) {
+				// the caller keeps its entity, cache a copy
+				Entity copy = entity.clone();
+				int seconds = getExpiration(copy.getKey().getKind());
+				add(new Node(copy.getKey(), copy, weigh(copy), expiresAt(now, seconds)), true, now);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void invalidate(Collection<Key> keys) {
+		for (Key key : keys) {
+			Node node = data.get(key);
+			if (node != null) invalidate(node);
+		}
+	}
+
+	public void clear() {
+		lock.lock();
+		try {
+			for (Node node : data.values()) {
+				remove(node);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public CacheStats getStats() {
+		lock.lock();
+		try {
+			return new CacheStats(hits.sum(), misses.sum(), evictions, rejections, data.size(), weights[WINDOW] + weights[PROBATION] + weights[PROTECTED]);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int getExpiration(String kind) {
+		Integer seconds = expirations.get(kind);
+		return seconds != null ? seconds : defaultExpiration;
+	}
+
+	private void invalidate(Node node) {
+		lock.lock();
+		try {
+			remove(node);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void add(Node node, boolean replace, long now) {
+		if (node.weight > maximumWeight) return;
+		Node existing = data.get(node.key);
+		if (existing != null) {
+			if (!replace && !existing.isExpired(now)) return;
+			remove(existing);
+		}
+		data.put(node.key, node);
+		sketch.increment(node.key);
+		link(WINDOW, node);
+		evict();
+	}
+
+	private void onAccess(Node node) {
+		if (node.removed) return;
+		if (node.queue == PROBATION) {
+			unlink(node);
+			link(PROTECTED, node);
+			while (weights[PROTECTED] > protectedMaximum) {
+				Node demoted = queues[PROTECTED].next;
+				unlink(demoted);
+				link(PROBATION, demoted);
+			}
+		} else {
+			int queue = node.queue;
+			unlink(node);
+			link(queue, node);
+		}
+	}
+
+	/**
+	 * Moves the window overflow to probation, then shrinks the main space making the newest probation entry
+	 * compete with the oldest one: the less frequently used of both leaves.
+	 */
+	private void evict() {
+		while (weights[WINDOW] > windowMaximum) {
+			Node node = queues[WINDOW].next;
+			unlink(node);
+			link(PROBATION, node);
+		}
+		while (weights[WINDOW] + weights[PROBATION] + weights[PROTECTED] > maximumWeight) {
+			Node victim = queues[PROBATION].next;
+			Node candidate = queues[PROBATION].prev;
+			if (victim == queues[PROBATION]) {
+				victim = queues[PROTECTED].next != queues[PROTECTED] ? queues[PROTECTED].next : queues[WINDOW].next;
+				remove(victim);
+				evictions++;
+			} else if (candidate != victim && sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+				remove(candidate);
+				rejections++;
+			} else {
+				remove(victim);
+				evictions++;
+			}
+		}
+	}
+
+	private void remove(Node node) {
+		if (node.removed) return;
+		unlink(node);
+		node.removed = true;
+		data.remove(node.key, node);
+	}
+
+	private void link(int queue, Node node) {
+		Node sentinel = queues[queue];
+		node.queue = queue;
+		node.prev = sentinel.prev;
+		node.next = sentinel;
+		sentinel.prev.next = node;
+		sentinel.prev = node;
+		weights[queue] += node.weight;
+	}
+
+	private void unlink(Node node) {
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = null;
+		node.next = null;
+		weights[node.queue] -= node.weight;
+	}
+
+	private static long expiresAt(long now, int seconds) {
+		return seconds > 0 ? now + TimeUnit.SECONDS.toNanos(seconds) : 0;
+	}
+
+	/**
+	 * Estimates the heap taken by the entity properties, a missing entity only weights its entry.
+	 */
+	static long weigh(PropertyContainer entity) {
+		long weight = ENTRY_WEIGHT;
+		if (entity == null) return weight;
+		for (Map.Entry<String, Object> property : entity.getProperties().entrySet()) {
+			weight += 32 + 2 * property.getKey().length() + weighValue(property.getValue());
+		}
+		return weight;
+	}
+
+	private static long weighValue(Object value) {
+		if (value == null) {
+			return 0;
+		} else if (value instanceof String) {
+			return 40 + 2 * ((String) value).length();
+		} else if (value instanceof Text) {
+			return 56 + 2 * ((Text) value).getValue().length();
+		} else if (value instanceof Blob) {
+			return 32 + ((Blob) value).getBytes().length;
+		} else if (value instanceof ShortBlob) {
+			return 32 + ((ShortBlob) value).getBytes().length;
+		} else if (value instanceof EmbeddedEntity) {
+			return weigh((EmbeddedEntity) value);
+		} else if (value instanceof Collection) {
+			long weight = 32;
+			for (Object element : (Collection<?>) value) {
+				weight += 8 + weighValue(element);
+			}
+			return weight;
+		} else if (value instanceof Key) {
+			return 96;
+		}
+		return 24;
+	}
+
+	private static final class Node {
+
+		final Key key;
+
+		final Entity entity;
+
+		final long weight;
+
+		final long expiresAt;
+
+		int queue;
+
+		Node prev;
+
+		Node next;
+
+		boolean removed;
+
+		Node() {
+			this(null, null, 0, 0);
+			this.prev = this;
+			this.next = this;
+		}
+
+		Node(Key key, Entity entity, long weight, long expiresAt) {
+			this.key = key;
+			this.entity = entity;
+			this.weight = weight;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired(long now) {
+			return expiresAt != 0 && now - expiresAt > 0;
+		}
+
+	}
+
+}
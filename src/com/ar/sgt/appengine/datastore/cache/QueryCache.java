@@ -0,0 +1,54 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.cache;
+
+/**
+ * Cache of query result pages, as the keys of the page and the cursor to the next one. Pages are cached under
+ * the write version of their kind: every write through a repository bumps the version, so pages cached
+ * before are no longer found. Kinds are those of the current namespace, implementations must keep the versions
+ * of each namespace apart. Implementations must not fail the caller when the cache is unavailable.
+ */
+public interface QueryCache {
+
+	/**
+	 * @return the current write version of the kind, read before running a query to cache its page
+	 */
+	long getVersion(String kind);
+
+	/**
+	 * @return the page cached for the query at the given version, or null
+	 */
+	QueryPage get(String kind, long version, String query);
+
+	void put(String kind, long version, String query, QueryPage page, int expiration);
+
+	/**
+	 * Bumps the write version of the kind, dropping every page cached for it.
+	 */
+	void invalidate(String kind);
+
+}
@@ -0,0 +1,120 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import com.ar.sgt.appengine.datastore.query.PageRequest;
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Projection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+
+/**
+ * Builds the {@link QueryCache} key of a page of query results. Queries that only differ in the order of the
+ * filters of a composite filter get the same key, sort orders are kept as given since they change the results.
+ * Keys include the current namespace, the same query of two namespaces returns different pages.
+ */
+public final class QueryKeys {
+
+	private QueryKeys() {
+	}
+
+	@SuppressWarnings("deprecation")
+	public static String of(final Query query, final PageRequest pageRequest) {
+		StringBuilder key = new StringBuilder(query.getKind());
+		String namespace = NamespaceManager.get();
+		if (namespace != null && !namespace.isEmpty()) {
+			key.append("/ns=").append(namespace);
+		}
+		if (query.getAncestor() != null) {
+			key.append("/a=").append(KeyFactory.keyToString(query.getAncestor()));
+		}
+		List<Filter> filters = new ArrayList<Filter>(query.getFilterPredicates());
+		if (query.getFilter() != null) filters.add(query.getFilter());
+		if (!filters.isEmpty()) {
+			key.append("/f=").append(filters.size() == 1 ? filter(filters.get(0)) : filter(new CompositeFilter(Query.CompositeFilterOperator.AND, filters)));
+		}
+		for (SortPredicate sort : query.getSortPredicates()) {
+			key.append("/s=").append(sort.getPropertyName()).append(' ').append(sort.getDirection());
+		}
+		for (Projection projection : query.getProjections()) {
+			key.append("/p=").append(projection);
+		}
+		if (query.isKeysOnly()) key.append("/k");
+		if (query.getDistinct()) key.append("/d");
+		key.append("/n=").append(pageRequest.getPageSize());
+		if (pageRequest.getCursor() != null && !pageRequest.getCursor().isEmpty()) {
+			key.append("/c=").append(pageRequest.getCursor());
+		}
+		return key.toString();
+	}
+
+	private static String filter(final Filter filter) {
+		if (filter instanceof FilterPredicate) {
+			FilterPredicate predicate = (FilterPredicate) filter;
+			return predicate.getPropertyName() + " " + predicate.getOperator() + " " + value(predicate.getValue());
+		}
+		CompositeFilter composite = (CompositeFilter) filter;
+		List<String> operands = new ArrayList<String>();
+		for (Filter operand : composite.getSubFilters()) {
+			operands.add(filter(operand));
+		}
+		Collections.sort(operands);
+		return composite.getOperator() + operands.toString();
+	}
+
+	/**
+	 * Encodes a filter value with its type, so values with the same string form don't collide.
+	 */
+	private static String value(final Object value) {
+		if (value == null) {
+			return "null";
+		} else if (value instanceof Key) {
+			return "k:" + KeyFactory.keyToString((Key) value);
+		} else if (value instanceof Date) {
+			return "d:" + ((Date) value).getTime();
+		} else if (value instanceof Collection) {
+			List<String> values = new ArrayList<String>();
+			for (Object element : (Collection<?>) value) {
+				values.add(value(element));
+			}
+			return values.toString();
+		}
+		return value.getClass().getSimpleName() + ":" + value;
+	}
+
+}
@@ -0,0 +1,94 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Two level {@link EntityCache}, usually a {@link NearEntityCache} in front of a {@link MemcacheEntityCache}.
+ * Lookups missing the first level go to the second one, and its hits are copied to the first level.
+ */
+public class TieredEntityCache implements EntityCache {
+
+	/**
+	 * Policy of entries copied from the second level, which already decided to cache them. The first level
+	 * applies its own expirations, missing ids are kept at most {@value NearEntityCache#DEFAULT_EXPIRATION}
+	 * seconds.
+	 */
+	private static final CachePolicy PROMOTION = CachePolicy.of(0).withMissingExpiration(NearEntityCache.DEFAULT_EXPIRATION);
+
+	private final EntityCache first;
+
+	private final EntityCache second;
+
+	public TieredEntityCache(EntityCache first, EntityCache second) {
+		this.first = first;
+		this.second = second;
+	}
+
+	@Override
+	public Map<Key, Entity> getAll(Collection<Key> keys) {
+		Map<Key, Entity> entries = new HashMap<Key, Entity>(first.getAll(keys));
+		if (entries.size() == keys.size()) return entries;
+		List<Key> pending = new ArrayList<Key>(keys.size() - entries.size());
+		for (Key key : keys) {
+			if (!entries.containsKey(key)) pending.add(key);
+		}
+		Map<Key, Entity> promoted = second.getAll(pending);
+		if (!promoted.isEmpty()) {
+			first.fill(promoted, PROMOTION);
+			entries.putAll(promoted);
+		}
+		return entries;
+	}
+
+	@Override
+	public void fill(Map<Key, Entity> entries, CachePolicy policy) {
+		second.fill(entries, policy);
+		first.fill(entries, policy);
+	}
+
+	@Override
+	public void put(Collection<Entity> entities, CachePolicy policy) {
+		second.put(entities, policy);
+		first.put(entities, policy);
+	}
+
+	@Override
+	public void invalidate(Collection<Key> keys) {
+		second.invalidate(keys);
+		first.invalidate(keys);
+	}
+
+}
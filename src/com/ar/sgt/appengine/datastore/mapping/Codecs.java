@@ -0,0 +1,619 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.mapping;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.time.temporal.Temporal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.ar.sgt.appengine.datastore.AbstractEntity;
+import com.ar.sgt.appengine.datastore.annotation.Converter;
+import com.ar.sgt.appengine.datastore.converters.FieldConverter;
+import com.ar.sgt.appengine.datastore.utils.DateUtils;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.RawValue;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * Codecs of the supported field types, resolved once per field when its {@link PropertyMapping} is built.
+ * Besides the types the datastore stores as is, ints, shorts, bytes and floats are narrowed back from the
+ * stored long or double, enums are stored by name, BigDecimal and UUID as strings, java.time values as dates
+ * (see {@link DateUtils}) and strings longer than {@value #MAX_STRING_BYTES} bytes as {@link Text}, which
+ * isn't indexed. Other types can be added with {@link #register(Class, PropertyCodec)}. Embedded fields get
+ * an {@link EmbeddedCodec} of their own.
+ */
+public final class Codecs {
+
+	/**
+	 * Longest UTF-8 string the datastore stores as a string property.
+	 */
+	public static final int MAX_STRING_BYTES = 1500;
+
+	/**
+	 * Default codec, value is stored as is. Text values are unwrapped on read.
+	 */
+	public static final PropertyCodec DEFAULT = new PropertyCodec() {
+
+		@Override
+		public Object toDatastore(Object value) {
+			if (value instanceof AbstractEntity) {
+				return ((AbstractEntity) value).getId();
+			} else if (value instanceof Temporal) {
+				return DateUtils.temporalToDate(value);
+			}
+			return value;
+		}
+
+		@Override
+		public Object fromDatastore(Object value) {
+			if (value instanceof Text) {
+				return ((Text) value).getValue();
+			}
+			return value;
+		}
+	};
+
+	/**
+	 * Relations are stored as the id of the related entity, and resolved by the mapper on read.
+	 */
+	public static final PropertyCodec RELATION = new TypeCodec(Long.class) {
+
+		@Override
+		public Object toDatastore(Object value) {
+			return ((AbstractEntity) value).getId();
+		}
+	};
+
+	private static final PropertyCodec STRING = new TypeCodec(String.class) {
+
+		@Override
+		public Object toDatastore(Object value) {
+			String string = (String) value;
+			return isLong(string) ? new Text(string) : string;
+		}
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return value instanceof Text ? ((Text) value).getValue() : value;
+		}
+	};
+
+	private static final PropertyCodec LONG = new TypeCodec(Long.class) {
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return value instanceof Long ? value : ((Number) value).longValue();
+		}
+	};
+
+	private static final PropertyCodec INTEGER = new TypeCodec(Long.class) {
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return ((Number) value).intValue();
+		}
+	};
+
+	private static final PropertyCodec SHORT = new TypeCodec(Long.class) {
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return ((Number) value).shortValue();
+		}
+	};
+
+	private static final PropertyCodec BYTE = new TypeCodec(Long.class) {
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return ((Number) value).byteValue();
+		}
+	};
+
+	private static final PropertyCodec DOUBLE = new TypeCodec(Double.class) {
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return value instanceof Double ? value : ((Number) value).doubleValue();
+		}
+	};
+
+	private static final PropertyCodec FLOAT = new TypeCodec(Double.class) {
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return ((Number) value).floatValue();
+		}
+	};
+
+	private static final PropertyCodec BOOLEAN = new TypeCodec(Boolean.class);
+
+	private static final PropertyCodec DATE = new TypeCodec(Date.class);
+
+	private static final PropertyCodec LOCAL_DATE = new TypeCodec(Date.class) {
+
+		@Override
+		public Object toDatastore(Object value) {
+			return DateUtils.toDate((LocalDate) value);
+		}
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return DateUtils.toLocalDate((Date) value);
+		}
+	};
+
+	private static final PropertyCodec LOCAL_DATE_TIME = new TypeCodec(Date.class) {
+
+		@Override
+		public Object toDatastore(Object value) {
+			return DateUtils.toDate((LocalDateTime) value);
+		}
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return DateUtils.toLocalDateTime((Date) value);
+		}
+	};
+
+	private static final PropertyCodec LOCAL_TIME = new TypeCodec(Date.class) {
+
+		@Override
+		public Object toDatastore(Object value) {
+			return DateUtils.toDate((LocalTime) value);
+		}
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return DateUtils.toLocalTime((Date) value);
+		}
+	};
+
+	private static final PropertyCodec INSTANT = new TypeCodec(Date.class) {
+
+		@Override
+		public Object toDatastore(Object value) {
+			return new Date(((Instant) value).toEpochMilli());
+		}
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return ((Date) value).toInstant();
+		}
+	};
+
+	private static final PropertyCodec ZONED_DATE_TIME = new TypeCodec(Date.class) {
+
+		@Override
+		public Object toDatastore(Object value) {
+			return DateUtils.toDate((ZonedDateTime) value);
+		}
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return DateUtils.toZonedDateTime((Date) value);
+		}
+	};
+
+	private static final PropertyCodec OFFSET_DATE_TIME = new TypeCodec(Date.class) {
+
+		@Override
+		public Object toDatastore(Object value) {
+			return DateUtils.toDate((OffsetDateTime) value);
+		}
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return DateUtils.toOffsetDateTime((Date) value);
+		}
+	};
+
+	private static final PropertyCodec BIG_DECIMAL = new TypeCodec(String.class) {
+
+		@Override
+		public Object toDatastore(Object value) {
+			return value.toString();
+		}
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return new BigDecimal((String) value);
+		}
+	};
+
+	private static final PropertyCodec UUID_CODEC = new TypeCodec(String.class) {
+
+		@Override
+		public Object toDatastore(Object value) {
+			return value.toString();
+		}
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return UUID.fromString((String) value);
+		}
+	};
+
+	private static final Map<Class<?>, PropertyCodec> BUILT_IN = new HashMap<>();
+
+	static {
+		BUILT_IN.put(String.class, STRING);
+		BUILT_IN.put(Long.class, LONG);
+		BUILT_IN.put(long.class, LONG);
+		BUILT_IN.put(Integer.class, INTEGER);
+		BUILT_IN.put(int.class, INTEGER);
+		BUILT_IN.put(Short.class, SHORT);
+		BUILT_IN.put(short.class, SHORT);
+		BUILT_IN.put(Byte.class, BYTE);
+		BUILT_IN.put(byte.class, BYTE);
+		BUILT_IN.put(Double.class, DOUBLE);
+		BUILT_IN.put(double.class, DOUBLE);
+		BUILT_IN.put(Float.class, FLOAT);
+		BUILT_IN.put(float.class, FLOAT);
+		BUILT_IN.put(Boolean.class, BOOLEAN);
+		BUILT_IN.put(boolean.class, BOOLEAN);
+		BUILT_IN.put(Date.class, DATE);
+		BUILT_IN.put(LocalDate.class, LOCAL_DATE);
+		BUILT_IN.put(LocalDateTime.class, LOCAL_DATE_TIME);
+		BUILT_IN.put(LocalTime.class, LOCAL_TIME);
+		BUILT_IN.put(Instant.class, INSTANT);
+		BUILT_IN.put(ZonedDateTime.class, ZONED_DATE_TIME);
+		BUILT_IN.put(OffsetDateTime.class, OFFSET_DATE_TIME);
+		BUILT_IN.put(BigDecimal.class, BIG_DECIMAL);
+		BUILT_IN.put(UUID.class, UUID_CODEC);
+	}
+
+	private static final ConcurrentMap<Class<?>, PropertyCodec> REGISTERED = new ConcurrentHashMap<>();
+
+	private static final ClassValue<PropertyCodec> ENUMS = new ClassValue<PropertyCodec>() {
+		@Override
+		protected PropertyCodec computeValue(Class<?> type) {
+			return new EnumCodec(type);
+		}
+	};
+
+	private static final ClassValue<FieldConverter> CONVERTERS = new ClassValue<FieldConverter>() {
+		@Override
+		protected FieldConverter computeValue(Class<?> type) {
+			try {
+				return (FieldConverter) type.newInstance();
+			} catch (InstantiationException | IllegalAccessException e) {
+				throw new MappingException("Unable to create converter " + type.getName(), e);
+			}
+		}
+	};
+
+	private Codecs() {
+	}
+
+	public static PropertyCodec forField(final Field field) {
+		if (field.isAnnotationPresent(Converter.class)) {
+			return new ConverterCodec(CONVERTERS.get(field.getAnnotation(Converter.class).value()));
+		}
+		return forType(field.getType());
+	}
+
+	/**
+	 * Returns the codec of fields of the given type: the registered one, a built in one, or {@link #DEFAULT}.
+	 */
+	public static PropertyCodec forType(final Class<?> type) {
+		PropertyCodec codec = REGISTERED.get(type);
+		if (codec != null) return codec;
+		codec = BUILT_IN.get(type);
+		if (codec != null) return codec;
+		if (type.isEnum()) {
+			return ENUMS.get(type);
+		} else if (AbstractEntity.class.isAssignableFrom(type)) {
+			return RELATION;
+		} else if (Temporal.class.isAssignableFrom(type)) {
+			return new TemporalCodec(type);
+		}
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns the codec of an {@link com.ar.sgt.appengine.datastore.annotation.Embedded} field. Collections must
+	 * be declared as List, Set or Collection of a concrete class.
+	 */
+	static PropertyCodec embedded(final Field field, final AccessorStrategy strategy) {
+		Class<?> type = field.getType();
+		if (!Collection.class.isAssignableFrom(type)) {
+			return new EmbeddedCodec(type, null, strategy);
+		}
+		if (type != List.class && type != Set.class && type != Collection.class) {
+			throw new MappingException("Embedded collection " + field + " must be declared as List, Set or Collection");
+		}
+		Type generic = field.getGenericType();
+		Type element = generic instanceof ParameterizedType ? ((ParameterizedType) generic).getActualTypeArguments()[0] : null;
+		if (!(element instanceof Class)) {
+			throw new MappingException("Unable to resolve the element class of embedded collection " + field);
+		}
+		return new EmbeddedCodec((Class<?>) element, type, strategy);
+	}
+
+	/**
+	 * Registers the codec of fields of the given type, replacing the built in one. Mappings already built keep
+	 * the codec they resolved, so codecs should be registered at startup, before any entity is mapped.
+	 */
+	public static void register(final Class<?> type, final PropertyCodec codec) {
+		if (codec == null) {
+			REGISTERED.remove(type);
+		} else {
+			REGISTERED.put(type, codec);
+		}
+	}
+
+	/**
+	 * @return true if the string is longer than {@value #MAX_STRING_BYTES} bytes in UTF-8, counted only when
+	 * its length alone doesn't tell
+	 */
+	static boolean isLong(final String value) {
+		int length = value.length();
+		if (length <= MAX_STRING_BYTES / 3) return false;
+		if (length > MAX_STRING_BYTES) return true;
+		int bytes = 0;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			// each half of a surrogate pair counts 2 of its 4 bytes
+			bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+			if (bytes > MAX_STRING_BYTES) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reads a value returned by a projection query into the java type of the property. Projected values come
+	 * as {@link RawValue} without type information, so they are read as the type the codec of the property
+	 * stores; converter and registered codecs get the raw value, with strings decoded.
+	 */
+	public static Object fromRawValue(final PropertyMapping property, final RawValue raw) {
+		PropertyCodec codec = property.getCodec();
+		Object value;
+		if (codec instanceof TypeCodec) {
+			value = raw.asType(((TypeCodec) codec).stored);
+		} else if (codec == DEFAULT) {
+			value = raw.asType(property.getType());
+		} else {
+			value = raw.getValue() instanceof byte[] ? raw.asType(String.class) : raw.getValue();
+		}
+		return value == null ? null : codec.fromDatastore(value);
+	}
+
+	/**
+	 * Codec of a built in type, stored as the given datastore type. Values are passed as is unless overridden.
+	 */
+	static class TypeCodec implements PropertyCodec {
+
+		private final Class<?> stored;
+
+		TypeCodec(Class<?> stored) {
+			this.stored = stored;
+		}
+
+		@Override
+		public Object toDatastore(Object value) {
+			return value;
+		}
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return value;
+		}
+
+	}
+
+	static class EnumCodec extends TypeCodec {
+
+		private final Class<?> type;
+
+		private final Map<String, Object> constants = new HashMap<>();
+
+		EnumCodec(Class<?> type) {
+			super(String.class);
+			this.type = type;
+			for (Object constant : type.getEnumConstants()) {
+				constants.put(((Enum<?>) constant).name(), constant);
+			}
+		}
+
+		@Override
+		public Object toDatastore(Object value) {
+			return ((Enum<?>) value).name();
+		}
+
+		@Override
+		public Object fromDatastore(Object value) {
+			Object constant = constants.get(value);
+			if (constant == null) throw new IllegalArgumentException("No constant " + value + " in " + type.getName());
+			return constant;
+		}
+
+	}
+
+	/**
+	 * Maps embedded objects to EmbeddedEntity values with the mapping plan of their class, built on first use so
+	 * a class can embed itself.
+	 */
+	static class EmbeddedCodec implements PropertyCodec {
+
+		private final Class<?> type;
+
+		private final Class<?> collection;
+
+		private final AccessorStrategy strategy;
+
+		private volatile EntityMapping mapping;
+
+		EmbeddedCodec(Class<?> type, Class<?> collection, AccessorStrategy strategy) {
+			this.type = type;
+			this.collection = collection;
+			this.strategy = strategy;
+		}
+
+		Class<?> getType() {
+			return type;
+		}
+
+		private EntityMapping getMapping() {
+			EntityMapping current = mapping;
+			if (current == null) {
+				try {
+					current = EntityMapping.of(type, strategy);
+				} catch (IllegalAccessException e) {
+					throw new MappingException("Unable to map " + type.getName(), e);
+				}
+				if (!current.getRelations().isEmpty()) {
+					throw new MappingException("Embedded class " + type.getName() + " can't have relations " + current.getRelations());
+				}
+				mapping = current;
+			}
+			return current;
+		}
+
+		@Override
+		public Object toDatastore(Object value) {
+			if (collection == null) return toEmbedded(value);
+			Collection<?> values = (Collection<?>) value;
+			List<EmbeddedEntity> embedded = new ArrayList<>(values.size());
+			for (Object element : values) {
+				embedded.add(element == null ? null : toEmbedded(element));
+			}
+			return embedded;
+		}
+
+		@Override
+		public Object fromDatastore(Object value) {
+			if (collection == null) return fromEmbedded((EmbeddedEntity) value);
+			Collection<?> values = (Collection<?>) value;
+			Collection<Object> objects = collection == Set.class ? new LinkedHashSet<>(values.size() * 2) : new ArrayList<>(values.size());
+			for (Object element : values) {
+				objects.add(element == null ? null : fromEmbedded((EmbeddedEntity) element));
+			}
+			return objects;
+		}
+
+		private EmbeddedEntity toEmbedded(final Object value) {
+			EmbeddedEntity embedded = new EmbeddedEntity();
+			try {
+				for (PropertyMapping property : getMapping().getProperties()) {
+					Object propertyValue = property.getAccessor().get(value);
+					if (propertyValue != null) propertyValue = property.getCodec().toDatastore(propertyValue);
+					if (property.isEmbedded() && property.isIndexed()) {
+						embedded.setIndexedProperty(property.getPropertyName(), propertyValue);
+					} else if (property.isIndexed()) {
+						embedded.setProperty(property.getPropertyName(), propertyValue);
+					} else {
+						embedded.setUnindexedProperty(property.getPropertyName(), propertyValue);
+					}
+				}
+			} catch (IllegalAccessException | InvocationTargetException e) {
+				throw new MappingException("Unable to embed " + type.getName(), e);
+			}
+			return embedded;
+		}
+
+		private Object fromEmbedded(final EmbeddedEntity embedded) {
+			EntityMapping plan = getMapping();
+			try {
+				Object object = plan.newInstance();
+				for (PropertyMapping property : plan.getProperties()) {
+					Object propertyValue = embedded.getProperty(property.getPropertyName());
+					property.getAccessor().set(object, propertyValue == null ? null : property.getCodec().fromDatastore(propertyValue));
+				}
+				return object;
+			} catch (IllegalAccessException | InvocationTargetException | InstantiationException e) {
+				throw new MappingException("Unable to map embedded " + type.getName(), e);
+			}
+		}
+
+	}
+
+	static class ConverterCodec implements PropertyCodec {
+
+		private final FieldConverter converter;
+
+		ConverterCodec(FieldConverter converter) {
+			this.converter = converter;
+		}
+
+		@Override
+		public Object toDatastore(Object value) {
+			return converter.toDatastoreEntity(value);
+		}
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return converter.fromDatastoreEntity(value);
+		}
+
+	}
+
+	/**
+	 * Codec of other temporal types, only the ones {@link DateUtils} knows are stored.
+	 */
+	static class TemporalCodec extends TypeCodec {
+
+		private final Class<?> type;
+
+		TemporalCodec(Class<?> type) {
+			super(Date.class);
+			this.type = type;
+		}
+
+		@Override
+		public Object toDatastore(Object value) {
+			return DateUtils.temporalToDate(value);
+		}
+
+		@Override
+		public Object fromDatastore(Object value) {
+			return DateUtils.dateToTemporal((Date) value, type);
+		}
+
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.mapping;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ar.sgt.appengine.datastore.EntityMapper;
+
+/**
+ * Immutable mapping plan of an entity class. All annotation lookups and name resolution are done
+ * once when the plan is built, so mapping an entity only walks the resolved properties.
+ */
+public final class EntityMapping {
+
+	private static final String BOUND_FIELD = "CGLIB$";
+
+	private final Class<?> type;
+
+	private final String kind;
+
+	private final PropertyMapping id;
+
+	private final List<PropertyMapping> properties;
+
+	private final List<PropertyMapping> relations;
+
+	private final Map<String, PropertyMapping> byName;
+
+	private final Instantiator instantiator;
+
+	private EntityMapping(Class<?> type, String kind, Instantiator instantiator, PropertyMapping id, List<PropertyMapping> properties) {
+		this.type = type;
+		this.instantiator = instantiator;
+		this.kind = kind;
+		this.id = id;
+		this.properties = Collections.unmodifiableList(properties);
+		List<PropertyMapping> rel = new ArrayList<>();
+		Map<String, PropertyMapping> names = new HashMap<>();
+		if (id != null) names.put(id.getName(), id);
+		for (PropertyMapping pm : properties) {
+			if (pm.isRelation()) rel.add(pm);
+			names.put(pm.getName(), pm);
+		}
+		this.relations = Collections.unmodifiableList(rel);
+		this.byName = names;
+	}
+
+	public static EntityMapping of(final Class<?> type, final AccessorStrategy strategy) throws IllegalAccessException {
+		PropertyMapping id = null;
+		List<PropertyMapping> properties = new ArrayList<>();
+		for (Field field : getFields(type)) {
+			PropertyMapping pm = new PropertyMapping(field, strategy);
+			if (pm.isId()) {
+				id = pm;
+			} else {
+				properties.add(pm);
+			}
+		}
+		return new EntityMapping(type, EntityMapper.getEntityName(type), strategy.instantiator(type), id, properties);
+	}
+
+	public Object newInstance() throws InstantiationException, IllegalAccessException, InvocationTargetException {
+		return instantiator.newInstance();
+	}
+
+	public Class<?> getType() {
+		return type;
+	}
+
+	public String getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return the id property, or null if the class doesn't declare one
+	 */
+	public PropertyMapping getId() {
+		return id;
+	}
+
+	/**
+	 * @return every mapped property except the id
+	 */
+	public List<PropertyMapping> getProperties() {
+		return properties;
+	}
+
+	/**
+	 * @return the property mapped to the given java field name, including the id, or null
+	 */
+	public PropertyMapping getProperty(final String name) {
+		return byName.get(name);
+	}
+
+	public List<PropertyMapping> getRelations() {
+		return relations;
+	}
+
+	private static List<Field> getFields(final Class<?> type) {
+		List<Field> fields = new ArrayList<Field>();
+		if (type.getSuperclass() != null) {
+			fields.addAll(getFields(type.getSuperclass()));
+		}
+		for (Field field : type.getDeclaredFields()) {
+			if (isAccesible(field.getModifiers()) && !field.getName().startsWith(BOUND_FIELD)) {
+				field.setAccessible(true);
+				fields.add(field);
+			}
+		}
+		return fields;
+	}
+
+	private static boolean isAccesible(int modifier) {
+		return !(Modifier.isTransient(modifier) || Modifier.isStatic(modifier) || Modifier.isAbstract(modifier));
+	}
+
+	@Override
+	public String toString() {
+		return kind + properties;
+	}
+
+}
@@ -0,0 +1,76 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.mapping;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Plain reflective field access, getters and setters are bypassed. Useful for classes that don't
+ * follow bean conventions.
+ */
+public class FieldAccessorStrategy implements AccessorStrategy {
+
+	@Override
+	public PropertyAccessor accessor(final Field field) {
+		field.setAccessible(true);
+		final boolean primitive = field.getType().isPrimitive();
+		return new PropertyAccessor() {
+
+			@Override
+			public Object get(Object target) throws IllegalAccessException {
+				return field.get(target);
+			}
+
+			@Override
+			public void set(Object target, Object value) throws IllegalAccessException {
+				if (value == null && primitive) return;
+				field.set(target, value);
+			}
+		};
+	}
+
+	@Override
+	public Instantiator instantiator(final Class<?> type) {
+		final Constructor<?> constructor;
+		try {
+			constructor = type.getDeclaredConstructor();
+			constructor.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			return MethodHandleAccessorStrategy.missingConstructor(type);
+		}
+		return new Instantiator() {
+
+			@Override
+			public Object newInstance() throws InstantiationException, IllegalAccessException, InvocationTargetException {
+				return constructor.newInstance();
+			}
+		};
+	}
+
+}
@@ -0,0 +1,58 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.mapping;
+
+import java.lang.reflect.InvocationTargetException;
+
+import com.ar.sgt.appengine.datastore.AbstractEntity;
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * Mapper generated at compile time by the entitymapping annotation processor. When a class named
+ * <code>&lt;Entity&gt;_Mapper</code> implementing this interface exists next to an entity class, the
+ * {@link com.ar.sgt.appengine.datastore.EntityMapper} uses it instead of building a reflective mapping plan.
+ * Nested classes replace the enclosing separator with an underscore, i.e. <code>Outer_Inner_Mapper</code>.
+ */
+public interface GeneratedMapper<T extends AbstractEntity> {
+
+	String SUFFIX = "_Mapper";
+
+	String getKind();
+
+	T newInstance();
+
+	/**
+	 * Copies every property of source, except the id, into the given entity.
+	 */
+	void toEntity(T source, Entity entity);
+
+	/**
+	 * Copies the id and every property of entity into target.
+	 */
+	void fromEntity(Entity entity, T target, RelationResolver resolver) throws IllegalAccessException, InvocationTargetException, InstantiationException;
+
+}
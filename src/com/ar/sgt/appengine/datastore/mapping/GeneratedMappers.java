@@ -0,0 +1,59 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.mapping;
+
+import com.ar.sgt.appengine.datastore.AbstractEntity;
+
+public final class GeneratedMappers {
+
+	private GeneratedMappers() {
+	}
+
+	/**
+	 * Looks up the generated mapper of the given class.
+	 *
+	 * @return the mapper instance, or null if none was generated for the class
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends AbstractEntity> GeneratedMapper<T> find(final Class<?> type) {
+		if (type.getClassLoader() == null || type.getName().contains("$$")) {
+			// bootstrap or synthetic (proxy) classes
+			return null;
+		}
+		String name = type.getName().replace('$', '_') + GeneratedMapper.SUFFIX;
+		try {
+			Class<?> mapperClass = Class.forName(name, true, type.getClassLoader());
+			if (!GeneratedMapper.class.isAssignableFrom(mapperClass)) {
+				return null;
+			}
+			return (GeneratedMapper<T>) mapperClass.newInstance();
+		} catch (ClassNotFoundException | InstantiationException | IllegalAccessException | LinkageError e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.mapping;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.ar.sgt.appengine.datastore.AbstractEntity;
+import com.ar.sgt.appengine.datastore.annotation.Cached;
+import com.ar.sgt.appengine.datastore.cache.CachePolicy;
+import com.ar.sgt.appengine.datastore.cache.EntityCache;
+import com.ar.sgt.appengine.datastore.cache.MemcacheEntityCache;
+import com.ar.sgt.appengine.datastore.cache.MemcacheQueryCache;
+import com.ar.sgt.appengine.datastore.cache.QueryCache;
+import com.ar.sgt.appengine.datastore.metrics.RepositoryMetrics;
+
+/**
+ * Process wide registry of mapping plans and generated mappers, keyed by class. Backed by {@link ClassValue}
+ * so lookups don't lock and entries go away with the class loader that defined the entity class. The first
+ * lookup of a class may build its plan concurrently in several threads, only one of them is kept.
+ */
+public class MappingRegistry {
+
+	private static final MappingRegistry DEFAULT = new MappingRegistry(new MethodHandleAccessorStrategy());
+
+	private final ClassValue<EntityMapping> mappings;
+
+	private final ClassValue<Optional<GeneratedMapper<AbstractEntity>>> generatedMappers = new ClassValue<Optional<GeneratedMapper<AbstractEntity>>>() {
+		@Override
+		protected Optional<GeneratedMapper<AbstractEntity>> computeValue(Class<?> type) {
+			return Optional.ofNullable(GeneratedMappers.find(type));
+		}
+	};
+
+	private final ClassValue<Optional<CachePolicy>> cachePolicies = new ClassValue<Optional<CachePolicy>>() {
+		@Override
+		protected Optional<CachePolicy> computeValue(Class<?> type) {
+			Cached cached = type.getAnnotation(Cached.class);
+			return cached != null ? Optional.of(CachePolicy.of(cached)) : Optional.<CachePolicy>empty();
+		}
+	};
+
+	private final ConcurrentMap<Class<?>, CachePolicy> cachePolicyOverrides = new ConcurrentHashMap<>();
+
+	private volatile EntityCache cache;
+
+	private final ConcurrentMap<Class<?>, Integer> queryExpirations = new ConcurrentHashMap<>();
+
+	private volatile QueryCache queryCache;
+
+	private volatile RepositoryMetrics metrics = RepositoryMetrics.NOOP;
+
+	public MappingRegistry(final AccessorStrategy accessorStrategy) {
+		this.mappings = new ClassValue<EntityMapping>() {
+			@Override
+			protected EntityMapping computeValue(Class<?> type) {
+				try {
+					return EntityMapping.of(type, accessorStrategy);
+				} catch (IllegalAccessException e) {
+					throw new MappingException("Unable to map " + type.getName(), e);
+				}
+			}
+		};
+	}
+
+	public static MappingRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns the mapping plan of the given class, building it the first time the class is seen.
+	 */
+	public EntityMapping getMapping(final Class<?> type) {
+		return mappings.get(type);
+	}
+
+	/**
+	 * Returns the compile time generated mapper of the given class, or null if there isn't one.
+	 */
+	public GeneratedMapper<AbstractEntity> getGeneratedMapper(final Class<?> type) {
+		return generatedMappers.get(type).orElse(null);
+	}
+
+	/**
+	 * Returns the kind of the given class, without building a reflective plan when a generated mapper exists.
+	 */
+	public String getKind(final Class<?> type) {
+		GeneratedMapper<AbstractEntity> generated = getGeneratedMapper(type);
+		return generated != null ? generated.getKind() : getMapping(type).getKind();
+	}
+
+	/**
+	 * Returns the cache policy of the given class, either set with {@link #setCachePolicy(Class, CachePolicy)}
+	 * or read from its {@link Cached} annotation. Null if the kind isn't cached.
+	 */
+	public CachePolicy getCachePolicy(final Class<?> type) {
+		CachePolicy policy = cachePolicyOverrides.get(type);
+		return policy != null ? policy : cachePolicies.get(type).orElse(null);
+	}
+
+	/**
+	 * Overrides the cache policy of the given class, null to go back to its annotation.
+	 */
+	public void setCachePolicy(final Class<?> type, final CachePolicy policy) {
+		if (policy == null) {
+			cachePolicyOverrides.remove(type);
+		} else {
+			cachePolicyOverrides.put(type, policy);
+		}
+	}
+
+	/**
+	 * Returns the cache of the mappers using this registry, the shared {@link MemcacheEntityCache} unless
+	 * another one was set.
+	 */
+	public EntityCache getCache() {
+		EntityCache current = cache;
+		return current != null ? current : MemcacheEntityCache.getDefault();
+	}
+
+	/**
+	 * Sets the cache of the mappers using this registry, for instance a
+	 * {@link com.ar.sgt.appengine.datastore.cache.TieredEntityCache} with a near cache in front of memcache.
+	 */
+	public void setCache(final EntityCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @return seconds the query results of the given class are cached, 0 if they aren't
+	 */
+	public int getQueryExpiration(final Class<?> type) {
+		Integer expiration = queryExpirations.get(type);
+		return expiration != null ? expiration : 0;
+	}
+
+	/**
+	 * Caches the result pages of queries on the given class for up to the given seconds, 0 to stop caching them.
+	 * Writes of the class drop its cached pages, the expiration bounds how long a page can miss entities
+	 * written by other means or not yet visible to queries.
+	 */
+	public void setQueryExpiration(final Class<?> type, final int expiration) {
+		if (expiration > 0) {
+			queryExpirations.put(type, expiration);
+		} else {
+			queryExpirations.remove(type);
+		}
+	}
+
+	/**
+	 * Returns the query cache of the mappers using this registry, the shared {@link MemcacheQueryCache} unless
+	 * another one was set.
+	 */
+	public QueryCache getQueryCache() {
+		QueryCache current = queryCache;
+		return current != null ? current : MemcacheQueryCache.getDefault();
+	}
+
+	public void setQueryCache(final QueryCache queryCache) {
+		this.queryCache = queryCache;
+	}
+
+	/**
+	 * Returns the metrics of the mappers using this registry, {@link RepositoryMetrics#NOOP} unless set.
+	 */
+	public RepositoryMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the metrics of the mappers using this registry, for instance an
+	 * {@link com.ar.sgt.appengine.datastore.metrics.InMemoryRepositoryMetrics}. Null goes back to no metrics.
+	 */
+	public void setMetrics(final RepositoryMetrics metrics) {
+		this.metrics = metrics != null ? metrics : RepositoryMetrics.NOOP;
+	}
+
+}
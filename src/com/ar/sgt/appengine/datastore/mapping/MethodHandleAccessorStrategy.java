@@ -0,0 +1,192 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.mapping;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Default strategy. Getters and setters following bean conventions are bound as {@link MethodHandle}s,
+ * falling back to direct field handles when the class doesn't declare them. Handles are adapted to
+ * generic signatures once, so invoking them doesn't go through reflection.
+ */
+public class MethodHandleAccessorStrategy implements AccessorStrategy {
+
+	private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+	private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+	private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+	@Override
+	public PropertyAccessor accessor(final Field field) throws IllegalAccessException {
+		field.setAccessible(true);
+		MethodHandle getter;
+		Method method = findGetter(field);
+		if (method != null) {
+			getter = lookup.unreflect(method);
+		} else {
+			getter = lookup.unreflectGetter(field);
+		}
+		MethodHandle setter;
+		method = findSetter(field);
+		if (method != null) {
+			setter = lookup.unreflect(method);
+		} else if (Modifier.isFinal(field.getModifiers())) {
+			// field handles refuse to write final fields, go through Field.set instead
+			setter = fieldSet(field);
+		} else {
+			setter = lookup.unreflectSetter(field);
+		}
+		return new HandleAccessor(getter.asType(GETTER_TYPE), setter.asType(SETTER_TYPE), field.getType().isPrimitive());
+	}
+
+	@Override
+	public Instantiator instantiator(final Class<?> type) throws IllegalAccessException {
+		if (Modifier.isAbstract(type.getModifiers())) {
+			return missingConstructor(type);
+		}
+		Constructor<?> constructor;
+		try {
+			constructor = type.getDeclaredConstructor();
+		} catch (NoSuchMethodException e) {
+			return missingConstructor(type);
+		}
+		constructor.setAccessible(true);
+		final MethodHandle handle = lookup.unreflectConstructor(constructor).asType(CONSTRUCTOR_TYPE);
+		return new Instantiator() {
+
+			@Override
+			public Object newInstance() throws InvocationTargetException {
+				try {
+					return (Object) handle.invokeExact();
+				} catch (RuntimeException | Error e) {
+					throw e;
+				} catch (Throwable e) {
+					throw new InvocationTargetException(e);
+				}
+			}
+		};
+	}
+
+	private MethodHandle fieldSet(final Field field) throws IllegalAccessException {
+		try {
+			return lookup.findVirtual(Field.class, "set", SETTER_TYPE).bindTo(field);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static Instantiator missingConstructor(final Class<?> type) {
+		return new Instantiator() {
+
+			@Override
+			public Object newInstance() throws InstantiationException {
+				throw new InstantiationException(type.getName() + " can't be instantiated, a no-arg constructor is required");
+			}
+		};
+	}
+
+	private static Method findGetter(final Field field) {
+		String suffix = capitalize(field.getName());
+		Method method = findMethod(field.getDeclaringClass(), "get" + suffix);
+		if (method == null && (field.getType() == boolean.class || field.getType() == Boolean.class)) {
+			method = findMethod(field.getDeclaringClass(), "is" + suffix);
+		}
+		if (method != null && !field.getType().isAssignableFrom(method.getReturnType())) {
+			return null;
+		}
+		return method;
+	}
+
+	private static Method findSetter(final Field field) {
+		return findMethod(field.getDeclaringClass(), "set" + capitalize(field.getName()), field.getType());
+	}
+
+	private static Method findMethod(final Class<?> type, final String name, final Class<?>... parameters) {
+		try {
+			Method method = type.getMethod(name, parameters);
+			if (Modifier.isStatic(method.getModifiers())) return null;
+			method.setAccessible(true);
+			return method;
+		} catch (NoSuchMethodException | SecurityException e) {
+			return null;
+		}
+	}
+
+	private static String capitalize(final String name) {
+		return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+	}
+
+	private static class HandleAccessor implements PropertyAccessor {
+
+		private final MethodHandle getter;
+
+		private final MethodHandle setter;
+
+		private final boolean primitive;
+
+		HandleAccessor(MethodHandle getter, MethodHandle setter, boolean primitive) {
+			this.getter = getter;
+			this.setter = setter;
+			this.primitive = primitive;
+		}
+
+		@Override
+		public Object get(Object target) throws InvocationTargetException {
+			try {
+				return (Object) getter.invokeExact(target);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new InvocationTargetException(e);
+			}
+		}
+
+		@Override
+		public void set(Object target, Object value) throws InvocationTargetException {
+			// primitives keep their default value when the property is missing
+			if (value == null && primitive) return;
+			try {
+				setter.invokeExact(target, value);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new InvocationTargetException(e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,147 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.mapping;
+
+import java.lang.reflect.Field;
+
+import com.ar.sgt.appengine.datastore.AbstractEntity;
+import com.ar.sgt.appengine.datastore.annotation.Converter;
+import com.ar.sgt.appengine.datastore.annotation.Embedded;
+import com.ar.sgt.appengine.datastore.annotation.FieldName;
+import com.ar.sgt.appengine.datastore.annotation.Id;
+import com.ar.sgt.appengine.datastore.annotation.Lazy;
+import com.ar.sgt.appengine.datastore.annotation.Unindexed;
+
+/**
+ * Resolved mapping of a single field. Immutable, built once per class by {@link EntityMapping}.
+ */
+public final class PropertyMapping {
+
+	private final Field field;
+
+	private final String name;
+
+	private final String propertyName;
+
+	private final Class<?> type;
+
+	private final boolean id;
+
+	private final boolean indexed;
+
+	private final boolean relation;
+
+	private final boolean lazy;
+
+	private final boolean embedded;
+
+	private final PropertyCodec codec;
+
+	private final PropertyAccessor accessor;
+
+	PropertyMapping(final Field field, final AccessorStrategy strategy) throws IllegalAccessException {
+		this.field = field;
+		this.name = field.getName();
+		this.propertyName = resolveName(field);
+		this.type = field.getType();
+		this.id = field.isAnnotationPresent(Id.class);
+		this.indexed = !field.isAnnotationPresent(Unindexed.class);
+		this.embedded = !id && field.isAnnotationPresent(Embedded.class);
+		this.relation = !id && !embedded && !field.isAnnotationPresent(Converter.class) && AbstractEntity.class.isAssignableFrom(type);
+		this.lazy = relation && field.isAnnotationPresent(Lazy.class);
+		this.codec = embedded ? Codecs.embedded(field, strategy) : Codecs.forField(field);
+		this.accessor = strategy.accessor(field);
+	}
+
+	/**
+	 * Resolves the datastore property name of the given field.
+	 */
+	public static String resolveName(final Field field) {
+		FieldName fn = field.getAnnotation(FieldName.class);
+		return fn != null ? fn.value() : field.getName();
+	}
+
+	public Field getField() {
+		return field;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getPropertyName() {
+		return propertyName;
+	}
+
+	public Class<?> getType() {
+		return type;
+	}
+
+	public boolean isId() {
+		return id;
+	}
+
+	public boolean isIndexed() {
+		return indexed;
+	}
+
+	public boolean isRelation() {
+		return relation;
+	}
+
+	public boolean isLazy() {
+		return lazy;
+	}
+
+	/**
+	 * @return true if the field is stored as an EmbeddedEntity, or a list of them
+	 */
+	public boolean isEmbedded() {
+		return embedded;
+	}
+
+	/**
+	 * @return the class of the embedded objects, the element type for collections, or null if not embedded
+	 */
+	public Class<?> getEmbeddedType() {
+		return embedded ? ((Codecs.EmbeddedCodec) codec).getType() : null;
+	}
+
+	public PropertyCodec getCodec() {
+		return codec;
+	}
+
+	public PropertyAccessor getAccessor() {
+		return accessor;
+	}
+
+	@Override
+	public String toString() {
+		return name + "->" + propertyName;
+	}
+
+}
@@ -0,0 +1,148 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.mapping;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PropertyContainer;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * Compact snapshots of entities, used to tell whether an object changed since it was loaded. A snapshot is a
+ * 64 bit hash of the key and every property with its indexed flag, independent of the property order.
+ * Numbers are hashed by value, so an Integer field rebuilt from a stored Long doesn't look changed.
+ */
+public final class Snapshots {
+
+	private static final long SEED = 0x2545F4914F6CDD1DL;
+
+	private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+	private Snapshots() {
+	}
+
+	/**
+	 * @return the snapshot of the entity, never 0
+	 */
+	public static long of(Entity entity) {
+		long hash = mix(hashKey(SEED, entity.getKey())) + hashProperties(entity);
+		return hash != 0 ? hash : 1;
+	}
+
+	private static long hashProperties(PropertyContainer container) {
+		long sum = 0;
+		for (Map.Entry<String, Object> property : container.getProperties().entrySet()) {
+			long hash = hashString(SEED, property.getKey());
+			hash = step(hash, container.isUnindexedProperty(property.getKey()) ? 1 : 0);
+			sum += mix(hashValue(hash, property.getValue()));
+		}
+		return sum;
+	}
+
+	private static long hashValue(long hash, Object value) {
+		if (value == null) {
+			return step(hash, 0);
+		} else if (value instanceof String) {
+			return hashString(step(hash, 1), (String) value);
+		} else if (value instanceof Text) {
+			return hashString(step(hash, 1), ((Text) value).getValue());
+		} else if (value instanceof Double || value instanceof Float) {
+			return step(step(hash, 3), Double.doubleToLongBits(((Number) value).doubleValue()));
+		} else if (value instanceof Number) {
+			return step(step(hash, 2), ((Number) value).longValue());
+		} else if (value instanceof Boolean) {
+			return step(step(hash, 4), ((Boolean) value) ? 1 : 0);
+		} else if (value instanceof Date) {
+			return step(step(hash, 5), ((Date) value).getTime());
+		} else if (value instanceof Key) {
+			return hashKey(step(hash, 6), (Key) value);
+		} else if (value instanceof Blob) {
+			return hashBytes(step(hash, 7), ((Blob) value).getBytes());
+		} else if (value instanceof ShortBlob) {
+			return hashBytes(step(hash, 7), ((ShortBlob) value).getBytes());
+		} else if (value instanceof Collection) {
+			Collection<?> values = (Collection<?>) value;
+			hash = step(step(hash, 8), values.size());
+			for (Object element : values) {
+				hash = hashValue(hash, element);
+			}
+			return hash;
+		} else if (value instanceof EmbeddedEntity) {
+			EmbeddedEntity embedded = (EmbeddedEntity) value;
+			return step(hashKey(step(hash, 9), embedded.getKey()), hashProperties(embedded));
+		}
+		return step(hashString(hashString(step(hash, 10), value.getClass().getName()), value.toString()), value.hashCode());
+	}
+
+	private static long hashKey(long hash, Key key) {
+		if (key == null) return step(hash, 0);
+		hash = hashString(hash, key.getKind());
+		hash = key.getName() != null ? hashString(step(hash, 1), key.getName()) : step(step(hash, 2), key.getId());
+		return hashKey(hash, key.getParent());
+	}
+
+	private static long hashString(long hash, String value) {
+		hash = step(hash, value.length());
+		int i = 0;
+		for (; i + 4 <= value.length(); i += 4) {
+			hash = step(hash, ((long) value.charAt(i) << 48) | ((long) value.charAt(i + 1) << 32) | ((long) value.charAt(i + 2) << 16) | value.charAt(i + 3));
+		}
+		for (; i < value.length(); i++) {
+			hash = step(hash, value.charAt(i));
+		}
+		return hash;
+	}
+
+	private static long hashBytes(long hash, byte[] value) {
+		hash = step(hash, value.length);
+		for (byte b : value) {
+			hash = step(hash, b);
+		}
+		return hash;
+	}
+
+	private static long step(long hash, long value) {
+		return Long.rotateLeft((hash ^ value) * MULTIPLIER, 31);
+	}
+
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		hash *= 0xC4CEB9FE1A85EC53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.metrics;
+
+/**
+ * Inefficient datastore access found by an access tracker.
+ */
+public final class AccessIssue {
+
+	public enum Type {
+
+		/**
+		 * Several gets of a single key of the same kind, usually relations loaded one by one in a loop.
+		 */
+		REPEATED_GET,
+
+		/**
+		 * A key fetched from the datastore again in the same request.
+		 */
+		DUPLICATE_LOAD,
+
+		/**
+		 * A query returning more results than allowed.
+		 */
+		LARGE_QUERY,
+
+		/**
+		 * More RPCs in the request than allowed.
+		 */
+		TOO_MANY_RPCS
+
+	}
+
+	private final Type type;
+
+	private final String kind;
+
+	private final int count;
+
+	private final String origin;
+
+	public AccessIssue(Type type, String kind, int count, String origin) {
+		this.type = type;
+		this.kind = kind;
+		this.count = count;
+		this.origin = origin;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return single gets, duplicate keys, query results or RPCs, depending on the type
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the library method that made the call and the application code that called it
+	 */
+	public String getOrigin() {
+		return origin;
+	}
+
+	@Override
+	public String toString() {
+		return type + " of " + kind + " (" + count + ") in " + origin;
+	}
+
+}
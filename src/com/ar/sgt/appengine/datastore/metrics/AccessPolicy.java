@@ -0,0 +1,131 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.metrics;
+
+import java.util.function.Consumer;
+
+/**
+ * Thresholds of an access tracker and what it does with the issues it finds: they are always logged, passed
+ * to the listener if there is one, and with {@link #failing()} thrown as an {@link AccessException}.
+ */
+public class AccessPolicy {
+
+	public static final int DEFAULT_SINGLE_GETS = 5;
+
+	public static final int DEFAULT_MAX_RESULTS = 1000;
+
+	public static final int DEFAULT_MAX_RPCS = 50;
+
+	private final boolean fail;
+
+	private int singleGets = DEFAULT_SINGLE_GETS;
+
+	private int maxResults = DEFAULT_MAX_RESULTS;
+
+	private int maxRpcs = DEFAULT_MAX_RPCS;
+
+	private Consumer<AccessIssue> listener;
+
+	private AccessPolicy(boolean fail) {
+		this.fail = fail;
+	}
+
+	/**
+	 * Logs issues and lets the calls go on, for production requests.
+	 */
+	public static AccessPolicy logging() {
+		return new AccessPolicy(false);
+	}
+
+	/**
+	 * Throws an {@link AccessException} from the call that caused the issue, for tests.
+	 */
+	public static AccessPolicy failing() {
+		return new AccessPolicy(true);
+	}
+
+	/**
+	 * Number of gets of a single key of the same kind reported as an N+1 pattern.
+	 */
+	public AccessPolicy withSingleGets(int singleGets) {
+		if (singleGets < 2) throw new IllegalArgumentException("singleGets must be at least 2");
+		this.singleGets = singleGets;
+		return this;
+	}
+
+	/**
+	 * Results of a single query above which it is reported as an oversized scan.
+	 */
+	public AccessPolicy withMaxResults(int maxResults) {
+		if (maxResults < 1) throw new IllegalArgumentException("maxResults must be positive");
+		this.maxResults = maxResults;
+		return this;
+	}
+
+	/**
+	 * RPCs of the whole request above which it is reported as chatty.
+	 */
+	public AccessPolicy withMaxRpcs(int maxRpcs) {
+		if (maxRpcs < 1) throw new IllegalArgumentException("maxRpcs must be positive");
+		this.maxRpcs = maxRpcs;
+		return this;
+	}
+
+	/**
+	 * Called on the tracked thread with every issue found, before it's thrown when failing.
+	 */
+	public AccessPolicy withListener(Consumer<AccessIssue> listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	public boolean isFail() {
+		return fail;
+	}
+
+	public int getSingleGets() {
+		return singleGets;
+	}
+
+	public int getMaxResults() {
+		return maxResults;
+	}
+
+	public int getMaxRpcs() {
+		return maxRpcs;
+	}
+
+	public Consumer<AccessIssue> getListener() {
+		return listener;
+	}
+
+	@Override
+	public String toString() {
+		return "AccessPolicy [fail=" + fail + ", singleGets=" + singleGets + ", maxResults=" + maxResults + ", maxRpcs=" + maxRpcs + "]";
+	}
+
+}
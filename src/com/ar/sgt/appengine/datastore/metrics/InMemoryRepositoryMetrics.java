@@ -0,0 +1,236 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.metrics;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the measurements of each kind in memory, latencies and sizes in {@link Histogram}s and the rest in
+ * counters. Meant to be read by an admin endpoint or a periodic job that exports them, and reset after.
+ */
+public class InMemoryRepositoryMetrics implements RepositoryMetrics {
+
+	private final ConcurrentMap<String, KindMetrics> kinds = new ConcurrentHashMap<>();
+
+	@Override
+	public void operation(String kind, Operation operation, long nanos, int entities) {
+		KindMetrics metrics = forKind(kind);
+		metrics.latencies.get(operation).record(nanos);
+		metrics.entities.get(operation).record(entities);
+	}
+
+	@Override
+	public void rpc(String kind, Operation operation, long nanos, int entities) {
+		KindMetrics metrics = forKind(kind);
+		metrics.rpcs.get(operation).increment();
+		metrics.rpcLatency.record(nanos);
+		metrics.rpcEntities.record(entities);
+	}
+
+	@Override
+	public void mapping(String kind, long nanos, int entities) {
+		KindMetrics metrics = forKind(kind);
+		metrics.mappingLatency.record(nanos);
+		metrics.mapped.add(entities);
+	}
+
+	@Override
+	public void lazyLoad(String kind, int entities) {
+		KindMetrics metrics = forKind(kind);
+		metrics.lazyLoads.increment();
+		metrics.lazyLoaded.add(entities);
+	}
+
+	@Override
+	public void cache(String kind, int hits, int misses) {
+		KindMetrics metrics = forKind(kind);
+		metrics.cacheHits.add(hits);
+		metrics.cacheMisses.add(misses);
+	}
+
+	private KindMetrics forKind(String kind) {
+		KindMetrics metrics = kinds.get(kind);
+		return metrics != null ? metrics : kinds.computeIfAbsent(kind, k -> new KindMetrics());
+	}
+
+	/**
+	 * @return the measurements of the given kind, null if nothing was recorded for it
+	 */
+	public KindMetrics getKind(String kind) {
+		return kinds.get(kind);
+	}
+
+	public Map<String, KindMetrics> getKinds() {
+		return Collections.unmodifiableMap(kinds);
+	}
+
+	/**
+	 * Drops the measurements of every kind.
+	 */
+	public void reset() {
+		kinds.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "InMemoryRepositoryMetrics " + kinds;
+	}
+
+	/**
+	 * Measurements of a single kind.
+	 */
+	public static final class KindMetrics {
+
+		private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+
+		private final Map<Operation, Histogram> entities = new EnumMap<>(Operation.class);
+
+		private final Map<Operation, LongAdder> rpcs = new EnumMap<>(Operation.class);
+
+		private final Histogram rpcLatency = new Histogram();
+
+		private final Histogram rpcEntities = new Histogram();
+
+		private final Histogram mappingLatency = new Histogram();
+
+		private final LongAdder mapped = new LongAdder();
+
+		private final LongAdder lazyLoads = new LongAdder();
+
+		private final LongAdder lazyLoaded = new LongAdder();
+
+		private final LongAdder cacheHits = new LongAdder();
+
+		private final LongAdder cacheMisses = new LongAdder();
+
+		KindMetrics() {
+			// filled before the instance is published, read only after
+			for (Operation operation : Operation.values()) {
+				latencies.put(operation, new Histogram());
+				entities.put(operation, new Histogram());
+				rpcs.put(operation, new LongAdder());
+			}
+		}
+
+		/**
+		 * @return latency in nanoseconds of the repository calls of the given operation
+		 */
+		public Histogram getLatency(Operation operation) {
+			return latencies.get(operation);
+		}
+
+		/**
+		 * @return entities read or written per repository call of the given operation
+		 */
+		public Histogram getEntities(Operation operation) {
+			return entities.get(operation);
+		}
+
+		public long getRpcCount(Operation operation) {
+			return rpcs.get(operation).sum();
+		}
+
+		public long getRpcCount() {
+			long count = 0;
+			for (LongAdder adder : rpcs.values()) {
+				count += adder.sum();
+			}
+			return count;
+		}
+
+		/**
+		 * @return latency in nanoseconds of the datastore RPCs
+		 */
+		public Histogram getRpcLatency() {
+			return rpcLatency;
+		}
+
+		/**
+		 * @return entities or keys per datastore RPC
+		 */
+		public Histogram getRpcEntities() {
+			return rpcEntities;
+		}
+
+		/**
+		 * @return time in nanoseconds spent mapping per mapper call
+		 */
+		public Histogram getMappingLatency() {
+			return mappingLatency;
+		}
+
+		public long getMappedEntities() {
+			return mapped.sum();
+		}
+
+		/**
+		 * @return number of batch loads triggered by lazy relations
+		 */
+		public long getLazyLoads() {
+			return lazyLoads.sum();
+		}
+
+		public long getLazyLoadedEntities() {
+			return lazyLoaded.sum();
+		}
+
+		public long getCacheHits() {
+			return cacheHits.sum();
+		}
+
+		public long getCacheMisses() {
+			return cacheMisses.sum();
+		}
+
+		/**
+		 * @return hits over lookups, 1 if there were no lookups
+		 */
+		public double getCacheHitRatio() {
+			long hits = getCacheHits();
+			long requests = hits + getCacheMisses();
+			return requests == 0 ? 1.0 : (double) hits / requests;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder("KindMetrics [");
+			for (Operation operation : Operation.values()) {
+				if (getLatency(operation).getCount() == 0 && getRpcCount(operation) == 0) continue;
+				sb.append(operation).append("=").append(getLatency(operation)).append(", rpcs=").append(getRpcCount(operation)).append(", ");
+			}
+			return sb.append("rpc=").append(rpcLatency).append(", mapping=").append(mappingLatency).append(", lazyLoads=").append(getLazyLoads())
+					.append(", cacheHitRatio=").append(getCacheHitRatio()).append("]").toString();
+		}
+
+	}
+
+}
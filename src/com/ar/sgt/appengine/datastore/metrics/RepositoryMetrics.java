@@ -0,0 +1,90 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.metrics;
+
+/**
+ * Receives measurements of repositories and their mapper, by kind. Times are in nanoseconds. Implementations
+ * are called on the request path from any thread, so they must be thread safe, cheap and never fail.
+ *
+ * @see InMemoryRepositoryMetrics
+ */
+public interface RepositoryMetrics {
+
+	/**
+	 * Discards every measurement, the default.
+	 */
+	RepositoryMetrics NOOP = new RepositoryMetrics() {
+
+		@Override
+		public void operation(String kind, Operation operation, long nanos, int entities) {
+		}
+
+		@Override
+		public void rpc(String kind, Operation operation, long nanos, int entities) {
+		}
+
+		@Override
+		public void mapping(String kind, long nanos, int entities) {
+		}
+
+		@Override
+		public void lazyLoad(String kind, int entities) {
+		}
+
+		@Override
+		public void cache(String kind, int hits, int misses) {
+		}
+	};
+
+	/**
+	 * A repository call completed, including its RPCs and mapping. Entities is the number of entities read or
+	 * written by the call.
+	 */
+	void operation(String kind, Operation operation, long nanos, int entities);
+
+	/**
+	 * A datastore RPC completed. An RPC touching several kinds is recorded under the kind of its first key,
+	 * and a query counts as one RPC even if its results are fetched in several batches.
+	 */
+	void rpc(String kind, Operation operation, long nanos, int entities);
+
+	/**
+	 * Entities were mapped to objects or objects to entities, RPCs made to load relations are not included.
+	 */
+	void mapping(String kind, long nanos, int entities);
+
+	/**
+	 * A lazy relation was used and loaded together with its pending siblings.
+	 */
+	void lazyLoad(String kind, int entities);
+
+	/**
+	 * Keys of a cached kind were looked up in the entity cache.
+	 */
+	void cache(String kind, int hits, int misses);
+
+}
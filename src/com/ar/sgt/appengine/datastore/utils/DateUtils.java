@@ -26,43 +26,126 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 package com.ar.sgt.appengine.datastore.utils;
 
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.time.OffsetDateTime;
 import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.time.temporal.Temporal;
 import java.util.Date;
-import java.util.TimeZone;
 
+/**
+ * Conversions between java.time values and the dates the datastore stores. Local dates and times are stored
+ * at the configured zone, zoned and offset values are stored as their instant and read back at that zone.
+ */
 public class DateUtils {
 
-	private static final TimeZone TIME_ZONE = TimeZone.getTimeZone("America/Argentina/Buenos_Aires");
-	private static final ZoneId ZONE_ID = TIME_ZONE.toZoneId();
-	
+	/**
+	 * System property with the id of the zone used when none is set, i.e. -Dentitymapping.zone=UTC.
+	 */
+	public static final String ZONE_PROPERTY = "entitymapping.zone";
+
+	/**
+	 * Zone used when none is set or configured, the one values were always stored at before the zone could be changed.
+	 */
+	public static final String DEFAULT_ZONE = "America/Argentina/Buenos_Aires";
+
+	/**
+	 * Date local times are stored at, so stored times compare like the times themselves.
+	 */
+	private static final LocalDate TIME_DATE = LocalDate.of(1970, 1, 1);
+
+	private static volatile ZoneId zoneId = ZoneId.of(System.getProperty(ZONE_PROPERTY, DEFAULT_ZONE));
+
+	public static ZoneId getZoneId() {
+		return zoneId;
+	}
+
+	/**
+	 * Sets the zone local dates and times are stored at. Values already stored at another zone are read back
+	 * shifted, so it should be set once at startup.
+	 */
+	public static void setZoneId(ZoneId zoneId) {
+		if (zoneId == null) throw new IllegalArgumentException("zoneId is required");
+		DateUtils.zoneId = zoneId;
+	}
+
 	public static Date temporalToDate(Object value) {
-		
-		if (LocalDate.class.isAssignableFrom(value.getClass())) {
-			LocalDate ld = (LocalDate) value;
-			return Date.from(ld.atStartOfDay().atZone(ZONE_ID).toInstant());
-		} else if (LocalDateTime.class.isAssignableFrom(value.getClass())) {
-			LocalDateTime ld = (LocalDateTime) value;
-			return Date.from(ld.atZone(ZONE_ID).toInstant());
-		} else if (LocalTime.class.isAssignableFrom(value.getClass())) {
-			LocalTime ld = (LocalTime) value;
-			return Date.from(ld.atDate(LocalDate.now()).atZone(ZONE_ID).toInstant());
+		if (value instanceof LocalDate) {
+			return toDate((LocalDate) value);
+		} else if (value instanceof LocalDateTime) {
+			return toDate((LocalDateTime) value);
+		} else if (value instanceof LocalTime) {
+			return toDate((LocalTime) value);
+		} else if (value instanceof Instant) {
+			return new Date(((Instant) value).toEpochMilli());
+		} else if (value instanceof ZonedDateTime) {
+			return toDate((ZonedDateTime) value);
+		} else if (value instanceof OffsetDateTime) {
+			return toDate((OffsetDateTime) value);
 		}
 		return null;
 	}
 
 	public static Temporal dateToTemporal(Date value, Class<?> type) {
-		if (LocalDate.class.isAssignableFrom(type)) {
-			return value.toInstant().atZone(ZONE_ID).toLocalDate();
-		} else if (LocalDateTime.class.isAssignableFrom(type)) {
-			return value.toInstant().atZone(ZONE_ID).toLocalDateTime();
-		} else if (LocalTime.class.isAssignableFrom(type)) {
-			return value.toInstant().atZone(ZONE_ID).toLocalTime();
+		if (type == LocalDate.class) {
+			return toLocalDate(value);
+		} else if (type == LocalDateTime.class) {
+			return toLocalDateTime(value);
+		} else if (type == LocalTime.class) {
+			return toLocalTime(value);
+		} else if (type == Instant.class) {
+			return value.toInstant();
+		} else if (type == ZonedDateTime.class) {
+			return toZonedDateTime(value);
+		} else if (type == OffsetDateTime.class) {
+			return toOffsetDateTime(value);
 		}
 		return null;
 	}
-	
+
+	public static Date toDate(LocalDate value) {
+		return new Date(value.atStartOfDay(zoneId).toEpochSecond() * 1000);
+	}
+
+	public static Date toDate(LocalDateTime value) {
+		ZoneId zone = zoneId;
+		// same instant as atZone, even in gaps and overlaps, without building the zoned value
+		return new Date(value.toEpochSecond(zone.getRules().getOffset(value)) * 1000 + value.getNano() / 1000000);
+	}
+
+	public static Date toDate(LocalTime value) {
+		return toDate(value.atDate(TIME_DATE));
+	}
+
+	public static Date toDate(ZonedDateTime value) {
+		return new Date(value.toEpochSecond() * 1000 + value.getNano() / 1000000);
+	}
+
+	public static Date toDate(OffsetDateTime value) {
+		return new Date(value.toEpochSecond() * 1000 + value.getNano() / 1000000);
+	}
+
+	public static LocalDate toLocalDate(Date value) {
+		return toZonedDateTime(value).toLocalDate();
+	}
+
+	public static LocalDateTime toLocalDateTime(Date value) {
+		return LocalDateTime.ofInstant(value.toInstant(), zoneId);
+	}
+
+	public static LocalTime toLocalTime(Date value) {
+		return toLocalDateTime(value).toLocalTime();
+	}
+
+	public static ZonedDateTime toZonedDateTime(Date value) {
+		return ZonedDateTime.ofInstant(value.toInstant(), zoneId);
+	}
+
+	public static OffsetDateTime toOffsetDateTime(Date value) {
+		return OffsetDateTime.ofInstant(value.toInstant(), zoneId);
+	}
+
 }
@@ -27,40 +27,40 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.ar.sgt.appengine.datastore.utils;
 
 import java.lang.reflect.Field;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
 
-import com.ar.sgt.appengine.datastore.annotation.FieldName;
+import com.ar.sgt.appengine.datastore.mapping.MappingException;
+import com.ar.sgt.appengine.datastore.mapping.MappingRegistry;
+import com.ar.sgt.appengine.datastore.mapping.PropertyMapping;
 
 public class EntityUtils {
 
-	private static final Map<String, String> fieldCache = Collections.synchronizedMap(new HashMap<String, String>());
-	
 	public static String getFieldName(Field field) {
-		String name = fieldCache.get(cacheKey(field));
-		if (name == null) {
-			if (field.isAnnotationPresent(FieldName.class)) {
-				FieldName fn = field.getAnnotation(FieldName.class);
-				name = fn.value();
-			} else {
-				name = field.getName();	
-			}
-			fieldCache.put(cacheKey(field), name);
-		}
-		return name;
+		PropertyMapping property = getProperty(field.getDeclaringClass(), field.getName());
+		return property != null ? property.getPropertyName() : PropertyMapping.resolveName(field);
 	}
 
+	/**
+	 * Resolves the datastore property name of the given java field, or the dotted path of a field of an embedded
+	 * object, i.e. "address.city". Segments that aren't mapped fields are kept as given.
+	 */
 	public static String getFieldName(Class<?> type, String field) {
-		try {
-			return getFieldName(type.getDeclaredField(field));
-		} catch (NoSuchFieldException | SecurityException e) {
-			return field;
+		int dot = field.indexOf('.');
+		if (dot < 0) {
+			PropertyMapping property = getProperty(type, field);
+			return property != null ? property.getPropertyName() : field;
 		}
+		PropertyMapping property = getProperty(type, field.substring(0, dot));
+		if (property == null) return field;
+		String rest = field.substring(dot + 1);
+		return property.getPropertyName() + "." + (property.isEmbedded() ? getFieldName(property.getEmbeddedType(), rest) : rest);
 	}
 	
-	private static String cacheKey(Field field) {
-		return String.format("%s.%s", field.getDeclaringClass().getName(), field.getName());
+	private static PropertyMapping getProperty(Class<?> type, String field) {
+		try {
+			return MappingRegistry.getDefault().getMapping(type).getProperty(field);
+		} catch (MappingException e) {
+			return null;
+		}
 	}
 	
 }
@@ -0,0 +1,148 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ar.sgt.appengine.datastore.metrics.AccessException;
+import com.ar.sgt.appengine.datastore.metrics.AccessIssue;
+import com.ar.sgt.appengine.datastore.metrics.AccessPolicy;
+import com.ar.sgt.appengine.datastore.model.Company;
+import com.ar.sgt.appengine.datastore.model.CompanyRepository;
+
+public class AccessTrackerTest extends DatastoreTestCase {
+
+	private CompanyRepository repository;
+
+	private List<Company> companies;
+
+	@Before
+	public void setUp() {
+		repository = new CompanyRepository();
+		companies = BatchSaveTest.companies(20);
+		repository.save(companies);
+	}
+
+	@Test
+	public void repeatedSingleGetsAreReported() {
+		try (AccessTracker tracker = AccessTracker.open(AccessPolicy.logging().withSingleGets(3))) {
+			for (Company company : companies.subList(0, 5)) {
+				assertTrue(repository.get(company.getId()).isPresent());
+			}
+			assertEquals(5, tracker.getRpcCount());
+			List<AccessIssue> issues = tracker.getIssues();
+			// reported once, when the threshold is reached
+			assertEquals(1, issues.size());
+			assertEquals(AccessIssue.Type.REPEATED_GET, issues.get(0).getType());
+			assertEquals("Company", issues.get(0).getKind());
+			assertEquals(3, issues.get(0).getCount());
+			assertTrue(issues.get(0).getOrigin(), issues.get(0).getOrigin().contains(getClass().getSimpleName()));
+		}
+	}
+
+	@Test
+	public void duplicateLoadsAreReported() {
+		try (AccessTracker tracker = AccessTracker.open()) {
+			Long id = companies.get(0).getId();
+			repository.get(id);
+			assertTrue(tracker.getIssues().isEmpty());
+			repository.get(id);
+			List<AccessIssue> issues = tracker.getIssues();
+			assertEquals(1, issues.size());
+			assertEquals(AccessIssue.Type.DUPLICATE_LOAD, issues.get(0).getType());
+			assertEquals(1, issues.get(0).getCount());
+		}
+	}
+
+	@Test
+	public void largeQueriesAreReported() {
+		try (AccessTracker tracker = AccessTracker.open(AccessPolicy.logging().withMaxResults(10))) {
+			assertEquals(20, repository.findAll().size());
+			List<AccessIssue> issues = tracker.getIssues();
+			assertEquals(1, issues.size());
+			assertEquals(AccessIssue.Type.LARGE_QUERY, issues.get(0).getType());
+			assertEquals(20, issues.get(0).getCount());
+		}
+	}
+
+	@Test
+	public void tooManyRpcsAreReported() {
+		try (AccessTracker tracker = AccessTracker.open(AccessPolicy.logging().withMaxRpcs(3))) {
+			for (int i = 0; i < 5; i++) {
+				repository.findAll();
+			}
+			List<AccessIssue> issues = tracker.getIssues();
+			assertEquals(1, issues.size());
+			assertEquals(AccessIssue.Type.TOO_MANY_RPCS, issues.get(0).getType());
+			assertEquals(4, issues.get(0).getCount());
+			assertEquals(5, tracker.getCalls().size());
+		}
+	}
+
+	@Test
+	public void failingPolicyThrowsFromTheCall() {
+		final List<AccessIssue> listened = new ArrayList<AccessIssue>();
+		try (AccessTracker tracker = AccessTracker.open(AccessPolicy.failing().withSingleGets(2).withListener(listened::add))) {
+			repository.get(companies.get(0).getId());
+			try {
+				repository.get(companies.get(1).getId());
+				fail("AccessException expected");
+			} catch (AccessException e) {
+				assertEquals(AccessIssue.Type.REPEATED_GET, e.getIssue().getType());
+				assertEquals(1, listened.size());
+				assertSame(listened.get(0), e.getIssue());
+			}
+		}
+	}
+
+	@Test
+	public void trackingIsBoundToTheThread() throws Exception {
+		try (AccessTracker tracker = AccessTracker.open()) {
+			assertSame(tracker, AccessTracker.current());
+			try {
+				AccessTracker.open();
+				fail("IllegalStateException expected");
+			} catch (IllegalStateException e) {
+				// one tracker per thread
+			}
+			within(10, () -> repository.findAll());
+			assertEquals(0, tracker.getRpcCount());
+		}
+		assertNull(AccessTracker.current());
+	}
+
+}
@@ -0,0 +1,148 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ar.sgt.appengine.datastore.metrics.InMemoryRepositoryMetrics;
+import com.ar.sgt.appengine.datastore.metrics.InMemoryRepositoryMetrics.KindMetrics;
+import com.ar.sgt.appengine.datastore.metrics.Operation;
+import com.ar.sgt.appengine.datastore.model.Company;
+import com.ar.sgt.appengine.datastore.model.CompanyAsyncRepository;
+import com.ar.sgt.appengine.datastore.model.CompanyRepository;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Query;
+
+public class AsyncRepositoryTest extends DatastoreTestCase {
+
+	private final List<String> rpcs = new ArrayList<String>();
+
+	private CompanyAsyncRepository repository;
+
+	private InMemoryRepositoryMetrics metrics;
+
+	@Before
+	public void setUp() {
+		final AsyncDatastoreService delegate = DatastoreServiceFactory.getAsyncDatastoreService();
+		// records the method and size of each batch call
+		final AsyncDatastoreService recording = (AsyncDatastoreService) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { AsyncDatastoreService.class }, (proxy, method, args) -> {
+					for (Object arg : args != null ? args : new Object[0]) {
+						if (arg instanceof Collection) rpcs.add(method.getName() + " " + ((Collection<?>) arg).size());
+					}
+					try {
+						return method.invoke(delegate, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+		repository = new CompanyAsyncRepository() {
+			@Override
+			protected AsyncDatastoreService getAsyncDatastoreService() {
+				return recording;
+			}
+		};
+		repository.setExecutor(Runnable::run);
+		metrics = new InMemoryRepositoryMetrics();
+		repository.setMetrics(metrics);
+	}
+
+	@Test
+	public void savesInChunks() throws Exception {
+		List<Company> companies = repository.saveAll(BatchSaveTest.companies(1200)).get();
+		assertEquals(Arrays.asList("put 500", "put 500", "put 200"), rpcs);
+		assertEquals(1200, new CompanyRepository().findIds(new Query("Company")).size());
+		assertEquals(1200, ids(companies).size());
+		KindMetrics kind = metrics.getKind("Company");
+		assertEquals(3, kind.getRpcCount(Operation.SAVE));
+		assertEquals(1, kind.getLatency(Operation.SAVE).getCount());
+		assertEquals(1200, kind.getEntities(Operation.SAVE).getSum());
+	}
+
+	@Test
+	public void getsInChunks() throws Exception {
+		List<Long> ids = ids(repository.saveAll(BatchSaveTest.companies(2500)).get());
+		rpcs.clear();
+		metrics.reset();
+		Map<Long, Company> found = repository.get(ids).get();
+		assertEquals(Arrays.asList("get 1000", "get 1000", "get 500"), rpcs);
+		assertEquals(ids, new ArrayList<Long>(found.keySet()));
+		assertEquals("company 2499", found.get(ids.get(2499)).getName());
+		KindMetrics kind = metrics.getKind("Company");
+		assertEquals(3, kind.getRpcCount(Operation.GET));
+		assertEquals(2500, kind.getRpcEntities().getSum());
+		assertEquals(1, kind.getLatency(Operation.GET).getCount());
+		assertEquals(2500, kind.getEntities(Operation.GET).getSum());
+	}
+
+	@Test
+	public void deletesInChunks() throws Exception {
+		List<Long> ids = ids(repository.saveAll(BatchSaveTest.companies(1200)).get());
+		rpcs.clear();
+		metrics.reset();
+		repository.delete(ids).get();
+		assertEquals(Arrays.asList("delete 500", "delete 500", "delete 200"), rpcs);
+		assertTrue(new CompanyRepository().findAll().isEmpty());
+		KindMetrics kind = metrics.getKind("Company");
+		assertEquals(3, kind.getRpcCount(Operation.DELETE));
+		assertEquals(1, kind.getLatency(Operation.DELETE).getCount());
+		assertEquals(1200, kind.getEntities(Operation.DELETE).getSum());
+	}
+
+	@Test
+	public void findsAreMeasured() throws Exception {
+		repository.saveAll(BatchSaveTest.companies(30)).get();
+		assertEquals(30, repository.findAll().get().size());
+		KindMetrics kind = metrics.getKind("Company");
+		assertEquals(1, kind.getRpcCount(Operation.FIND));
+		assertEquals(1, kind.getLatency(Operation.FIND).getCount());
+		assertEquals(30, kind.getEntities(Operation.FIND).getSum());
+		assertTrue(kind.getMappedEntities() >= 30);
+	}
+
+	private static List<Long> ids(List<Company> companies) {
+		List<Long> ids = new ArrayList<Long>();
+		for (Company company : companies) {
+			ids.add(company.getId());
+		}
+		return ids;
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ar.sgt.appengine.datastore.batch.BatchOptions;
+import com.ar.sgt.appengine.datastore.batch.BatchResult;
+import com.ar.sgt.appengine.datastore.metrics.InMemoryRepositoryMetrics;
+import com.ar.sgt.appengine.datastore.metrics.Operation;
+import com.ar.sgt.appengine.datastore.model.Company;
+import com.ar.sgt.appengine.datastore.model.CompanyRepository;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+
+public class BatchDeleteTest extends DatastoreTestCase {
+
+	private CompanyRepository repository;
+
+	private InMemoryRepositoryMetrics metrics;
+
+	@Before
+	public void setUp() {
+		repository = new CompanyRepository();
+		metrics = new InMemoryRepositoryMetrics();
+		repository.setMetrics(metrics);
+	}
+
+	@Test
+	public void deletesInChunksOfMaxSize() {
+		List<Long> ids = save(1200);
+		BatchResult result = repository.delete(ids, BatchOptions.nonTransactional());
+		assertTrue(result.isSuccess());
+		assertEquals(1200, result.getProcessed());
+		assertEquals(3, result.getChunks());
+		assertEquals(3, metrics.getKind("Company").getRpcCount(Operation.DELETE));
+		assertTrue(repository.findIds(new Query("Company")).isEmpty());
+	}
+
+	@Test
+	public void deletesChunksConcurrently() {
+		List<Long> ids = save(1200);
+		BatchResult result = repository.delete(ids, BatchOptions.nonTransactional().withChunkSize(100).withParallelism(4));
+		assertTrue(result.isSuccess());
+		assertEquals(1200, result.getProcessed());
+		assertEquals(12, result.getChunks());
+		assertTrue(repository.findIds(new Query("Company")).isEmpty());
+	}
+
+	@Test
+	public void transactionalDeletesTouchAtMostMaxGroups() {
+		List<Long> ids = save(60);
+		BatchResult result = repository.delete(ids, BatchOptions.transactional());
+		assertEquals(60, result.getProcessed());
+		assertEquals(3, result.getChunks());
+		assertTrue(repository.findAll().isEmpty());
+	}
+
+	@Test
+	public void deleteIterableRemovesEveryId() {
+		List<Long> ids = save(600);
+		repository.delete(ids.subList(0, 550));
+		assertEquals(50, repository.findAll().size());
+		assertTrue(repository.exists(ids.get(599)));
+	}
+
+	@Test
+	public void deleteWhereRemovesOnlyMatchingEntities() {
+		List<Company> companies = new ArrayList<Company>();
+		for (int i = 0; i < 30; i++) {
+			companies.add(new Company(i % 3 == 0 ? "closed" : "open"));
+		}
+		repository.save(companies, BatchOptions.nonTransactional());
+		Query query = new Query("Company").setFilter(new FilterPredicate("name", FilterOperator.EQUAL, "closed"));
+		BatchResult result = repository.deleteWhere(query, BatchOptions.nonTransactional().withChunkSize(4));
+		assertEquals(10, result.getProcessed());
+		assertEquals(3, result.getChunks());
+		List<Company> remaining = repository.findAll();
+		assertEquals(20, remaining.size());
+		for (Company company : remaining) {
+			assertEquals("open", company.getName());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void deleteWhereRejectsQueriesOfOtherKinds() {
+		repository.deleteWhere(new Query("Employee"));
+	}
+
+	private List<Long> save(int count) {
+		List<Company> companies = BatchSaveTest.companies(count);
+		repository.save(companies, BatchOptions.nonTransactional());
+		List<Long> ids = new ArrayList<Long>(count);
+		for (Company company : companies) {
+			ids.add(company.getId());
+		}
+		return ids;
+	}
+
+}
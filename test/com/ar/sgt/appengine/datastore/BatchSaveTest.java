@@ -0,0 +1,120 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ar.sgt.appengine.datastore.batch.BatchOptions;
+import com.ar.sgt.appengine.datastore.batch.BatchResult;
+import com.ar.sgt.appengine.datastore.metrics.InMemoryRepositoryMetrics;
+import com.ar.sgt.appengine.datastore.metrics.Operation;
+import com.ar.sgt.appengine.datastore.model.Company;
+import com.ar.sgt.appengine.datastore.model.CompanyRepository;
+import com.google.appengine.api.datastore.Query;
+
+public class BatchSaveTest extends DatastoreTestCase {
+
+	private CompanyRepository repository;
+
+	private InMemoryRepositoryMetrics metrics;
+
+	@Before
+	public void setUp() {
+		repository = new CompanyRepository();
+		metrics = new InMemoryRepositoryMetrics();
+		repository.setMetrics(metrics);
+	}
+
+	@Test
+	public void savesInChunksOfMaxSize() {
+		List<Company> companies = companies(1200);
+		BatchResult result = repository.save(companies, BatchOptions.nonTransactional());
+		assertTrue(result.isSuccess());
+		assertEquals(1200, result.getProcessed());
+		assertEquals(3, result.getChunks());
+		assertEquals(3, saveRpcs());
+		Set<Long> ids = new HashSet<Long>();
+		for (Company company : companies) {
+			assertNotNull(company.getId());
+			ids.add(company.getId());
+		}
+		assertEquals(1200, ids.size());
+		assertEquals(1200, repository.findIds(new Query("Company")).size());
+	}
+
+	@Test
+	public void saveIterableWritesTransactionalChunks() {
+		List<Company> companies = companies(60);
+		repository.save(companies);
+		assertEquals(3, saveRpcs());
+		assertNotNull(companies.get(59).getId());
+	}
+
+	@Test
+	public void chunkSizeIsCappedByTheDatastoreLimits() {
+		assertEquals(BatchOptions.MAX_CHUNK_SIZE, BatchOptions.nonTransactional().withChunkSize(1000).getChunkSize());
+		assertEquals(BatchOptions.MAX_TRANSACTION_GROUPS, BatchOptions.transactional().withChunkSize(100).getChunkSize());
+	}
+
+	@Test
+	public void transactionalChunksTouchAtMostMaxGroups() {
+		BatchResult result = repository.save(companies(60), BatchOptions.transactional());
+		assertTrue(result.isSuccess());
+		assertEquals(60, result.getProcessed());
+		assertEquals(3, result.getChunks());
+	}
+
+	@Test
+	public void smallerChunksAreHonoured() {
+		BatchResult result = repository.save(companies(10), BatchOptions.nonTransactional().withChunkSize(4));
+		assertEquals(3, result.getChunks());
+		assertEquals(10, repository.findAll().size());
+	}
+
+	private long saveRpcs() {
+		return metrics.getKind("Company").getRpcCount(Operation.SAVE);
+	}
+
+	static List<Company> companies(int count) {
+		List<Company> companies = new ArrayList<Company>(count);
+		for (int i = 0; i < count; i++) {
+			companies.add(new Company("company " + i));
+		}
+		return companies;
+	}
+
+}
@@ -0,0 +1,287 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ar.sgt.appengine.datastore.batch.ImportOptions;
+import com.ar.sgt.appengine.datastore.batch.ImportResult;
+import com.ar.sgt.appengine.datastore.model.Company;
+import com.ar.sgt.appengine.datastore.model.CompanyRepository;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+
+@SuppressWarnings("unchecked")
+public class BulkImportTest extends DatastoreTestCase {
+
+	private final List<List<Entity>> puts = Collections.synchronizedList(new ArrayList<List<Entity>>());
+
+	private volatile Interceptor interceptor;
+
+	private DatastoreService delegate;
+
+	private CompanyRepository repository;
+
+	@Before
+	public void setUp() {
+		delegate = DatastoreServiceFactory.getDatastoreService();
+		final DatastoreService datastore = (DatastoreService) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { DatastoreService.class }, (proxy, method, args) -> {
+					if (method.getName().equals("put") && args[1] instanceof List) {
+						puts.add(new ArrayList<Entity>((List<Entity>) args[1]));
+					}
+					try {
+						return interceptor != null ? interceptor.invoke(method, args) : method.invoke(delegate, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+		repository = new CompanyRepository() {
+			@Override
+			protected DatastoreService getDatastoreService() {
+				return datastore;
+			}
+		};
+	}
+
+	@Test
+	public void importsEveryObject() throws Exception {
+		final List<Company> companies = BatchSaveTest.companies(1000);
+		ImportResult result = within(10, () -> repository.importAll(companies, ImportOptions.on(newExecutor(8)).withBatchSize(100)));
+		assertTrue(result.isSuccess());
+		assertEquals(1000, result.getAccepted());
+		assertEquals(1000, result.getWritten());
+		assertEquals(1000, count());
+		int written = 0;
+		for (List<Entity> put : puts) {
+			assertTrue(put.size() <= 100);
+			written += put.size();
+		}
+		assertEquals(1000, written);
+		Set<Long> ids = new HashSet<Long>();
+		for (Company company : companies) {
+			ids.add(company.getId());
+		}
+		assertEquals(1000, ids.size());
+	}
+
+	@Test
+	public void batchesAreCutBySerializedSize() throws Exception {
+		final List<Company> companies = new ArrayList<Company>();
+		for (int i = 0; i < 200; i++) {
+			companies.add(new Company(String.format("%01000d", i)));
+		}
+		ImportResult result = within(10, () -> repository.importAll(companies, ImportOptions.on(newExecutor(8)).withBatchBytes(5000)));
+		assertEquals(200, result.getWritten());
+		assertTrue(result.getBytes() > 200 * 1000);
+		for (List<Entity> put : puts) {
+			// over a kilobyte each, at most 4 fit
+			assertTrue(put.size() <= 4);
+		}
+		assertTrue(result.getBatches() >= 50);
+	}
+
+	@Test
+	public void addingBlocksWhileTheWritersAreBehind() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		interceptor = (method, args) -> {
+			if (method.getName().equals("put")) release.await();
+			return method.invoke(delegate, args);
+		};
+		final BulkImport<Company> bulk = repository.bulkImport(ImportOptions.on(newExecutor(4)).withMappers(1).withWriters(1)
+				.withQueueSize(10).withBatchSize(10));
+		Future<?> producer = newExecutor(1).submit(() -> {
+			for (Company company : BatchSaveTest.companies(1000)) {
+				bulk.add(company);
+			}
+		});
+		Thread.sleep(500);
+		// the queues, the batch being filled and the ones waiting for or being written by the writer
+		assertTrue(bulk.getResult().getAccepted() <= 60);
+		assertFalse(producer.isDone());
+
+		release.countDown();
+		producer.get(10, TimeUnit.SECONDS);
+		ImportResult result = within(10, bulk::finish);
+		assertEquals(1000, result.getWritten());
+		assertEquals(1000, count());
+	}
+
+	@Test
+	public void retriedBatchesAreNotWrittenTwice() throws Exception {
+		final AtomicInteger allocations = new AtomicInteger();
+		final AtomicInteger writes = new AtomicInteger();
+		interceptor = (method, args) -> {
+			if (method.getName().equals("allocateIds") && allocations.incrementAndGet() == 1) {
+				throw new DatastoreTimeoutException("allocation timed out");
+			}
+			Object value = method.invoke(delegate, args);
+			if (method.getName().equals("put") && writes.incrementAndGet() == 1) {
+				// written, but the caller doesn't know
+				throw new DatastoreTimeoutException("put timed out");
+			}
+			return value;
+		};
+		final List<Company> companies = BatchSaveTest.companies(50);
+		ImportResult result = within(10, () -> repository.importAll(companies, ImportOptions.on(newExecutor(8)).withWriters(1)
+				.withRetries(3, 1)));
+		assertTrue(result.isSuccess());
+		assertEquals(2, result.getRetries());
+		assertEquals(50, result.getWritten());
+		assertEquals(50, count());
+		for (List<Entity> put : puts) {
+			for (Entity entity : put) {
+				assertTrue(entity.getKey().isComplete());
+			}
+		}
+	}
+
+	@Test
+	public void failedBatchesAreCounted() throws Exception {
+		interceptor = (method, args) -> {
+			if (method.getName().equals("put")) {
+				for (Entity entity : (List<Entity>) args[1]) {
+					if ("unavailable".equals(entity.getProperty("name"))) throw new DatastoreFailureException("unavailable");
+					if ("invalid".equals(entity.getProperty("name"))) throw new IllegalArgumentException("invalid");
+				}
+			}
+			return method.invoke(delegate, args);
+		};
+		final List<Company> companies = BatchSaveTest.companies(100);
+		companies.get(10).setName("unavailable");
+		companies.get(60).setName("invalid");
+		ImportResult result = within(10, () -> repository.importAll(companies, ImportOptions.on(newExecutor(8)).withMappers(1).withBatchSize(20)
+				.withRetries(2, 1)));
+
+		int unavailable = 0;
+		int invalid = 0;
+		for (List<Entity> put : puts) {
+			for (Entity entity : put) {
+				if ("unavailable".equals(entity.getProperty("name"))) unavailable = put.size();
+				if ("invalid".equals(entity.getProperty("name"))) invalid = put.size();
+			}
+		}
+		assertFalse(result.isSuccess());
+		assertEquals(unavailable + invalid, result.getFailed());
+		assertEquals(100 - result.getFailed(), result.getWritten());
+		assertEquals(100 - result.getFailed(), count());
+		// only the transient failure is retried
+		assertEquals(1, result.getRetries());
+		assertEquals(2, result.getFailures().size());
+		assertEquals(100 + unavailable, sizes());
+	}
+
+	@Test
+	public void deadStageFailsAdd() throws Exception {
+		interceptor = (method, args) -> {
+			throw new StackOverflowError();
+		};
+		final BulkImport<Company> bulk = repository.bulkImport(ImportOptions.on(newExecutor(8)).withQueueSize(10).withBatchSize(10));
+		try {
+			// the writers die on their first call, adding must not block on the full queues
+			within(10, () -> {
+				for (int i = 0; i < 1000; i++) {
+					bulk.add(new Company("company " + i));
+				}
+				return null;
+			});
+			fail("add should fail once a stage died");
+		} catch (StackOverflowError e) {
+			// the failure of the writer
+		}
+		try {
+			within(10, bulk::finish);
+			fail("finish should fail");
+		} catch (StackOverflowError e) {
+			// the failure of the writer
+		}
+		assertEquals(0, count());
+	}
+
+	@Test
+	public void deadStageFailsFinish() throws Exception {
+		interceptor = (method, args) -> {
+			throw new StackOverflowError();
+		};
+		final BulkImport<Company> bulk = repository.bulkImport(ImportOptions.on(newExecutor(8)));
+		bulk.add(new Company("Acme"));
+		try {
+			within(10, bulk::finish);
+			fail("finish should fail");
+		} catch (StackOverflowError e) {
+			// the failure of the writer
+		}
+	}
+
+	private int sizes() {
+		int size = 0;
+		synchronized (puts) {
+			for (List<Entity> put : puts) {
+				size += put.size();
+			}
+		}
+		return size;
+	}
+
+	private static int count() {
+		return DatastoreServiceFactory.getDatastoreService().prepare(new Query("Company")).countEntities(FetchOptions.Builder.withDefaults());
+	}
+
+	/**
+	 * Replaces the calls to the datastore used by the import.
+	 */
+	private interface Interceptor {
+
+		Object invoke(Method method, Object[] args) throws Throwable;
+
+	}
+
+}
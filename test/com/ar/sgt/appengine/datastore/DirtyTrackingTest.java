@@ -0,0 +1,145 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ar.sgt.appengine.datastore.batch.BatchOptions;
+import com.ar.sgt.appengine.datastore.batch.BatchResult;
+import com.ar.sgt.appengine.datastore.metrics.InMemoryRepositoryMetrics;
+import com.ar.sgt.appengine.datastore.metrics.Operation;
+import com.ar.sgt.appengine.datastore.model.Company;
+import com.ar.sgt.appengine.datastore.model.CompanyRepository;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Transaction;
+
+public class DirtyTrackingTest extends DatastoreTestCase {
+
+	private CompanyRepository repository;
+
+	private InMemoryRepositoryMetrics metrics;
+
+	@Before
+	public void setUp() {
+		repository = new CompanyRepository();
+		repository.setDirtyTracking(true);
+		metrics = new InMemoryRepositoryMetrics();
+		repository.setMetrics(metrics);
+	}
+
+	@Test
+	public void unchangedLoadedObjectIsNotWritten() {
+		Long id = saveCompany();
+		Company company = repository.get(id).get();
+		repository.save(company);
+		assertEquals(1, repository.getSkippedWrites());
+		assertEquals(1, saves());
+	}
+
+	@Test
+	public void unchangedSavedObjectIsNotWritten() {
+		Company company = new Company("Acme");
+		repository.save(company);
+		repository.save(company);
+		assertEquals(1, repository.getSkippedWrites());
+		assertEquals(1, saves());
+	}
+
+	@Test
+	public void changedObjectIsWritten() {
+		Company company = repository.get(saveCompany()).get();
+		company.setName("Globex");
+		repository.save(company);
+		assertEquals(0, repository.getSkippedWrites());
+		assertEquals(2, saves());
+		assertEquals("Globex", new CompanyRepository().get(company.getId()).get().getName());
+	}
+
+	@Test
+	public void changesInsideListsAndDatesAreWritten() {
+		Company company = repository.get(saveCompany()).get();
+		company.getTags().add("new");
+		repository.save(company);
+		company.getFounded().setTime(0);
+		repository.save(company);
+		assertEquals(0, repository.getSkippedWrites());
+		assertEquals(3, saves());
+	}
+
+	@Test
+	public void unchangedObjectsAreLeftOutOfBatches() {
+		List<Company> companies = BatchSaveTest.companies(10);
+		repository.save(companies, BatchOptions.nonTransactional());
+		companies.get(3).setName("Changed");
+		BatchResult result = repository.save(companies, BatchOptions.nonTransactional());
+		assertEquals(1, result.getProcessed());
+		assertEquals(9, result.getSkipped());
+		assertEquals(9, repository.getSkippedWrites());
+	}
+
+	@Test
+	public void transactionalSaveIsNotTracked() {
+		Company company = new Company("Acme");
+		Transaction txn = DatastoreServiceFactory.getDatastoreService().beginTransaction();
+		repository.save(company, txn);
+		txn.rollback();
+		repository.save(company);
+		assertEquals(0, repository.getSkippedWrites());
+		assertEquals(2, saves());
+	}
+
+	@Test
+	public void disabledTrackingWritesEverySave() {
+		repository.setDirtyTracking(false);
+		Company company = new Company("Acme");
+		repository.save(company);
+		repository.save(company);
+		assertEquals(0, repository.getSkippedWrites());
+		assertEquals(2, saves());
+	}
+
+	private Long saveCompany() {
+		Company company = new Company("Acme");
+		company.setTags(new ArrayList<String>(Arrays.asList("a", "b")));
+		company.setFounded(new Date(1000));
+		repository.save(company);
+		return company.getId();
+	}
+
+	private long saves() {
+		return metrics.getKind("Company").getRpcCount(Operation.SAVE);
+	}
+
+}
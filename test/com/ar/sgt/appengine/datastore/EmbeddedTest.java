@@ -0,0 +1,159 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ar.sgt.appengine.datastore.mapping.MappingException;
+import com.ar.sgt.appengine.datastore.model.Address;
+import com.ar.sgt.appengine.datastore.model.Company;
+import com.ar.sgt.appengine.datastore.model.Membership;
+import com.ar.sgt.appengine.datastore.model.MembershipRepository;
+import com.ar.sgt.appengine.datastore.model.Person;
+import com.ar.sgt.appengine.datastore.model.PersonRepository;
+import com.ar.sgt.appengine.datastore.query.PageRequest;
+import com.ar.sgt.appengine.datastore.query.PageResult;
+import com.ar.sgt.appengine.datastore.utils.EntityUtils;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+
+public class EmbeddedTest extends DatastoreTestCase {
+
+	private PersonRepository repository;
+
+	@Before
+	public void setUp() {
+		repository = new PersonRepository();
+	}
+
+	@Test
+	public void roundTripsEmbeddedObjects() {
+		Person person = person("Juan", "Rosario");
+		Address old = new Address("San Martin 1", "Cordoba");
+		old.setNotes("second floor");
+		person.setPrevious(Arrays.asList(old, new Address("Mitre 2", "Mendoza")));
+		person.setOthers(new LinkedHashSet<Address>(Arrays.asList(new Address("Belgrano 3", "Salta"))));
+		repository.save(person);
+
+		Person read = new PersonRepository().get(person.getId()).get();
+		assertEquals(person.getAddress(), read.getAddress());
+		assertEquals(person.getPrevious(), read.getPrevious());
+		assertEquals(person.getOthers(), read.getOthers());
+		assertTrue(read.getOthers() instanceof LinkedHashSet);
+	}
+
+	@Test
+	public void storesEmbeddedEntities() throws EntityNotFoundException {
+		Person person = person("Juan", "Rosario");
+		person.getAddress().setNotes("second floor");
+		person.setPrevious(Arrays.asList(new Address("Mitre 2", "Mendoza")));
+		repository.save(person);
+
+		Entity entity = DatastoreServiceFactory.getDatastoreService().get(KeyFactory.createKey("Person", person.getId()));
+		EmbeddedEntity address = (EmbeddedEntity) entity.getProperty("address");
+		assertEquals("Rosario", address.getProperty("town"));
+		assertFalse(address.hasProperty("city"));
+		assertTrue(address.isUnindexedProperty("notes"));
+		assertFalse(entity.isUnindexedProperty("address"));
+		List<?> previous = (List<?>) entity.getProperty("previous");
+		assertEquals("Mendoza", ((EmbeddedEntity) previous.get(0)).getProperty("town"));
+		assertNull(entity.getProperty("others"));
+	}
+
+	@Test
+	public void resolvesDottedFieldNames() {
+		assertEquals("address.town", EntityUtils.getFieldName(Person.class, "address.city"));
+		assertEquals("address.street", EntityUtils.getFieldName(Person.class, "address.street"));
+		assertEquals("previous.town", EntityUtils.getFieldName(Person.class, "previous.city"));
+	}
+
+	@Test
+	public void queriesEmbeddedProperties() {
+		repository.save(person("Juan", "Rosario"));
+		repository.save(person("Pedro", "Cordoba"));
+		Person moved = person("Maria", "Salta");
+		moved.setPrevious(Arrays.asList(new Address("Mitre 2", "Rosario")));
+		repository.save(moved);
+
+		assertEquals(Arrays.asList("Juan"), names(filter("address.city", "Rosario")));
+		assertEquals(Arrays.asList("Maria"), names(filter("previous.city", "Rosario")));
+	}
+
+	@Test
+	public void unindexedEmbeddedPropertiesAreNotQueryable() {
+		Person person = person("Juan", "Rosario");
+		person.getAddress().setNotes("second floor");
+		person.setOthers(new LinkedHashSet<Address>(Arrays.asList(new Address("Belgrano 3", "Salta"))));
+		repository.save(person);
+
+		assertTrue(names(filter("address.notes", "second floor")).isEmpty());
+		assertTrue(names(filter("others.city", "Salta")).isEmpty());
+	}
+
+	@Test(expected = MappingException.class)
+	public void embeddedClassesCantHaveRelations() {
+		Membership membership = new Membership();
+		membership.setRole(new Membership.Role());
+		membership.getRole().setCompany(new Company("Acme"));
+		new MembershipRepository().save(membership);
+	}
+
+	private Query filter(String field, String value) {
+		return new Query("Person").setFilter(new FilterPredicate(EntityUtils.getFieldName(Person.class, field), FilterOperator.EQUAL, value));
+	}
+
+	private List<String> names(Query query) {
+		PageResult<Person> page = repository.find(query, PageRequest.of(null, 10));
+		List<String> names = new ArrayList<String>();
+		for (Person person : page.getResult()) {
+			names.add(person.getName());
+		}
+		return names;
+	}
+
+	private static Person person(String name, String city) {
+		return new Person(name, new Address("Street 1", city));
+	}
+
+}
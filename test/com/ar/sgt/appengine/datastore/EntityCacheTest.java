@@ -0,0 +1,148 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ar.sgt.appengine.datastore.metrics.InMemoryRepositoryMetrics;
+import com.ar.sgt.appengine.datastore.metrics.Operation;
+import com.ar.sgt.appengine.datastore.model.Country;
+import com.ar.sgt.appengine.datastore.model.CountryAsyncRepository;
+import com.ar.sgt.appengine.datastore.model.CountryRepository;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * Read and write through of a {@link com.ar.sgt.appengine.datastore.annotation.Cached} kind, on the default
+ * memcache backed cache.
+ */
+public class EntityCacheTest extends DatastoreTestCase {
+
+	private CountryRepository repository;
+
+	private InMemoryRepositoryMetrics metrics;
+
+	@Before
+	public void setUp() {
+		repository = new CountryRepository();
+		metrics = new InMemoryRepositoryMetrics();
+		repository.setMetrics(metrics);
+	}
+
+	@Test
+	public void getReadsThroughTheCache() {
+		Country country = new Country("Argentina");
+		repository.save(country);
+		// written through on save, so even the first get is a hit
+		assertEquals("Argentina", repository.get(country.getId()).get().getName());
+		assertEquals("Argentina", repository.get(country.getId()).get().getName());
+		assertEquals(0, metrics.getKind("Country").getRpcCount(Operation.GET));
+		assertEquals(2, metrics.getKind("Country").getCacheHits());
+	}
+
+	@Test
+	public void cacheIsFilledOnMiss() {
+		Country country = new Country("Argentina");
+		repository.save(country);
+		repository.get(country.getId());
+		deleteFromDatastore(country.getId());
+
+		// the datastore no longer has it, the cached entity is still served
+		assertTrue(repository.get(country.getId()).isPresent());
+		assertEquals(0, metrics.getKind("Country").getRpcCount(Operation.GET));
+	}
+
+	@Test
+	public void saveReplacesTheCachedEntity() {
+		Country country = new Country("Argentina");
+		repository.save(country);
+		country.setName("Brasil");
+		repository.save(country);
+		assertEquals("Brasil", repository.get(country.getId()).get().getName());
+		assertEquals(0, metrics.getKind("Country").getRpcCount(Operation.GET));
+	}
+
+	@Test
+	public void deleteInvalidatesTheCachedEntity() {
+		Country country = new Country("Argentina");
+		repository.save(country);
+		repository.delete(country.getId());
+		assertFalse(repository.get(country.getId()).isPresent());
+		assertEquals(1, metrics.getKind("Country").getRpcCount(Operation.GET));
+	}
+
+	@Test
+	public void missingIdsAreCached() {
+		assertFalse(repository.get(42L).isPresent());
+		assertFalse(repository.get(42L).isPresent());
+		assertEquals(1, metrics.getKind("Country").getRpcCount(Operation.GET));
+		assertEquals(1, metrics.getKind("Country").getCacheHits());
+		assertEquals(1, metrics.getKind("Country").getCacheMisses());
+	}
+
+	@Test
+	public void asyncGetReadsThroughTheCache() throws Exception {
+		Country argentina = new Country("Argentina");
+		Country brasil = new Country("Brasil");
+		repository.save(Arrays.asList(argentina, brasil));
+		deleteFromDatastore(argentina.getId());
+
+		CountryAsyncRepository async = new CountryAsyncRepository();
+		async.setExecutor(Runnable::run);
+		Map<Long, Country> found = async.get(Arrays.asList(argentina.getId(), brasil.getId())).get();
+		assertEquals(2, found.size());
+		assertEquals("Argentina", found.get(argentina.getId()).getName());
+	}
+
+	@Test
+	public void asyncGetFillsTheCache() throws Exception {
+		// written around the repository, so nothing is cached yet
+		Entity entity = new Entity("Country");
+		entity.setProperty("name", "Argentina");
+		Long id = DatastoreServiceFactory.getDatastoreService().put(entity).getId();
+
+		CountryAsyncRepository async = new CountryAsyncRepository();
+		async.setExecutor(Runnable::run);
+		assertTrue(async.get(id).get().isPresent());
+		deleteFromDatastore(id);
+		assertEquals("Argentina", async.get(id).get().get().getName());
+	}
+
+	private static void deleteFromDatastore(Long id) {
+		DatastoreServiceFactory.getDatastoreService().delete(KeyFactory.createKey("Country", id));
+	}
+
+}
@@ -0,0 +1,137 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ar.sgt.appengine.datastore.batch.ScanOptions;
+import com.ar.sgt.appengine.datastore.batch.ScanResult;
+import com.ar.sgt.appengine.datastore.model.Company;
+import com.ar.sgt.appengine.datastore.model.CompanyRepository;
+import com.google.appengine.api.datastore.Entity;
+
+public class ParallelScanTest extends DatastoreTestCase {
+
+	private final AtomicInteger mapped = new AtomicInteger();
+
+	private volatile RuntimeException mappingException;
+
+	private volatile Error mappingError;
+
+	private CompanyRepository repository;
+
+	@Before
+	public void setUp() {
+		repository = new CompanyRepository() {
+			@Override
+			protected List<Company> fromStreamedEntities(List<Entity> entities) {
+				// fails on the second chunk, after some entities were delivered
+				if (mapped.getAndIncrement() > 0) {
+					if (mappingError != null) throw mappingError;
+					if (mappingException != null) throw mappingException;
+				}
+				return super.fromStreamedEntities(entities);
+			}
+		};
+		repository.save(BatchSaveTest.companies(1000));
+	}
+
+	@Test
+	public void scansEveryEntity() throws Exception {
+		final Set<Long> ids = Collections.synchronizedSet(new HashSet<Long>());
+		final AtomicInteger progress = new AtomicInteger();
+		ScanResult result = within(10, () -> repository.scan(company -> ids.add(company.getId()),
+				ScanOptions.on(newExecutor(4)).withParallelism(4).withChunkSize(50).withProgressListener(r -> progress.incrementAndGet())));
+		assertTrue(result.isSuccess());
+		assertEquals(1000, ids.size());
+		assertEquals(1000, result.getProcessed());
+		assertEquals(result.getRanges(), result.getCompletedRanges());
+		assertTrue(result.getChunks() >= 20);
+		assertEquals(result.getChunks(), progress.get());
+	}
+
+	@Test
+	public void workerErrorIsRethrown() throws Exception {
+		mappingError = new StackOverflowError("mapping");
+		try {
+			within(10, () -> repository.scan(company -> {}, ScanOptions.on(newExecutor(4)).withChunkSize(50)));
+			fail("StackOverflowError expected");
+		} catch (StackOverflowError e) {
+			assertEquals("mapping", e.getMessage());
+		}
+	}
+
+	@Test
+	public void failedRangesAreReported() throws Exception {
+		mappingException = new IllegalStateException("mapping");
+		final AtomicInteger delivered = new AtomicInteger();
+		ScanResult result = within(10, () -> repository.scan(company -> delivered.incrementAndGet(),
+				ScanOptions.on(newExecutor(4)).withChunkSize(50)));
+		assertFalse(result.isSuccess());
+		assertFalse(result.getFailures().isEmpty());
+		// failed ranges count as completed
+		assertEquals(result.getRanges(), result.getCompletedRanges());
+		// only the range that mapped the first chunk may have fit in it
+		assertTrue(result.getFailures().size() >= result.getRanges() - 1);
+		assertEquals(mappingException, result.getFailures().get(0).getCause());
+		assertEquals(delivered.get(), result.getProcessed());
+		assertTrue(result.getProcessed() < 1000);
+		try {
+			result.rethrow();
+			fail("IllegalStateException expected");
+		} catch (IllegalStateException e) {
+			assertEquals("mapping", e.getMessage());
+		}
+	}
+
+	@Test
+	public void consumerExceptionCancelsTheScan() throws Exception {
+		final AtomicInteger delivered = new AtomicInteger();
+		try {
+			within(10, () -> repository.scan(company -> {
+				if (delivered.incrementAndGet() == 10) throw new IllegalArgumentException("consumer");
+			}, ScanOptions.on(newExecutor(4)).withChunkSize(50).withBufferSize(1)));
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			assertEquals("consumer", e.getMessage());
+		}
+		assertEquals(10, delivered.get());
+	}
+
+}
@@ -0,0 +1,174 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ar.sgt.appengine.datastore.batch.BatchOptions;
+import com.ar.sgt.appengine.datastore.metrics.InMemoryRepositoryMetrics;
+import com.ar.sgt.appengine.datastore.metrics.Operation;
+import com.ar.sgt.appengine.datastore.model.Company;
+import com.ar.sgt.appengine.datastore.model.CompanyRepository;
+import com.ar.sgt.appengine.datastore.query.PageRequest;
+import com.ar.sgt.appengine.datastore.query.PageResult;
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+
+public class QueryCacheTest extends DatastoreTestCase {
+
+	private CompanyRepository repository;
+
+	private InMemoryRepositoryMetrics metrics;
+
+	@Before
+	public void setUp() {
+		repository = new CompanyRepository();
+		repository.setQueryExpiration(60);
+		metrics = new InMemoryRepositoryMetrics();
+		repository.setMetrics(metrics);
+		repository.save(BatchSaveTest.companies(30), BatchOptions.nonTransactional());
+	}
+
+	@After
+	public void tearDown() {
+		// the expiration is kept by the default registry
+		repository.setQueryExpiration(0);
+	}
+
+	@Test
+	public void repeatedPageIsReadFromTheCache() {
+		PageResult<Company> first = repository.findAll(PageRequest.of(null, 10));
+		PageResult<Company> second = repository.findAll(PageRequest.of(null, 10));
+		assertEquals(names(first), names(second));
+		assertEquals(first.getCursor(), second.getCursor());
+		assertEquals(1, finds());
+		assertEquals(1, metrics.getKind("Company").getRpcCount(Operation.GET));
+	}
+
+	@Test
+	public void nextPageIsCachedApart() {
+		PageResult<Company> first = repository.findAll(PageRequest.of(null, 10));
+		assertNotNull(first.getCursor());
+		PageResult<Company> next = repository.findAll(PageRequest.of(first.getCursor(), 10));
+		repository.findAll(PageRequest.of(first.getCursor(), 10));
+		assertEquals(10, names(next).size());
+		assertEquals(2, finds());
+	}
+
+	@Test
+	public void filtersAreCachedApart() {
+		repository.find(query("company 1"), PageRequest.of(null, 10));
+		PageResult<Company> page = repository.find(query("company 2"), PageRequest.of(null, 10));
+		repository.find(query("company 2"), PageRequest.of(null, 10));
+		assertEquals(1, names(page).size());
+		assertEquals(2, finds());
+	}
+
+	@Test
+	public void saveDropsTheCachedPages() {
+		repository.find(query("Acme"), PageRequest.of(null, 10));
+		repository.save(new Company("Acme"));
+		PageResult<Company> page = repository.find(query("Acme"), PageRequest.of(null, 10));
+		assertEquals(1, names(page).size());
+		assertEquals(2, finds());
+	}
+
+	@Test
+	public void deleteDropsTheCachedPages() {
+		Company company = repository.find(query("company 1"), PageRequest.of(null, 10)).getResult().iterator().next();
+		repository.delete(company.getId());
+		PageResult<Company> page = repository.find(query("company 1"), PageRequest.of(null, 10));
+		assertEquals(0, names(page).size());
+		assertEquals(2, finds());
+	}
+
+	@Test
+	public void writesOfAnotherRepositoryDropTheCachedPages() {
+		repository.find(query("Acme"), PageRequest.of(null, 10));
+		new CompanyRepository().save(new Company("Acme"));
+		assertEquals(1, names(repository.find(query("Acme"), PageRequest.of(null, 10))).size());
+	}
+
+	@Test
+	public void namespacesAreCachedApart() {
+		try {
+			NamespaceManager.set("first");
+			Company company = new Company("Acme");
+			repository.save(company);
+			assertEquals(1, names(repository.find(query("Acme"), PageRequest.of(null, 10))).size());
+
+			NamespaceManager.set("second");
+			assertEquals(0, names(repository.find(query("Acme"), PageRequest.of(null, 10))).size());
+			repository.save(BatchSaveTest.companies(2));
+			repository.save(new Company("Acme"));
+			assertEquals(1, names(repository.find(query("Acme"), PageRequest.of(null, 10))).size());
+
+			// writes of the second namespace don't drop the pages of the first
+			NamespaceManager.set("first");
+			PageResult<Company> page = repository.find(query("Acme"), PageRequest.of(null, 10));
+			assertEquals(company.getId(), page.getResult().iterator().next().getId());
+			assertEquals(3, finds());
+		} finally {
+			NamespaceManager.set(null);
+		}
+	}
+
+	@Test
+	public void pagesAreNotCachedWithoutExpiration() {
+		repository.setQueryExpiration(0);
+		repository.findAll(PageRequest.of(null, 10));
+		repository.findAll(PageRequest.of(null, 10));
+		assertEquals(2, finds());
+	}
+
+	private long finds() {
+		return metrics.getKind("Company").getRpcCount(Operation.FIND);
+	}
+
+	private static Query query(String name) {
+		return new Query("Company").setFilter(new FilterPredicate("name", FilterOperator.EQUAL, name));
+	}
+
+	private static List<String> names(PageResult<Company> page) {
+		List<String> names = new ArrayList<String>();
+		for (Company company : page.getResult()) {
+			names.add(company.getName());
+		}
+		return names;
+	}
+
+}
@@ -0,0 +1,289 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ar.sgt.appengine.datastore.batch.BatchOptions;
+import com.ar.sgt.appengine.datastore.mapping.MappingRegistry;
+import com.ar.sgt.appengine.datastore.metrics.InMemoryRepositoryMetrics;
+import com.ar.sgt.appengine.datastore.metrics.Operation;
+import com.ar.sgt.appengine.datastore.model.Company;
+import com.ar.sgt.appengine.datastore.model.CompanyRepository;
+import com.ar.sgt.appengine.datastore.model.Country;
+import com.ar.sgt.appengine.datastore.model.CountryRepository;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+
+public class SessionTest extends DatastoreTestCase {
+
+	private CompanyRepository repository;
+
+	private InMemoryRepositoryMetrics metrics;
+
+	@Before
+	public void setUp() {
+		repository = new CompanyRepository();
+		metrics = new InMemoryRepositoryMetrics();
+		repository.setMetrics(metrics);
+	}
+
+	@After
+	public void closeSession() {
+		Session session = Session.current();
+		if (session != null) {
+			session.clear();
+			session.close();
+		}
+	}
+
+	@Test
+	public void loadsEachKeyOnce() {
+		Company company = new Company("Acme");
+		repository.save(company);
+
+		try (Session session = Session.open()) {
+			Company first = repository.get(company.getId()).get();
+			Company second = repository.get(company.getId()).get();
+			assertSame(first, second);
+			assertEquals(1, metrics.getKind("Company").getRpcCount(Operation.GET));
+		}
+	}
+
+	@Test
+	public void queryResultsAreRegistered() {
+		Company company = new Company("Acme");
+		repository.save(company);
+
+		try (Session session = Session.open()) {
+			Company found = repository.findAll().get(0);
+			assertSame(found, repository.get(company.getId()).get());
+			assertEquals(0, metrics.getKind("Company").getRpcCount(Operation.GET));
+		}
+	}
+
+	@Test
+	public void streamedObjectsAreNotRegistered() {
+		Company company = new Company("Acme");
+		repository.save(company);
+
+		try (Session session = Session.open()) {
+			Company streamed = repository.stream().collect(Collectors.toList()).get(0);
+			assertNotSame(streamed, repository.get(company.getId()).get());
+			assertEquals(1, metrics.getKind("Company").getRpcCount(Operation.GET));
+		}
+	}
+
+	@Test
+	public void savesAreWrittenOnClose() {
+		Company company = new Company("Acme");
+		try (Session session = Session.open()) {
+			repository.save(company);
+			repository.save(company);
+			assertNull(company.getId());
+			assertEquals(0, count());
+		}
+		assertNotNull(company.getId());
+		assertEquals(1, count());
+		assertEquals(1, metrics.getKind("Company").getRpcCount(Operation.SAVE));
+	}
+
+	@Test
+	public void savesAreFlushedInChunks() {
+		List<Company> companies = BatchSaveTest.companies(1200);
+		try (Session session = Session.open()) {
+			repository.save(companies);
+			session.flush();
+			assertEquals(1200, count());
+			assertNotNull(companies.get(1199).getId());
+		}
+		assertEquals(3, metrics.getKind("Company").getRpcCount(Operation.SAVE));
+	}
+
+	@Test
+	public void deleteDropsThePendingSave() {
+		Company company = new Company("Acme");
+		repository.save(company);
+		metrics.reset();
+
+		try (Session session = Session.open()) {
+			company.setName("Globex");
+			repository.save(company);
+			repository.delete(company.getId());
+			assertFalse(repository.get(company.getId()).isPresent());
+		}
+		assertEquals(0, count());
+		assertEquals(0, metrics.getKind("Company").getRpcCount(Operation.SAVE));
+		assertEquals(1, metrics.getKind("Company").getRpcCount(Operation.DELETE));
+		assertEquals(0, metrics.getKind("Company").getRpcCount(Operation.GET));
+	}
+
+	@Test
+	public void clearDropsPendingWrites() {
+		try (Session session = Session.open()) {
+			repository.save(BatchSaveTest.companies(10));
+			session.clear();
+		}
+		assertEquals(0, count());
+	}
+
+	@Test
+	public void failedPutChunkLeavesTheCacheConsistent() {
+		CountryRepository countries = new CountryRepository();
+		List<Country> saved = countries(countries, 600);
+		FailingDatastore datastore = new FailingDatastore("put", 2);
+
+		Session session = Session.open(datastore.service);
+		try {
+			for (Country country : saved) {
+				country.setName("Changed");
+				countries.save(country);
+			}
+			session.flush();
+			fail("second put should fail");
+		} catch (DatastoreFailureException e) {
+			// the first chunk is written, the second isn't
+		}
+		Key first = KeyFactory.createKey("Country", saved.get(0).getId());
+		Key last = KeyFactory.createKey("Country", saved.get(599).getId());
+		Map<Key, Entity> cached = MappingRegistry.getDefault().getCache().getAll(Arrays.asList(first, last));
+		assertEquals("Changed", cached.get(first).getProperty("name"));
+		assertFalse(cached.containsKey(last));
+
+		// only the failed chunk is still pending
+		session.close();
+		assertEquals(Arrays.asList(500, 100, 100), datastore.sizes);
+		assertEquals("Changed", countries.get(saved.get(599).getId()).get().getName());
+	}
+
+	@Test
+	public void failedDeleteChunkLeavesTheCacheConsistent() {
+		CountryRepository countries = new CountryRepository();
+		List<Country> saved = countries(countries, 600);
+		FailingDatastore datastore = new FailingDatastore("delete", 2);
+
+		Session session = Session.open(datastore.service);
+		try {
+			for (Country country : saved) {
+				countries.delete(country.getId());
+			}
+			session.flush();
+			fail("second delete should fail");
+		} catch (DatastoreFailureException e) {
+			// the first chunk is deleted, the second isn't
+		} finally {
+			session.clear();
+			session.close();
+		}
+		assertFalse(countries.get(saved.get(0).getId()).isPresent());
+		assertTrue(countries.get(saved.get(599).getId()).isPresent());
+	}
+
+	private static List<Country> countries(CountryRepository repository, int count) {
+		List<Country> countries = new ArrayList<Country>(count);
+		for (int i = 0; i < count; i++) {
+			countries.add(new Country("Country " + i));
+		}
+		repository.save(countries, BatchOptions.nonTransactional());
+		for (Country country : countries) {
+			// cached on write, so a stale entry would be served
+			assertTrue(repository.get(country.getId()).isPresent());
+		}
+		return countries;
+	}
+
+	/**
+	 * Local datastore that fails the given call of a method, recording the entities or keys of each call.
+	 */
+	private static class FailingDatastore implements InvocationHandler {
+
+		private final DatastoreService delegate = DatastoreServiceFactory.getDatastoreService();
+
+		private final DatastoreService service = (DatastoreService) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { DatastoreService.class }, this);
+
+		private final String method;
+
+		private final int failingCall;
+
+		private final List<Integer> sizes = new ArrayList<Integer>();
+
+		FailingDatastore(String method, int failingCall) {
+			this.method = method;
+			this.failingCall = failingCall;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method called, Object[] args) throws Throwable {
+			if (called.getName().equals(method)) {
+				for (Object arg : args) {
+					if (arg instanceof Collection) sizes.add(((Collection<?>) arg).size());
+				}
+				if (sizes.size() == failingCall) throw new DatastoreFailureException("chunk " + failingCall + " failed");
+			}
+			try {
+				return called.invoke(delegate, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+	}
+
+	private static int count() {
+		return DatastoreServiceFactory.getDatastoreService().prepare(new Query("Company")).countEntities(FetchOptions.Builder.withDefaults());
+	}
+
+}
@@ -0,0 +1,214 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ar.sgt.appengine.datastore.DatastoreTestCase;
+import com.ar.sgt.appengine.datastore.model.Country;
+import com.ar.sgt.appengine.datastore.model.CountryRepository;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+public class NearEntityCacheTest extends DatastoreTestCase {
+
+	private static final CachePolicy POLICY = CachePolicy.of(0).withMissingExpiration(60);
+
+	private NearEntityCache cache;
+
+	@Before
+	public void setUp() {
+		cache = new NearEntityCache(1024 * 1024);
+	}
+
+	@Test
+	public void returnsCopiesOfTheCachedEntities() {
+		Entity entity = company(1, "Acme");
+		entity.setProperty("tags", new ArrayList<String>(Arrays.asList("a", "b")));
+		cache.put(Collections.singleton(entity), POLICY);
+
+		Entity first = get(entity.getKey());
+		assertNotSame(entity, first);
+		first.setProperty("name", "Changed");
+		((List<?>) first.getProperty("tags")).clear();
+
+		Entity second = get(entity.getKey());
+		assertNotSame(first, second);
+		assertEquals("Acme", second.getProperty("name"));
+		assertEquals(Arrays.asList("a", "b"), second.getProperty("tags"));
+	}
+
+	@Test
+	public void putCopiesTheWrittenEntity() {
+		Entity entity = company(1, "Acme");
+		cache.put(Collections.singleton(entity), POLICY);
+		entity.setProperty("name", "Changed");
+		assertEquals("Acme", get(entity.getKey()).getProperty("name"));
+	}
+
+	@Test
+	public void fillCopiesTheReadEntities() {
+		Entity entity = company(1, "Acme");
+		entity.setProperty("tags", new ArrayList<String>(Arrays.asList("a")));
+		cache.fill(Collections.singletonMap(entity.getKey(), entity), POLICY);
+		entity.setProperty("name", "Changed");
+		((List<?>) entity.getProperty("tags")).clear();
+
+		Entity cached = get(entity.getKey());
+		assertEquals("Acme", cached.getProperty("name"));
+		assertEquals(Arrays.asList("a"), cached.getProperty("tags"));
+	}
+
+	@Test
+	public void fillKeepsNewerEntries() {
+		Entity written = company(1, "Written");
+		cache.put(Collections.singleton(written), POLICY);
+		cache.fill(Collections.singletonMap(written.getKey(), company(1, "Read")), POLICY);
+		assertEquals("Written", get(written.getKey()).getProperty("name"));
+	}
+
+	@Test
+	public void cachesMissingKeys() {
+		Key key = KeyFactory.createKey("Company", 1);
+		cache.fill(Collections.<Key, Entity> singletonMap(key, null), POLICY);
+		Map<Key, Entity> entries = cache.getAll(Collections.singleton(key));
+		assertTrue(entries.containsKey(key));
+		assertNull(entries.get(key));
+
+		Key other = KeyFactory.createKey("Company", 2);
+		cache.fill(Collections.<Key, Entity> singletonMap(other, null), CachePolicy.of(0));
+		assertFalse(cache.getAll(Collections.singleton(other)).containsKey(other));
+	}
+
+	@Test
+	public void invalidateDropsTheEntries() {
+		Entity first = company(1, "Acme");
+		Entity second = company(2, "Globex");
+		cache.put(Arrays.asList(first, second), POLICY);
+		cache.invalidate(Collections.singleton(first.getKey()));
+
+		Map<Key, Entity> entries = cache.getAll(Arrays.asList(first.getKey(), second.getKey()));
+		assertFalse(entries.containsKey(first.getKey()));
+		assertTrue(entries.containsKey(second.getKey()));
+		assertEquals(1, cache.getStats().getSize());
+
+		cache.clear();
+		assertEquals(0, cache.getStats().getSize());
+		assertEquals(0, cache.getStats().getWeight());
+	}
+
+	@Test
+	public void countsHitsAndMisses() {
+		Entity entity = company(1, "Acme");
+		cache.put(Collections.singleton(entity), POLICY);
+		cache.getAll(Arrays.asList(entity.getKey(), KeyFactory.createKey("Company", 2)));
+		CacheStats stats = cache.getStats();
+		assertEquals(1, stats.getHitCount());
+		assertEquals(1, stats.getMissCount());
+	}
+
+	@Test
+	public void staysWithinTheMaximumWeight() {
+		long maximumWeight = 50 * NearEntityCache.weigh(company(1, "Company 1"));
+		cache = new NearEntityCache(maximumWeight);
+		for (int i = 1; i <= 1000; i++) {
+			cache.put(Collections.singleton(company(i, "Company " + i)), POLICY);
+		}
+		CacheStats stats = cache.getStats();
+		assertTrue(stats.getWeight() <= maximumWeight);
+		assertTrue(stats.getSize() < 1000);
+		assertEquals(1000 - stats.getSize(), stats.getEvictionCount() + stats.getRejectionCount());
+	}
+
+	@Test
+	public void frequentlyReadEntriesSurviveAScan() {
+		cache = new NearEntityCache(50 * NearEntityCache.weigh(company(1, "Company 1")));
+		List<Key> hot = new ArrayList<Key>();
+		Map<Key, Entity> entries = new HashMap<Key, Entity>();
+		for (int i = 1; i <= 10; i++) {
+			Entity entity = company(i, "Company " + i);
+			hot.add(entity.getKey());
+			entries.put(entity.getKey(), entity);
+		}
+		cache.fill(entries, POLICY);
+		for (int i = 0; i < 10; i++) {
+			cache.getAll(hot);
+		}
+		for (int i = 1000; i < 2000; i++) {
+			Entity entity = company(i, "Company " + i);
+			cache.fill(Collections.singletonMap(entity.getKey(), entity), POLICY);
+		}
+		assertEquals(hot.size(), cache.getAll(hot).size());
+		assertTrue(cache.getStats().getRejectionCount() > 0);
+	}
+
+	@Test
+	public void mappedObjectsDontShareTheCachedEntity() {
+		CountryRepository repository = new CountryRepository();
+		repository.setCache(cache);
+		Country country = new Country("Argentina");
+		country.setLanguages(new ArrayList<String>(Arrays.asList("es")));
+		country.setUpdated(new Date(1000));
+		repository.save(country);
+
+		Country first = repository.get(country.getId()).get();
+		first.getLanguages().add("en");
+		first.getUpdated().setTime(2000);
+
+		Country second = repository.get(country.getId()).get();
+		assertEquals(Arrays.asList("es"), second.getLanguages());
+		assertEquals(new Date(1000), second.getUpdated());
+		assertEquals(2, cache.getStats().getHitCount());
+	}
+
+	private Entity get(Key key) {
+		return cache.getAll(Collections.singleton(key)).get(key);
+	}
+
+	private static Entity company(long id, String name) {
+		Entity entity = new Entity("Company", id);
+		entity.setProperty("name", name);
+		return entity;
+	}
+
+}
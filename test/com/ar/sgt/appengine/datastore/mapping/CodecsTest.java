@@ -0,0 +1,226 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.mapping;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Currency;
+import java.util.Date;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.ar.sgt.appengine.datastore.DatastoreTestCase;
+import com.ar.sgt.appengine.datastore.model.Measurement;
+import com.ar.sgt.appengine.datastore.model.Measurement.Status;
+import com.ar.sgt.appengine.datastore.model.MeasurementRepository;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+
+public class CodecsTest extends DatastoreTestCase {
+
+	@Test
+	public void narrowsStoredNumbers() {
+		assertEquals(Integer.valueOf(7), Codecs.forType(int.class).fromDatastore(7L));
+		assertEquals(Short.valueOf((short) 7), Codecs.forType(Short.class).fromDatastore(7L));
+		assertEquals(Byte.valueOf((byte) 7), Codecs.forType(byte.class).fromDatastore(7L));
+		assertEquals(Float.valueOf(0.5f), Codecs.forType(float.class).fromDatastore(0.5d));
+		assertEquals(Long.valueOf(7), Codecs.forType(Long.class).fromDatastore(7));
+		assertEquals(Double.valueOf(7), Codecs.forType(double.class).fromDatastore(7L));
+	}
+
+	@Test
+	public void storesEnumsByName() {
+		PropertyCodec codec = Codecs.forType(Status.class);
+		assertSame(codec, Codecs.forType(Status.class));
+		assertEquals("DONE", codec.toDatastore(Status.DONE));
+		assertSame(Status.DONE, codec.fromDatastore("DONE"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void failsOnUnknownEnumNames() {
+		Codecs.forType(Status.class).fromDatastore("CANCELLED");
+	}
+
+	@Test
+	public void storesLongStringsAsText() {
+		PropertyCodec codec = Codecs.forType(String.class);
+		assertEquals(repeat("a", Codecs.MAX_STRING_BYTES), codec.toDatastore(repeat("a", Codecs.MAX_STRING_BYTES)));
+		assertTrue(codec.toDatastore(repeat("a", Codecs.MAX_STRING_BYTES + 1)) instanceof Text);
+		// 2 bytes each in UTF-8
+		assertEquals(repeat("\u00f1", Codecs.MAX_STRING_BYTES / 2), codec.toDatastore(repeat("\u00f1", Codecs.MAX_STRING_BYTES / 2)));
+		assertTrue(codec.toDatastore(repeat("\u00f1", Codecs.MAX_STRING_BYTES / 2 + 1)) instanceof Text);
+		assertEquals("text", codec.fromDatastore(new Text("text")));
+	}
+
+	@Test
+	public void storesDecimalsAndUuidsAsStrings() {
+		UUID uuid = UUID.randomUUID();
+		assertEquals(uuid.toString(), Codecs.forType(UUID.class).toDatastore(uuid));
+		assertEquals(uuid, Codecs.forType(UUID.class).fromDatastore(uuid.toString()));
+		assertEquals("10.50", Codecs.forType(BigDecimal.class).toDatastore(new BigDecimal("10.50")));
+		assertEquals(new BigDecimal("10.50"), Codecs.forType(BigDecimal.class).fromDatastore("10.50"));
+	}
+
+	@Test
+	public void storesTemporalsAsDates() {
+		Instant instant = Instant.ofEpochMilli(1500000000000L);
+		assertEquals(new Date(1500000000000L), Codecs.forType(Instant.class).toDatastore(instant));
+		assertEquals(instant, Codecs.forType(Instant.class).fromDatastore(new Date(1500000000000L)));
+		LocalDate day = LocalDate.of(2018, 5, 25);
+		assertEquals(day, roundTrip(LocalDate.class, day));
+		LocalDateTime dateTime = LocalDateTime.of(2018, 5, 25, 10, 30, 15);
+		assertEquals(dateTime, roundTrip(LocalDateTime.class, dateTime));
+		LocalTime time = LocalTime.of(10, 30, 15);
+		assertEquals(time, roundTrip(LocalTime.class, time));
+		ZonedDateTime zoned = ZonedDateTime.of(dateTime, ZoneOffset.UTC);
+		assertEquals(zoned.toInstant(), ((ZonedDateTime) roundTrip(ZonedDateTime.class, zoned)).toInstant());
+		OffsetDateTime offset = OffsetDateTime.of(dateTime, ZoneOffset.ofHours(3));
+		assertEquals(offset.toInstant(), ((OffsetDateTime) roundTrip(OffsetDateTime.class, offset)).toInstant());
+	}
+
+	@Test
+	public void registeredCodecReplacesTheDefault() {
+		assertSame(Codecs.DEFAULT, Codecs.forType(Currency.class));
+		PropertyCodec codec = new PropertyCodec() {
+
+			@Override
+			public Object toDatastore(Object value) {
+				return ((Currency) value).getCurrencyCode();
+			}
+
+			@Override
+			public Object fromDatastore(Object value) {
+				return Currency.getInstance((String) value);
+			}
+		};
+		Codecs.register(Currency.class, codec);
+		try {
+			assertSame(codec, Codecs.forType(Currency.class));
+		} finally {
+			Codecs.register(Currency.class, null);
+		}
+		assertSame(Codecs.DEFAULT, Codecs.forType(Currency.class));
+	}
+
+	@Test
+	public void mapsEveryBuiltInType() {
+		Measurement measurement = new Measurement();
+		measurement.setCount(12);
+		measurement.setLevel((short) 3);
+		measurement.setFlags((byte) 1);
+		measurement.setRatio(0.25f);
+		measurement.setStatus(Status.DONE);
+		measurement.setAmount(new BigDecimal("99.90"));
+		measurement.setReference(UUID.randomUUID());
+		measurement.setDay(LocalDate.of(2018, 5, 25));
+		measurement.setTaken(LocalDateTime.of(2018, 5, 25, 10, 30));
+		measurement.setTime(LocalTime.of(10, 30));
+		measurement.setReceived(Instant.ofEpochMilli(1500000000000L));
+		measurement.setZoned(ZonedDateTime.of(2018, 5, 25, 10, 30, 0, 0, ZoneOffset.UTC));
+		measurement.setOffset(OffsetDateTime.of(2018, 5, 25, 10, 30, 0, 0, ZoneOffset.ofHours(-3)));
+		measurement.setDescription(repeat("x", 2000));
+		MeasurementRepository repository = new MeasurementRepository();
+		repository.save(measurement);
+
+		Measurement read = new MeasurementRepository().get(measurement.getId()).get();
+		assertEquals(12, read.getCount());
+		assertEquals(3, read.getLevel());
+		assertEquals(1, read.getFlags());
+		assertEquals(Float.valueOf(0.25f), read.getRatio());
+		assertSame(Status.DONE, read.getStatus());
+		assertEquals(measurement.getAmount(), read.getAmount());
+		assertEquals(measurement.getReference(), read.getReference());
+		assertEquals(measurement.getDay(), read.getDay());
+		assertEquals(measurement.getTaken(), read.getTaken());
+		assertEquals(measurement.getTime(), read.getTime());
+		assertEquals(measurement.getReceived(), read.getReceived());
+		assertEquals(measurement.getZoned().toInstant(), read.getZoned().toInstant());
+		assertEquals(measurement.getOffset().toInstant(), read.getOffset().toInstant());
+		assertEquals(measurement.getDescription(), read.getDescription());
+
+		Entity entity = getEntity(measurement.getId());
+		assertEquals(12L, entity.getProperty("count"));
+		assertEquals("DONE", entity.getProperty("status"));
+		assertEquals("99.90", entity.getProperty("amount"));
+		assertTrue(entity.getProperty("taken") instanceof Date);
+		assertTrue(entity.getProperty("description") instanceof Text);
+		assertTrue(entity.isUnindexedProperty("description"));
+		assertFalse(entity.isUnindexedProperty("status"));
+	}
+
+	@Test
+	public void readsNumbersStoredWithAnotherWidth() {
+		Entity entity = new Entity("Measurement");
+		entity.setProperty("count", 5L);
+		entity.setProperty("ratio", 1.5d);
+		entity.setProperty("level", 1L);
+		Long id = DatastoreServiceFactory.getDatastoreService().put(entity).getId();
+
+		Measurement read = new MeasurementRepository().get(id).get();
+		assertEquals(5, read.getCount());
+		assertEquals(Float.valueOf(1.5f), read.getRatio());
+		assertEquals(1, read.getLevel());
+	}
+
+	private static Object roundTrip(Class<?> type, Object value) {
+		PropertyCodec codec = Codecs.forType(type);
+		Object stored = codec.toDatastore(value);
+		assertTrue(stored instanceof Date);
+		return codec.fromDatastore(stored);
+	}
+
+	private static Entity getEntity(Long id) {
+		try {
+			return DatastoreServiceFactory.getDatastoreService().get(KeyFactory.createKey("Measurement", id));
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static String repeat(String value, int count) {
+		StringBuilder sb = new StringBuilder(value.length() * count);
+		for (int i = 0; i < count; i++) {
+			sb.append(value);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,121 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void smallValuesHaveABucketEach() {
+		for (int value = 0; value < Histogram.SUB_BUCKETS; value++) {
+			assertEquals(value, Histogram.index(value));
+			assertEquals(value, Histogram.highest(value));
+		}
+	}
+
+	@Test
+	public void bucketsCoverEveryValue() {
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			long value = random.nextLong() >>> (1 + random.nextInt(63));
+			assertBucket(value);
+		}
+		for (int bit = 0; bit < 63; bit++) {
+			assertBucket((1L << bit) - 1);
+			assertBucket(1L << bit);
+			assertBucket((1L << bit) + 1);
+		}
+		assertBucket(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, Histogram.highest(Histogram.index(Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void bucketsAreContiguous() {
+		for (int index = 1; index <= Histogram.index(Long.MAX_VALUE); index++) {
+			long lowest = Histogram.highest(index - 1) + 1;
+			assertEquals(index, Histogram.index(lowest));
+			assertEquals(index, Histogram.index(Histogram.highest(index)));
+		}
+	}
+
+	@Test
+	public void percentilesAreWithinTheBucketError() {
+		Histogram histogram = new Histogram();
+		for (int value = 1; value <= 1000; value++) {
+			histogram.record(value);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500500, histogram.getSum());
+		assertEquals(500.5, histogram.getMean(), 0.001);
+		assertEquals(1000, histogram.getMax());
+		assertWithin(500, histogram.getValueAtPercentile(50));
+		assertWithin(900, histogram.getValueAtPercentile(90));
+		assertWithin(990, histogram.getValueAtPercentile(99));
+		assertEquals(1, histogram.getValueAtPercentile(0));
+		// capped at the maximum recorded value
+		assertEquals(1000, histogram.getValueAtPercentile(100));
+		assertEquals(1000, histogram.getValueAtPercentile(150));
+	}
+
+	@Test
+	public void emptyAndResetHistogramsReportZero() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getValueAtPercentile(50));
+		assertEquals(0, histogram.getMean(), 0);
+		histogram.record(-5);
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		histogram.record(1000000);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getSum());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getValueAtPercentile(99));
+	}
+
+	/**
+	 * The bucket of the value holds it, and spans no more than 1/SUB_BUCKETS of it.
+	 */
+	private static void assertBucket(long value) {
+		int index = Histogram.index(value);
+		long highest = Histogram.highest(index);
+		long lowest = index == 0 ? 0 : Histogram.highest(index - 1) + 1;
+		assertTrue(value + " in " + lowest + "-" + highest, lowest <= value && value <= highest);
+		assertTrue(value + " in " + lowest + "-" + highest, highest - lowest <= value / Histogram.SUB_BUCKETS);
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue(expected + " ~ " + actual, expected <= actual && actual <= expected + expected / Histogram.SUB_BUCKETS);
+	}
+
+}
@@ -0,0 +1,187 @@
+/*
+Copyright (c) 2018, Sergio Gabriel Teves (https://github.com/dahool)
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of the <organization> nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.ar.sgt.appengine.datastore.model;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.util.UUID;
+
+import com.ar.sgt.appengine.datastore.AbstractEntity;
+
+@SuppressWarnings("serial")
+public class Measurement extends AbstractEntity {
+
+	public enum Status {
+		PENDING, DONE
+	}
+
+	private int count;
+
+	private short level;
+
+	private byte flags;
+
+	private Float ratio;
+
+	private Status status;
+
+	private BigDecimal amount;
+
+	private UUID reference;
+
+	private LocalDate day;
+
+	private LocalDateTime taken;
+
+	private LocalTime time;
+
+	private Instant received;
+
+	private ZonedDateTime zoned;
+
+	private OffsetDateTime offset;
+
+	private String description;
+
+	public int getCount() {
+		return count;
+	}
+
+	public void setCount(int count) {
+		this.count = count;
+	}
+
+	public short getLevel() {
+		return level;
+	}
+
+	public void setLevel(short level) {
+		this.level = level;
+	}
+
+	public byte getFlags() {
+		return flags;
+	}
+
+	public void setFlags(byte flags) {
+		this.flags = flags;
+	}
+
+	public Float getRatio() {
+		return ratio;
+	}
+
+	public void setRatio(Float ratio) {
+		this.ratio = ratio;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public void setStatus(Status status) {
+		this.status = status;
+	}
+
+	public BigDecimal getAmount() {
+		return amount;
+	}
+
+	public void setAmount(BigDecimal amount) {
+		this.amount = amount;
+	}
+
+	public UUID getReference() {
+		return reference;
+	}
+
+	public void setReference(UUID reference) {
+		this.reference = reference;
+	}
+
+	public LocalDate getDay() {
+		return day;
+	}
+
+	public void setDay(LocalDate day) {
+		this.day = day;
+	}
+
+	public LocalDateTime getTaken() {
+		return taken;
+	}
+
+	public void setTaken(LocalDateTime taken) {
+		this.taken = taken;
+	}
+
+	public LocalTime getTime() {
+		return time;
+	}
+
+	public void setTime(LocalTime time) {
+		this.time = time;
+	}
+
+	public Instant getReceived() {
+		return received;
+	}
+
+	public void setReceived(Instant received) {
+		this.received = received;
+	}
+
+	public ZonedDateTime getZoned() {
+		return zoned;
+	}
+
+	public void setZoned(ZonedDateTime zoned) {
+		this.zoned = zoned;
+	}
+
+	public OffsetDateTime getOffset() {
+		return offset;
+	}
+
+	public void setOffset(OffsetDateTime offset) {
+		this.offset = offset;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public void setDescription(String description) {
+		this.description = description;
+	}
+
+}